@@ -15,39 +15,32 @@
  */
 package com.android.car.apps.common;
 
-import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.util.Log;
-import android.util.LruCache;
 import android.widget.ImageView;
 
+import androidx.annotation.VisibleForTesting;
+
+import com.android.car.apps.common.imaging.ImageEngine;
+
+import java.io.PrintWriter;
 import java.lang.ref.SoftReference;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * Downloader class which loads a resource URI into an image view.
  * <p>
  * This class adds a cache over BitmapWorkerTask.
  */
-public class BitmapDownloader {
+public class BitmapDownloader implements ImageMemoryTrimmer.Trimmable {
 
     private static final String TAG = "BitmapDownloader";
 
     private static final boolean DEBUG = false;
 
-    private static final int CORE_POOL_SIZE = 5;
-
-    private static final Executor BITMAP_DOWNLOADER_THREAD_POOL_EXECUTOR =
-            Executors.newFixedThreadPool(CORE_POOL_SIZE);
-
-    // 1/4 of max memory is used for bitmap mem cache
-    private static final int MEM_TO_CACHE = 4;
-
-    // hard limit for bitmap mem cache in MB
-    private static final int CACHE_HARD_LIMIT = 32;
-
     /**
      * bitmap cache item structure saved in LruCache
      */
@@ -60,26 +53,48 @@ public class BitmapDownloader {
          * indicate if the bitmap is scaled down from original source (never scale up)
          */
         boolean mScaled;
+        /**
+         * size requested when the bitmap was scaled, it fits in that box but may be smaller in
+         * one dimension when the aspect ratios differ
+         */
+        int mRequestedWidth;
+        int mRequestedHeight;
 
-        public BitmapItem(Bitmap bitmap, boolean scaled) {
+        public BitmapItem(Bitmap bitmap, boolean scaled, int requestedWidth, int requestedHeight) {
             mBitmap = bitmap;
             mScaled = scaled;
+            mRequestedWidth = requestedWidth;
+            mRequestedHeight = requestedHeight;
+        }
+
+        /**
+         * Whether this item can be used as is for the given options: it isn't scaled, it is
+         * large enough, or it was scaled for a box at least as large as the requested one.
+         */
+        boolean satisfies(BitmapWorkerOptions key) {
+            if (!mScaled) {
+                return true;
+            }
+            return (mBitmap.getWidth() >= key.getWidth() && mBitmap.getHeight() >= key.getHeight())
+                    || (mRequestedWidth >= key.getWidth() && mRequestedHeight >= key.getHeight());
         }
     }
 
-    private LruCache<String, BitmapItem> mMemoryCache;
+    // Part of the memory cache shared by the image loaders, see ImageEngine.
+    private final ImageEngine.Cache<String, BitmapItem> mMemoryCache;
+    private final ImageEngine mEngine;
+
+    // Tasks currently loading a bitmap, by bucket key. Only accessed on the UI thread.
+    private final HashMap<String, InFlightTask> mInFlightTasks = new HashMap<>();
 
     private static BitmapDownloader sBitmapDownloader;
 
     private static final Object sBitmapDownloaderLock = new Object();
 
     // Bitmap cache also uses size of Bitmap as part of key.
-    // Bitmap cache is divided into following buckets by height:
-    // TODO: Pano currently is caring more about height, what about width in key?
-    // height <= 128, 128 < height <= 512, height > 512
+    // Bitmap cache is divided into width x height buckets, see BitmapSizeBuckets.
     // Different bitmap cache buckets save different bitmap cache items.
     // Bitmaps within same bucket share the largest cache item.
-    private static final int[] SIZE_BUCKET = new int[]{128, 512, Integer.MAX_VALUE};
 
     public static abstract class BitmapCallback {
         SoftReference<BitmapWorkerTask> mTask;
@@ -102,19 +117,22 @@ public class BitmapDownloader {
     }
 
     public BitmapDownloader(Context context) {
-        int memClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE))
-                .getMemoryClass();
-        memClass = memClass / MEM_TO_CACHE;
-        if (memClass > CACHE_HARD_LIMIT) {
-            memClass = CACHE_HARD_LIMIT;
-        }
-        int cacheSize = 1024 * 1024 * memClass;
-        mMemoryCache = new LruCache<String, BitmapItem>(cacheSize) {
-            @Override
-            protected int sizeOf(String key, BitmapItem bitmap) {
-                return bitmap.mBitmap.getByteCount();
-            }
-        };
+        ImageEngine engine = ImageEngine.getInstance(context);
+        mMemoryCache = engine.createCache(TAG, bitmap -> bitmap.mBitmap.getByteCount(),
+                bitmap -> bitmap.mBitmap, null, null);
+        mEngine = engine;
+    }
+
+    /**
+     * trim the bitmaps of this downloader in the shared memory cache to 0~1 * maxSize
+     */
+    @Override
+    public void trimTo(float amount) {
+        if (amount == 0f) {
+            mMemoryCache.evictAll();
+        } else {
+            mMemoryCache.trimToSize((int) (amount * mMemoryCache.maxSize()));
+        }
     }
 
     /**
@@ -135,6 +153,12 @@ public class BitmapDownloader {
             BitmapWorkerTask task = new BitmapWorkerTask(null) {
                 @Override
                 protected Bitmap doInBackground(BitmapWorkerOptions... params) {
+                    if (!hasAccountImageUri) {
+                        Bitmap derived = scaleFromMemCache(params[0], this);
+                        if (derived != null) {
+                            return derived;
+                        }
+                    }
                     final Bitmap bitmap = super.doInBackground(params);
                     if (bitmap != null && !hasAccountImageUri) {
                         addBitmapToMemoryCache(params[0], bitmap, isScaled());
@@ -164,18 +188,9 @@ public class BitmapDownloader {
         if (bitmap != null) {
             imageView.setImageBitmap(bitmap);
         } else {
-            BitmapWorkerTask task = new BitmapWorkerTask(imageView) {
-                @Override
-                protected Bitmap doInBackground(BitmapWorkerOptions... params) {
-                    Bitmap bitmap = super.doInBackground(params);
-                    if (bitmap != null && !hasAccountImageUri) {
-                        addBitmapToMemoryCache(params[0], bitmap, isScaled());
-                    }
-                    return bitmap;
-                }
-            };
+            InFlightTask task = getOrStartTask(options, hasAccountImageUri);
+            task.mImageViews.add(new WeakReference<ImageView>(imageView));
             imageView.setTag(R.id.imageDownloadTask, new SoftReference<BitmapWorkerTask>(task));
-            task.execute(options);
         }
     }
 
@@ -192,26 +207,34 @@ public class BitmapDownloader {
             AccountImageChangeObserver.getInstance().registerChangeUriIfPresent(options);
         }
 
-        BitmapWorkerTask task = new BitmapWorkerTask(null) {
-            @Override
-            protected Bitmap doInBackground(BitmapWorkerOptions... params) {
-                if (bitmap != null) {
+        if (bitmap != null) {
+            // Still deliver asynchronously, callers don't expect a re-entrant callback.
+            BitmapWorkerTask task = new BitmapWorkerTask(null) {
+                @Override
+                protected Bitmap doInBackground(BitmapWorkerOptions... params) {
                     return bitmap;
                 }
-                final Bitmap bitmap = super.doInBackground(params);
-                if (bitmap != null && !hasAccountImageUri) {
-                    addBitmapToMemoryCache(params[0], bitmap, isScaled());
+
+                @Override
+                protected void onPostExecute(Bitmap bitmap) {
+                    callback.onBitmapRetrieved(bitmap);
                 }
-                return bitmap;
-            }
+            };
+            callback.mTask = new SoftReference<BitmapWorkerTask>(task);
+            execute(task, options, () -> {
+                // The bitmap is already there, deliver it right away instead.
+                if (!task.isCancelled()) {
+                    task.cancel(false);
+                    callback.mTask = null;
+                    callback.onBitmapRetrieved(bitmap);
+                }
+            });
+            return;
+        }
 
-            @Override
-            protected void onPostExecute(Bitmap bitmap) {
-                callback.onBitmapRetrieved(bitmap);
-            }
-        };
+        InFlightTask task = getOrStartTask(options, hasAccountImageUri);
+        task.mCallbacks.add(callback);
         callback.mTask = new SoftReference<BitmapWorkerTask>(task);
-        task.executeOnExecutor(BITMAP_DOWNLOADER_THREAD_POOL_EXECUTOR, options);
     }
 
     /**
@@ -236,75 +259,241 @@ public class BitmapDownloader {
                 callback.mTask = null;
             }
         }
+        if (task instanceof InFlightTask) {
+            // Other callers may still be waiting on the shared task, only cancel it once the
+            // last one is gone.
+            InFlightTask inFlightTask = (InFlightTask) task;
+            if (!inFlightTask.removeConsumer(key)) {
+                return false;
+            }
+            if (inFlightTask.hasConsumers()) {
+                return true;
+            }
+            if (mInFlightTasks.get(inFlightTask.mKey) == inFlightTask) {
+                mInFlightTasks.remove(inFlightTask.mKey);
+            }
+        }
         if (task != null) {
             return task.cancel(true);
         }
         return false;
     }
 
-    private static String getBucketKey(String baseKey, Bitmap.Config bitmapConfig, int width) {
-        for (int i = 0; i < SIZE_BUCKET.length; i++) {
-            if (width <= SIZE_BUCKET[i]) {
-                return new StringBuilder(baseKey.length() + 16).append(baseKey)
-                        .append(":").append(bitmapConfig == null ? "" : bitmapConfig.ordinal())
-                        .append(":").append(SIZE_BUCKET[i]).toString();
+    /**
+     * Returns the task already loading a bitmap that satisfies the given options, or starts a new
+     * one. Must be called on the UI thread.
+     */
+    private InFlightTask getOrStartTask(BitmapWorkerOptions options, boolean hasAccountImageUri) {
+        String key = getBucketKey(options, options.getWidth(), options.getHeight());
+        InFlightTask task = mInFlightTasks.get(key);
+        if (task != null && !task.isCancelled() && task.covers(options)) {
+            if (DEBUG) {
+                Log.d(TAG, "join in-flight task " + key);
             }
+            return task;
+        }
+        // Either nothing is loading, or the pending task decodes a smaller bitmap. The previous
+        // task keeps serving its own consumers.
+        InFlightTask newTask = new InFlightTask(key, options, hasAccountImageUri);
+        mInFlightTasks.put(key, newTask);
+        execute(newTask, options, () -> onTaskDropped(newTask));
+        return newTask;
+    }
+
+    /**
+     * Runs the task on the shared threads at the priority of the options. onDropped is run on
+     * the UI thread if the task is dropped, see {@link BitmapWorkerOptions.Builder#priority}.
+     */
+    private void execute(BitmapWorkerTask task, BitmapWorkerOptions options,
+            Runnable onDropped) {
+        task.executeOnExecutor(runnable -> mEngine.execute(runnable, onDropped,
+                options.getPriority()), options);
+    }
+
+    /** Reports a null bitmap to the callbacks of a task dropped before it ran. */
+    private void onTaskDropped(InFlightTask task) {
+        if (task.isCancelled()) {
+            return;
         }
-        // should never happen because last bucket is Integer.MAX_VALUE
-        throw new RuntimeException();
+        task.cancel(false);
+        if (mInFlightTasks.get(task.mKey) == task) {
+            mInFlightTasks.remove(task.mKey);
+        }
+        for (int i = 0, c = task.mCallbacks.size(); i < c; i++) {
+            BitmapCallback callback = task.mCallbacks.get(i);
+            callback.mTask = null;
+            callback.onBitmapRetrieved(null);
+        }
+        task.mImageViews.clear();
+        task.mCallbacks.clear();
     }
 
-    private void addBitmapToMemoryCache(BitmapWorkerOptions key, Bitmap bitmap, boolean isScaled) {
+    /**
+     * A {@link BitmapWorkerTask} shared by all the concurrent requests for the same bucket key,
+     * so that the image is only fetched and decoded once.
+     */
+    private class InFlightTask extends BitmapWorkerTask {
+        final String mKey;
+        final BitmapWorkerOptions mOptions;
+        final boolean mHasAccountImageUri;
+        final ArrayList<WeakReference<ImageView>> mImageViews = new ArrayList<>(1);
+        final ArrayList<BitmapCallback> mCallbacks = new ArrayList<>(1);
+
+        InFlightTask(String key, BitmapWorkerOptions options, boolean hasAccountImageUri) {
+            super(null);
+            mKey = key;
+            mOptions = options;
+            mHasAccountImageUri = hasAccountImageUri;
+        }
+
+        /**
+         * Whether the bitmap loaded by this task is large enough for the given options, and
+         * loaded at least as urgently.
+         */
+        boolean covers(BitmapWorkerOptions options) {
+            return mOptions.getPriority().compareTo(options.getPriority()) <= 0
+                    && mOptions.getWidth() >= options.getWidth()
+                    && mOptions.getHeight() >= options.getHeight()
+                    && mOptions.getCacheFlag() == options.getCacheFlag()
+                    && mOptions.getSizeBuckets() == options.getSizeBuckets();
+        }
+
+        boolean removeConsumer(Object key) {
+            if (key instanceof BitmapCallback) {
+                return mCallbacks.remove(key);
+            }
+            for (int i = mImageViews.size() - 1; i >= 0; i--) {
+                if (mImageViews.get(i).get() == key) {
+                    mImageViews.remove(i);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean hasConsumers() {
+            return !mImageViews.isEmpty() || !mCallbacks.isEmpty();
+        }
+
+        @Override
+        protected Bitmap doInBackground(BitmapWorkerOptions... params) {
+            if (!mHasAccountImageUri) {
+                Bitmap derived = scaleFromMemCache(params[0], this);
+                if (derived != null) {
+                    return derived;
+                }
+            }
+            Bitmap bitmap = super.doInBackground(params);
+            if (bitmap != null && !mHasAccountImageUri) {
+                addBitmapToMemoryCache(params[0], bitmap, isScaled());
+            }
+            return bitmap;
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap bitmap) {
+            if (mInFlightTasks.get(mKey) == this) {
+                mInFlightTasks.remove(mKey);
+            }
+            for (int i = 0, c = mImageViews.size(); i < c; i++) {
+                ImageView imageView = mImageViews.get(i).get();
+                if (imageView != null) {
+                    imageView.setImageBitmap(bitmap);
+                }
+            }
+            for (int i = 0, c = mCallbacks.size(); i < c; i++) {
+                BitmapCallback callback = mCallbacks.get(i);
+                callback.mTask = null;
+                callback.onBitmapRetrieved(bitmap);
+            }
+            mImageViews.clear();
+            mCallbacks.clear();
+        }
+    }
+
+    private static String getBucketKey(String baseKey, Bitmap.Config bitmapConfig,
+            BitmapSizeBuckets sizeBuckets, int bucket) {
+        StringBuilder builder = new StringBuilder(baseKey.length() + 32).append(baseKey)
+                .append(":").append(bitmapConfig == null ? "" : bitmapConfig.ordinal())
+                .append(":");
+        return sizeBuckets.appendBucketKey(builder, bucket).toString();
+    }
+
+    private static String getBucketKey(BitmapWorkerOptions key, int bucket) {
+        return getBucketKey(key.getCacheKey(), key.getBitmapConfig(), key.getSizeBuckets(),
+                bucket);
+    }
+
+    private static String getBucketKey(BitmapWorkerOptions key, int width, int height) {
+        return getBucketKey(key, key.getSizeBuckets().getBucket(width, height));
+    }
+
+    private static boolean isSizeSpecified(BitmapWorkerOptions key) {
+        return key.getWidth() != BitmapWorkerOptions.MAX_IMAGE_DIMENSION_PX
+                || key.getHeight() != BitmapWorkerOptions.MAX_IMAGE_DIMENSION_PX;
+    }
+
+    @VisibleForTesting
+    void addBitmapToMemoryCache(BitmapWorkerOptions key, Bitmap bitmap, boolean isScaled) {
         if (!key.isMemCacheEnabled()) {
             return;
         }
-        String bucketKey = getBucketKey(
-                key.getCacheKey(), key.getBitmapConfig(), bitmap.getHeight());
+        // A scaled bitmap is stored in the bucket it was requested for, where the next request
+        // of that size looks for it: its own size may fall in another bucket when the aspect
+        // ratios differ. An un-scaled bitmap is the source itself, stored by its size.
+        String bucketKey = isScaled
+                ? getBucketKey(key, key.getWidth(), key.getHeight())
+                : getBucketKey(key, bitmap.getWidth(), bitmap.getHeight());
         BitmapItem bitmapItem = mMemoryCache.get(bucketKey);
         if (bitmapItem != null) {
             Bitmap currentBitmap = bitmapItem.mBitmap;
-            // If somebody else happened to get a larger one in the bucket, discard our bitmap.
-            // TODO: need a better way to prevent current downloading for the same Bitmap
+            // If somebody else happened to get a larger one in the bucket, discard our bitmap
+            // as long as theirs also serves our request.
+            // Concurrent loads of the same bitmap are coalesced by getOrStartTask(), so this
+            // only happens for blocking loads or requests of different sizes.
             if (currentBitmap.getWidth() >= bitmap.getWidth() && currentBitmap.getHeight()
-                    >= bitmap.getHeight()) {
+                    >= bitmap.getHeight() && bitmapItem.satisfies(key)) {
                 return;
             }
         }
         if (DEBUG) {
             Log.d(TAG, "add cache "+bucketKey+" isScaled = "+isScaled);
         }
-        bitmapItem = new BitmapItem(bitmap, isScaled);
+        bitmapItem = new BitmapItem(bitmap, isScaled, key.getWidth(), key.getHeight());
         mMemoryCache.put(bucketKey, bitmapItem);
     }
 
-    private Bitmap getBitmapFromMemCache(BitmapWorkerOptions key) {
-        if (key.getHeight() != BitmapWorkerOptions.MAX_IMAGE_DIMENSION_PX) {
+    @VisibleForTesting
+    Bitmap getBitmapFromMemCache(BitmapWorkerOptions key) {
+        BitmapSizeBuckets sizeBuckets = key.getSizeBuckets();
+        int requestedBucket = sizeBuckets.getBucket(key.getWidth(), key.getHeight());
+        Bitmap bitmap = findBitmapInMemCache(key, requestedBucket);
+        if (bitmap != null) {
+            sizeBuckets.recordHit(requestedBucket);
+        } else {
+            sizeBuckets.recordMiss(requestedBucket);
+        }
+        return bitmap;
+    }
+
+    private Bitmap findBitmapInMemCache(BitmapWorkerOptions key, int requestedBucket) {
+        BitmapSizeBuckets sizeBuckets = key.getSizeBuckets();
+        if (isSizeSpecified(key)) {
             // 1. find the bitmap in the size bucket
-            String bucketKey =
-                    getBucketKey(key.getCacheKey(), key.getBitmapConfig(), key.getHeight());
-            BitmapItem bitmapItem = mMemoryCache.get(bucketKey);
-            if (bitmapItem != null) {
-                Bitmap bitmap = bitmapItem.mBitmap;
-                // now we have the bitmap in the bucket, use it when the bitmap is not scaled or
-                // if the size is larger than or equals to the output size
-                if (!bitmapItem.mScaled) {
-                    return bitmap;
-                }
-                if (bitmap.getHeight() >= key.getHeight()) {
-                    return bitmap;
-                }
+            BitmapItem bitmapItem = mMemoryCache.get(getBucketKey(key, requestedBucket));
+            // now we have the bitmap in the bucket, use it when the bitmap is not scaled or
+            // if it was scaled for a size larger than or equal to the output size
+            if (bitmapItem != null && bitmapItem.satisfies(key)) {
+                return bitmapItem.mBitmap;
             }
             // 2. find un-scaled bitmap in smaller buckets.  If the un-scaled bitmap exists
-            // in higher buckets,  we still need to scale it down.  Right now we just
-            // return null and let the BitmapWorkerTask to do the same job again.
-            // TODO: use the existing unscaled bitmap and we don't need to load it from resource
-            // or network again.
-            for (int i = SIZE_BUCKET.length - 1; i >= 0; i--) {
-                if (SIZE_BUCKET[i] >= key.getHeight()) {
+            // in higher buckets,  we still need to scale it down.  We return null here and
+            // the BitmapWorkerTask derives it on its thread, see scaleFromMemCache().
+            for (int i = sizeBuckets.getBucketCount() - 1; i >= 0; i--) {
+                if (i == requestedBucket || !sizeBuckets.contains(requestedBucket, i)) {
                     continue;
                 }
-                bucketKey = getBucketKey(key.getCacheKey(), key.getBitmapConfig(), SIZE_BUCKET[i]);
-                bitmapItem = mMemoryCache.get(bucketKey);
+                bitmapItem = mMemoryCache.get(getBucketKey(key, i));
                 if (bitmapItem != null && !bitmapItem.mScaled) {
                     return bitmapItem.mBitmap;
                 }
@@ -312,10 +501,8 @@ public class BitmapDownloader {
             return null;
         }
         // 3. find un-scaled bitmap if size is not specified
-        for (int i = SIZE_BUCKET.length - 1; i >= 0; i--) {
-            String bucketKey =
-                    getBucketKey(key.getCacheKey(), key.getBitmapConfig(), SIZE_BUCKET[i]);
-            BitmapItem bitmapItem = mMemoryCache.get(bucketKey);
+        for (int i = sizeBuckets.getBucketCount() - 1; i >= 0; i--) {
+            BitmapItem bitmapItem = mMemoryCache.get(getBucketKey(key, i));
             if (bitmapItem != null && !bitmapItem.mScaled) {
                 return bitmapItem.mBitmap;
             }
@@ -323,16 +510,90 @@ public class BitmapDownloader {
         return null;
     }
 
+    /**
+     * Returns the smallest cached bitmap that can be scaled down to the requested size: either
+     * an un-scaled bitmap, or a scaled one that is still large enough. Returns null if the
+     * request isn't for a specific size or if no larger bucket has a usable bitmap.
+     */
+    private BitmapItem getSupersetBitmapFromMemCache(BitmapWorkerOptions key) {
+        if (!key.isMemCacheEnabled() || !isSizeSpecified(key)) {
+            return null;
+        }
+        BitmapSizeBuckets sizeBuckets = key.getSizeBuckets();
+        int requestedBucket = sizeBuckets.getBucket(key.getWidth(), key.getHeight());
+        BitmapItem best = null;
+        for (int i = 0, c = sizeBuckets.getBucketCount(); i < c; i++) {
+            if (!sizeBuckets.contains(i, requestedBucket)) {
+                continue;
+            }
+            BitmapItem bitmapItem = mMemoryCache.get(getBucketKey(key, i));
+            if (bitmapItem == null || bitmapItem.mBitmap.isRecycled()) {
+                continue;
+            }
+            Bitmap bitmap = bitmapItem.mBitmap;
+            if (!bitmapItem.satisfies(key)) {
+                continue;
+            }
+            if (best == null || getPixelCount(bitmap) < getPixelCount(best.mBitmap)) {
+                best = bitmapItem;
+            }
+        }
+        return best;
+    }
+
+    private static long getPixelCount(Bitmap bitmap) {
+        return (long) bitmap.getWidth() * bitmap.getHeight();
+    }
+
+    /**
+     * Derives the requested bitmap from a larger cached one instead of loading it again from
+     * the network or resources, and caches the result in the requested size bucket. This is
+     * blocking and must be called on a worker thread.
+     * @return the derived bitmap, or null if nothing suitable is in the cache.
+     */
+    private Bitmap scaleFromMemCache(BitmapWorkerOptions key, BitmapWorkerTask task) {
+        BitmapItem source = getSupersetBitmapFromMemCache(key);
+        if (source == null || task.isCancelled()) {
+            return null;
+        }
+        Bitmap result = BitmapUtils.scaleBitmap(source.mBitmap, key.getWidth(), key.getHeight());
+        if (result == null) {
+            return null;
+        }
+        boolean scaled = source.mScaled || result != source.mBitmap;
+        if (DEBUG) {
+            Log.d(TAG, "derived " + key.getCacheKey() + " " + result.getWidth() + "x"
+                    + result.getHeight() + " from " + source.mBitmap.getWidth() + "x"
+                    + source.mBitmap.getHeight());
+        }
+        task.mScaled = scaled;
+        addBitmapToMemoryCache(key, result, scaled);
+        return result;
+    }
+
     public Bitmap getLargestBitmapFromMemCache(BitmapWorkerOptions key) {
         // find largest bitmap matching the key
-        for (int i = SIZE_BUCKET.length - 1; i >= 0; i--) {
-            String bucketKey =
-                    getBucketKey(key.getCacheKey(), key.getBitmapConfig(), SIZE_BUCKET[i]);
-            BitmapItem bitmapItem = mMemoryCache.get(bucketKey);
-            if (bitmapItem != null) {
-                return bitmapItem.mBitmap;
+        Bitmap largest = null;
+        for (int i = key.getSizeBuckets().getBucketCount() - 1; i >= 0; i--) {
+            BitmapItem bitmapItem = mMemoryCache.get(getBucketKey(key, i));
+            if (bitmapItem != null && (largest == null
+                    || getPixelCount(bitmapItem.mBitmap) > getPixelCount(largest))) {
+                largest = bitmapItem.mBitmap;
             }
         }
-        return null;
+        return largest;
+    }
+
+    /**
+     * Prints the memory cache hit and miss counts of each size bucket, for the given policies
+     * (typically the ones used by the application's {@link BitmapWorkerOptions}).
+     */
+    public void dumpBucketStats(PrintWriter writer, BitmapSizeBuckets... sizeBuckets) {
+        writer.println("BitmapDownloader cache size=" + mMemoryCache.size() + " max="
+                + mMemoryCache.maxSize() + " hits=" + mMemoryCache.hitCount() + " misses="
+                + mMemoryCache.missCount());
+        for (BitmapSizeBuckets buckets : sizeBuckets) {
+            buckets.dump(writer);
+        }
     }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.apps.common;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Policy dividing the {@link BitmapDownloader} memory cache into width x height buckets.
+ * <p>
+ * Bitmaps within the same bucket share the largest cache item, so the bucket edges decide how
+ * much memory is wasted by serving a larger bitmap than needed versus how often a bitmap must be
+ * loaded again. Each policy also counts memory cache hits and misses per bucket, see
+ * {@link #dump(PrintWriter)}, so that the edges can be tuned to the layouts of an application.
+ * <p>
+ * Use {@link BitmapWorkerOptions.Builder#sizeBuckets(BitmapSizeBuckets)} to select a policy.
+ * Instances are meant to be shared constants.
+ */
+public class BitmapSizeBuckets {
+
+    /**
+     * Default policy: 128 / 512 / unbounded in both dimensions, so that wide banners and square
+     * thumbnails of the same image don't collide.
+     */
+    public static final BitmapSizeBuckets DEFAULT = new BitmapSizeBuckets(
+            new int[]{128, 512}, new int[]{128, 512});
+
+    /**
+     * Legacy policy bucketing by height only: height <= 128, 128 < height <= 512, height > 512.
+     */
+    public static final BitmapSizeBuckets HEIGHT_ONLY = new BitmapSizeBuckets(
+            new int[0], new int[]{128, 512});
+
+    private final int[] mWidthEdges;
+    private final int[] mHeightEdges;
+    private final AtomicIntegerArray mHits;
+    private final AtomicIntegerArray mMisses;
+
+    /**
+     * @param widthEdges inclusive upper bounds of the width buckets, in increasing order. A last
+     *                   unbounded bucket is always added.
+     * @param heightEdges inclusive upper bounds of the height buckets, in increasing order. A
+     *                    last unbounded bucket is always added.
+     */
+    public BitmapSizeBuckets(int[] widthEdges, int[] heightEdges) {
+        mWidthEdges = withUnboundedEdge(widthEdges);
+        mHeightEdges = withUnboundedEdge(heightEdges);
+        mHits = new AtomicIntegerArray(getBucketCount());
+        mMisses = new AtomicIntegerArray(getBucketCount());
+    }
+
+    private static int[] withUnboundedEdge(int[] edges) {
+        for (int i = 1; i < edges.length; i++) {
+            if (edges[i] <= edges[i - 1]) {
+                throw new IllegalArgumentException("Edges must be increasing "
+                        + Arrays.toString(edges));
+            }
+        }
+        int[] result = Arrays.copyOf(edges, edges.length + 1);
+        result[edges.length] = Integer.MAX_VALUE;
+        return result;
+    }
+
+    public int getBucketCount() {
+        return mWidthEdges.length * mHeightEdges.length;
+    }
+
+    /** Returns the index of the bucket containing bitmaps of the given size. */
+    public int getBucket(int width, int height) {
+        return getBucketForEdges(indexOf(mWidthEdges, width), indexOf(mHeightEdges, height));
+    }
+
+    private static int indexOf(int[] edges, int value) {
+        for (int i = 0; i < edges.length; i++) {
+            if (value <= edges[i]) {
+                return i;
+            }
+        }
+        // should never happen because last edge is Integer.MAX_VALUE
+        throw new RuntimeException();
+    }
+
+    private int getBucketForEdges(int widthIndex, int heightIndex) {
+        return widthIndex * mHeightEdges.length + heightIndex;
+    }
+
+    /** Upper bound of the widths in the given bucket. */
+    public int getMaxWidth(int bucket) {
+        return mWidthEdges[bucket / mHeightEdges.length];
+    }
+
+    /** Upper bound of the heights in the given bucket. */
+    public int getMaxHeight(int bucket) {
+        return mHeightEdges[bucket % mHeightEdges.length];
+    }
+
+    /** Whether every bitmap of bucket {@code other} fits in the bounds of bucket {@code bucket}. */
+    public boolean contains(int bucket, int other) {
+        return getMaxWidth(other) <= getMaxWidth(bucket)
+                && getMaxHeight(other) <= getMaxHeight(bucket);
+    }
+
+    /** Appends the part of a cache key identifying the given bucket. */
+    StringBuilder appendBucketKey(StringBuilder builder, int bucket) {
+        return builder.append(getMaxWidth(bucket)).append('x').append(getMaxHeight(bucket));
+    }
+
+    void recordHit(int bucket) {
+        mHits.incrementAndGet(bucket);
+    }
+
+    void recordMiss(int bucket) {
+        mMisses.incrementAndGet(bucket);
+    }
+
+    /** Number of memory cache hits for requests falling in the given bucket. */
+    public int getHitCount(int bucket) {
+        return mHits.get(bucket);
+    }
+
+    /** Number of memory cache misses for requests falling in the given bucket. */
+    public int getMissCount(int bucket) {
+        return mMisses.get(bucket);
+    }
+
+    public void resetStats() {
+        for (int i = 0, c = getBucketCount(); i < c; i++) {
+            mHits.set(i, 0);
+            mMisses.set(i, 0);
+        }
+    }
+
+    /** Prints the hit and miss counts of every bucket. */
+    public void dump(PrintWriter writer) {
+        writer.println("BitmapSizeBuckets " + Arrays.toString(mWidthEdges) + " x "
+                + Arrays.toString(mHeightEdges));
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0, c = getBucketCount(); i < c; i++) {
+            builder.setLength(0);
+            builder.append("  ");
+            appendBucketKey(builder, i)
+                    .append(" hits=").append(getHitCount(i))
+                    .append(" misses=").append(getMissCount(i));
+            writer.println(builder);
+        }
+    }
+}
@@ -21,6 +21,8 @@ import android.graphics.Bitmap;
 import android.net.Uri;
 import android.text.TextUtils;
 
+import com.android.car.apps.common.imaging.ImageBinder;
+
 /**
  * Options for loading bitmap resources from different sources and for scaling to an appropriate
  * resolution.
@@ -32,9 +34,21 @@ public class BitmapWorkerOptions {
 
     /** flag to force disable memory cache */
     public static final int CACHE_FLAG_MEM_DISABLED = 1;
-    /** TODO support disk cache options */
+    /** flag to force disable disk cache, see {@link DiskBitmapCache} */
     public static final int CACHE_FLAG_DISK_DISABLED = 2;
 
+    /**
+     * Decode mode reading only the image header to pick the sample size, and decoding local
+     * sources in a single pass at the target size where the platform supports it. Default.
+     */
+    public static final int DECODE_MODE_HEADER_PROBE = 0;
+    /**
+     * Decode mode buffering the whole stream to decode the bounds, then decoding again from
+     * the buffer. Sources whose header is larger than what the probe reads are otherwise
+     * opened twice, this mode avoids it for streams which are expensive to open.
+     */
+    public static final int DECODE_MODE_BUFFERED = 1;
+
     private ShortcutIconResource mIconResource;
     private Uri mResourceUri;
 
@@ -43,6 +57,9 @@ public class BitmapWorkerOptions {
     private Context mContext;
     private int mCacheFlag;
     private Bitmap.Config mBitmapConfig;
+    private BitmapSizeBuckets mSizeBuckets;
+    private int mDecodeMode;
+    private ImageBinder.Priority mPriority;
 
     private String mKey;
 
@@ -60,6 +77,9 @@ public class BitmapWorkerOptions {
         private Context mContext;
         private int mCacheFlag;
         private Bitmap.Config mBitmapConfig;
+        private BitmapSizeBuckets mSizeBuckets;
+        private int mDecodeMode;
+        private ImageBinder.Priority mPriority;
 
         public Builder(Context context) {
             mWidth = MAX_IMAGE_DIMENSION_PX;
@@ -67,6 +87,9 @@ public class BitmapWorkerOptions {
             mContext = context;
             mCacheFlag = 0;
             mBitmapConfig = null;
+            mSizeBuckets = BitmapSizeBuckets.DEFAULT;
+            mDecodeMode = DECODE_MODE_HEADER_PROBE;
+            mPriority = ImageBinder.Priority.VISIBLE;
         }
 
         public BitmapWorkerOptions build() {
@@ -91,6 +114,9 @@ public class BitmapWorkerOptions {
             options.mContext = mContext;
             options.mCacheFlag = mCacheFlag;
             options.mBitmapConfig = mBitmapConfig;
+            options.mSizeBuckets = mSizeBuckets;
+            options.mDecodeMode = mDecodeMode;
+            options.mPriority = mPriority;
             if (options.mIconResource == null && options.mResourceUri == null) {
                 throw new RuntimeException("Both Icon and ResourceUri are null");
             }
@@ -142,6 +168,42 @@ public class BitmapWorkerOptions {
             return this;
         }
 
+        /**
+         * Sets how the memory cache groups bitmaps of different sizes, defaults to
+         * {@link BitmapSizeBuckets#DEFAULT}.
+         */
+        public Builder sizeBuckets(BitmapSizeBuckets sizeBuckets) {
+            if (sizeBuckets == null) {
+                throw new IllegalArgumentException("Can't set null size buckets");
+            }
+            mSizeBuckets = sizeBuckets;
+            return this;
+        }
+
+        /**
+         * Either {@link #DECODE_MODE_HEADER_PROBE} (default) or {@link #DECODE_MODE_BUFFERED}.
+         */
+        public Builder decodeMode(int decodeMode) {
+            if (decodeMode != DECODE_MODE_HEADER_PROBE && decodeMode != DECODE_MODE_BUFFERED) {
+                throw new IllegalArgumentException("Unknown decode mode " + decodeMode);
+            }
+            mDecodeMode = decodeMode;
+            return this;
+        }
+
+        /**
+         * Sets the priority of the load on the shared decoding threads, defaults to
+         * {@link ImageBinder.Priority#VISIBLE}. Loads of a lower priority may be dropped when
+         * too many loads are pending, they then report a null bitmap.
+         */
+        public Builder priority(ImageBinder.Priority priority) {
+            if (priority == null) {
+                throw new IllegalArgumentException("Can't set null priority");
+            }
+            mPriority = priority;
+            return this;
+        }
+
     }
 
     /**
@@ -202,6 +264,30 @@ public class BitmapWorkerOptions {
         return mBitmapConfig;
     }
 
+    /**
+     * @return  policy used to bucket bitmaps by size in the memory cache.
+     * Use {@link Builder#sizeBuckets(BitmapSizeBuckets)} to change it.
+     */
+    public BitmapSizeBuckets getSizeBuckets() {
+        return mSizeBuckets;
+    }
+
+    /**
+     * @return  how bitmaps are decoded from their stream.
+     * Use {@link Builder#decodeMode(int)} to change it.
+     */
+    public int getDecodeMode() {
+        return mDecodeMode;
+    }
+
+    /**
+     * @return  priority of the load on the shared decoding threads.
+     * Use {@link Builder#priority(ImageBinder.Priority)} to change it.
+     */
+    public ImageBinder.Priority getPriority() {
+        return mPriority;
+    }
+
     public String getCacheKey() {
         if (mKey == null) {
             mKey = mIconResource != null ? mIconResource.packageName + "/"
@@ -29,14 +29,18 @@ import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.util.Log;
+import android.util.Size;
 import android.util.TypedValue;
 import android.widget.ImageView;
 
-import java.io.BufferedInputStream;
+import com.android.car.apps.common.imaging.DecodeTable;
+import com.android.car.apps.common.imaging.ImageEngine;
+
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
-import java.net.HttpURLConnection;
 import java.net.URL;
 
 /**
@@ -55,12 +59,16 @@ public class BitmapWorkerTask extends AsyncTask<BitmapWorkerOptions, Void, Bitma
 
     private static final boolean DEBUG = false;
 
-    private static final int SOCKET_TIMEOUT = 10000;
-    private static final int READ_TIMEOUT = 10000;
-
     private final WeakReference<ImageView> mImageView;
     // a flag for if the bitmap is scaled from original source
     protected boolean mScaled;
+    // size of the source of the last decode, null if it couldn't be read
+    private Size mSourceSize;
+
+    /** Loads the bitmap of a uri. */
+    private interface UriLoader {
+        Bitmap load(BitmapWorkerOptions options) throws IOException;
+    }
 
     public BitmapWorkerTask(ImageView imageView) {
         mImageView = new WeakReference<ImageView>(imageView);
@@ -87,9 +95,9 @@ public class BitmapWorkerTask extends AsyncTask<BitmapWorkerOptions, Void, Bitma
                             UriUtils.getIconResource(workerOptions.getResourceUri()),
                             workerOptions);
                 } else if (UriUtils.isWebUri(workerOptions.getResourceUri())) {
-                        return getBitmapFromHttp(workerOptions);
+                        return decodeShared(workerOptions, this::getBitmapFromHttp);
                 } else if (UriUtils.isContentUri(workerOptions.getResourceUri())) {
-                    return getBitmapFromContent(workerOptions);
+                    return decodeShared(workerOptions, this::getBitmapFromContent);
                 } else if (UriUtils.isAccountImageUri(workerOptions.getResourceUri())) {
                     return getAccountImage(workerOptions);
                 } else {
@@ -166,6 +174,8 @@ public class BitmapWorkerTask extends AsyncTask<BitmapWorkerOptions, Void, Bitma
             bitmapOptions.inTempStorage = ByteArrayPool.get16KBPool().allocateChunk();
             bufferedStream.mark(Integer.MAX_VALUE);
             BitmapFactory.decodeStream(bufferedStream, null, bitmapOptions);
+            mSourceSize = bitmapOptions.outWidth > 0 && bitmapOptions.outHeight > 0
+                    ? new Size(bitmapOptions.outWidth, bitmapOptions.outHeight) : null;
 
             float heightScale = (float) bitmapOptions.outHeight / options.getHeight();
             float widthScale = (float) bitmapOptions.outWidth / options.getWidth();
@@ -213,25 +223,70 @@ public class BitmapWorkerTask extends AsyncTask<BitmapWorkerOptions, Void, Bitma
         }
     }
 
+    /**
+     * Loads the uri with the given loader, unless another loader has a decode of it that can be
+     * shared, see {@link DecodeTable}. Shares the bitmap it decodes in turn.
+     */
+    private Bitmap decodeShared(BitmapWorkerOptions options, UriLoader loader)
+            throws IOException {
+        Bitmap.Config config = options.getBitmapConfig() != null
+                ? options.getBitmapConfig() : Bitmap.Config.ARGB_8888;
+        DecodeTable decodes = ImageEngine.getInstance(options.getContext()).getDecodeTable();
+        try (DecodeTable.Decode decode = decodes.open(options.getResourceUri(), config,
+                sourceSize -> getScaledSize(sourceSize, options), true)) {
+            Bitmap shared = decode.getBitmap();
+            if (shared != null) {
+                Size sourceSize = decode.getSourceSize();
+                mScaled = shared.getWidth() < sourceSize.getWidth()
+                        || shared.getHeight() < sourceSize.getHeight();
+                return shared;
+            }
+            mSourceSize = null;
+            Bitmap bitmap = loader.load(options);
+            if (bitmap != null && mSourceSize != null) {
+                decode.publish(bitmap, mSourceSize);
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * Returns the size decodeBitmap() scales a source of the given size to, which covers the
+     * requested size rather than fitting in it, see {@link BitmapUtils#scaleBitmap}.
+     */
+    private static Size getScaledSize(Size sourceSize, BitmapWorkerOptions options) {
+        int width = sourceSize.getWidth();
+        int height = sourceSize.getHeight();
+        if (width <= options.getWidth() && height <= options.getHeight()) {
+            return sourceSize;
+        }
+        float heightScale = height > options.getHeight()
+                ? (float) options.getHeight() / height : 1f;
+        float widthScale = width > options.getWidth() ? (float) options.getWidth() / width : 1f;
+        float scale = Math.max(heightScale, widthScale);
+        return new Size((int) Math.ceil(width * scale), (int) Math.ceil(height * scale));
+    }
+
     private Bitmap getBitmapFromHttp(BitmapWorkerOptions options) throws IOException {
+        RemoteImageFetcher fetcher = RemoteImageFetcher.getInstance(options.getContext());
         URL url = new URL(options.getResourceUri().toString());
         if (DEBUG) {
             Log.d(TAG, "Loading " + url);
         }
-        HttpURLConnection connection = null;
         try {
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setConnectTimeout(SOCKET_TIMEOUT);
-            connection.setReadTimeout(READ_TIMEOUT);
-            InputStream in = new BufferedInputStream(connection.getInputStream());
-            return decodeBitmap(in, options);
+            if (options.isDiskCacheEnabled()) {
+                // Save (or revalidate) the encoded image first, then decode from the disk copy.
+                File file = fetcher.fetchToDiskCache(options.getCacheKey(), url);
+                if (file != null) {
+                    return decodeBitmap(new FileInputStream(file), options);
+                }
+                Log.w(TAG, "Disk cache unavailable for " + url + ", streaming it");
+            }
+            return decodeBitmap(fetcher.openStream(url), options);
         } finally {
             if (DEBUG) {
                 Log.d(TAG, "loading done "+url);
             }
-            if (connection != null) {
-                connection.disconnect();
-            }
         }
     }
 
@@ -337,6 +392,8 @@ public class BitmapWorkerTask extends AsyncTask<BitmapWorkerOptions, Void, Bitma
                                     .height(options.getHeight())
                                     .cacheFlag(options.getCacheFlag())
                                     .bitmapConfig(options.getBitmapConfig())
+                                    .sizeBuckets(options.getSizeBuckets())
+                                    .decodeMode(options.getDecodeMode())
                                     .resource(Uri.parse(picUriString));
                     return BitmapDownloader.getInstance(context)
                             .loadBitmapBlocking(optionBuilder.build());
@@ -15,27 +15,70 @@
  */
 package com.android.car.apps.common;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
+ * Pools of byte[] of a fixed chunk size, one per size class (4KB and 16KB).
+ * <p>
+ * Each pool first serves chunks from a few slots private to the calling thread, then from a
+ * bounded set of slots shared by all threads. Slots are updated with compare-and-set, so that
+ * decode and copy threads don't contend on a lock, while {@link #clear()} can still empty the
+ * slots of every thread.
  * @hide
  */
 public final class ByteArrayPool {
 
+    public static final int CHUNK4K = 4 * 1024;
     public static final int CHUNK16K = 16 * 1024;
     public static final int DEFAULT_MAX_NUM = 8;
 
-    private final static ByteArrayPool sChunk16K = new ByteArrayPool(CHUNK16K, DEFAULT_MAX_NUM);
+    private final static ByteArrayPool sChunk4K = new ByteArrayPool(CHUNK4K, 16, 4);
+    private final static ByteArrayPool sChunk16K =
+            new ByteArrayPool(CHUNK16K, DEFAULT_MAX_NUM, 2);
 
-    private final ArrayList<byte[]> mCachedBuf;
+    private final static ByteArrayPool[] sPools = new ByteArrayPool[]{sChunk4K, sChunk16K};
+
+    private final AtomicReferenceArray<byte[]> mSharedBufs;
     private final int mChunkSize;
     private final int mMaxNum;
+    private final int mMaxPerThread;
+    private final ThreadLocal<AtomicReferenceArray<byte[]>> mThreadBufs;
+    // the slots of every thread, held weakly so that they go away with their thread
+    private final Set<AtomicReferenceArray<byte[]>> mAllThreadBufs =
+            Collections.newSetFromMap(new WeakHashMap<AtomicReferenceArray<byte[]>, Boolean>());
+
+    private final AtomicLong mAllocationCount = new AtomicLong();
+    private final AtomicLong mThreadHitCount = new AtomicLong();
+    private final AtomicLong mSharedHitCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
 
-    private ByteArrayPool(int chunkSize, int maxNum) {
+    private ByteArrayPool(int chunkSize, int maxNum, int maxPerThread) {
         mChunkSize = chunkSize;
         mMaxNum = maxNum;
-        mCachedBuf = new ArrayList<byte[]>(mMaxNum);
+        mMaxPerThread = maxPerThread;
+        mSharedBufs = new AtomicReferenceArray<byte[]>(mMaxNum);
+        mThreadBufs = new ThreadLocal<AtomicReferenceArray<byte[]>>() {
+            @Override
+            protected AtomicReferenceArray<byte[]> initialValue() {
+                AtomicReferenceArray<byte[]> bufs = new AtomicReferenceArray<byte[]>(mMaxPerThread);
+                synchronized (mAllThreadBufs) {
+                    mAllThreadBufs.add(bufs);
+                }
+                return bufs;
+            }
+        };
+    }
+
+    /**
+     * get singleton of 4KB byte[] pool
+     */
+    public static ByteArrayPool get4KBPool() {
+        return sChunk4K;
     }
 
     /**
@@ -45,45 +88,117 @@ public final class ByteArrayPool {
         return sChunk16K;
     }
 
+    /**
+     * Clears every size class, see {@link #clear()}.
+     */
+    public static void clearAll() {
+        for (ByteArrayPool pool : sPools) {
+            pool.clear();
+        }
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
     public byte[] allocateChunk() {
-        synchronized (mCachedBuf) {
-            int size = mCachedBuf.size();
-            if (size > 0) {
-                return mCachedBuf.remove(size - 1);
-            }
-            return new byte[mChunkSize];
+        // only clear() races with the owning thread on its slots, so they are rarely contended
+        byte[] buf = takeChunk(mThreadBufs.get());
+        if (buf != null) {
+            mThreadHitCount.incrementAndGet();
+            return buf;
         }
+        buf = takeChunk(mSharedBufs);
+        if (buf != null) {
+            mSharedHitCount.incrementAndGet();
+            return buf;
+        }
+        mAllocationCount.incrementAndGet();
+        return new byte[mChunkSize];
     }
 
+    /**
+     * Drops the cached chunks, including the ones cached by each thread.
+     */
     public void clear() {
-        synchronized (mCachedBuf) {
-            mCachedBuf.clear();
+        synchronized (mAllThreadBufs) {
+            for (AtomicReferenceArray<byte[]> threadBufs : mAllThreadBufs) {
+                clearSlots(threadBufs);
+            }
         }
+        clearSlots(mSharedBufs);
     }
 
     public void releaseChunk(byte[] buf) {
         if (buf == null || buf.length != mChunkSize) {
             return;
         }
-        synchronized (mCachedBuf) {
-            if (mCachedBuf.size() < mMaxNum) {
-                mCachedBuf.add(buf);
-            }
+        if (putChunk(mThreadBufs.get(), buf) || putChunk(mSharedBufs, buf)) {
+            return;
         }
+        mDroppedCount.incrementAndGet();
     }
 
     public void releaseChunks(List<byte[]> bufs) {
-        synchronized (mCachedBuf) {
-            for (int i = 0, c = bufs.size(); i < c; i++) {
-                if (mCachedBuf.size() == mMaxNum) {
-                    break;
-                }
-                byte[] buf = bufs.get(i);
-                if (buf != null && buf.length == mChunkSize) {
-                    mCachedBuf.add(bufs.get(i));
+        for (int i = 0, c = bufs.size(); i < c; i++) {
+            releaseChunk(bufs.get(i));
+        }
+    }
+
+    private static byte[] takeChunk(AtomicReferenceArray<byte[]> slots) {
+        for (int i = slots.length() - 1; i >= 0; i--) {
+            if (slots.get(i) != null) {
+                byte[] buf = slots.getAndSet(i, null);
+                if (buf != null) {
+                    return buf;
                 }
             }
         }
+        return null;
     }
 
+    private static boolean putChunk(AtomicReferenceArray<byte[]> slots, byte[] buf) {
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) == null && slots.compareAndSet(i, null, buf)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void clearSlots(AtomicReferenceArray<byte[]> slots) {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, null);
+        }
+    }
+
+    /** Number of chunks allocated because none was cached. */
+    public long getAllocationCount() {
+        return mAllocationCount.get();
+    }
+
+    /** Number of chunks served from the calling thread's cache or from the shared slots. */
+    public long getHitCount() {
+        return mThreadHitCount.get() + mSharedHitCount.get();
+    }
+
+    /** Number of chunks served from the shared slots. */
+    public long getSharedHitCount() {
+        return mSharedHitCount.get();
+    }
+
+    /** Number of released chunks left to the garbage collector because the pool was full. */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ByteArrayPool{" + (mChunkSize / 1024) + "KB"
+                + ", allocations=" + getAllocationCount()
+                + ", hits=" + getHitCount()
+                + ", sharedHits=" + getSharedHitCount()
+                + ", dropped=" + getDroppedCount()
+                + '}';
+    }
 }
@@ -0,0 +1,633 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.apps.common;
+
+import android.annotation.Nullable;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.VisibleForTesting;
+
+import com.android.car.apps.common.util.CarAppsIOUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size bounded LRU cache of encoded images stored in the application's cache directory. It sits
+ * between the memory caches of {@link BitmapDownloader} / {@link DrawableDownloader} and the
+ * network, so that remote images survive a process restart.
+ * <p>
+ * The LRU order is persisted in a journal file ({@link #JOURNAL_FILE}), one operation per line:
+ * <li>CLEAN name size [etag lastModified validatedTime]: an entry was written, or its
+ * {@link Metadata} was updated</li>
+ * <li>READ name: an entry was accessed</li>
+ * <li>REMOVE name: an entry was deleted</li>
+ * <p>
+ * The journal is replayed when the cache is first used and compacted when it accumulates too many
+ * redundant lines. Entry names are hashes of {@link BitmapWorkerOptions#getCacheKey()}.
+ * <p>
+ * All the methods block on disk I/O and must be called from a worker thread.
+ * @hide
+ */
+public class DiskBitmapCache {
+
+    private static final String TAG = "DiskBitmapCache";
+
+    private static final boolean DEBUG = false;
+
+    private static final String CACHE_DIR = "car_apps_bitmaps";
+    static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final String MAGIC = "com.android.car.apps.common.DiskBitmapCache";
+    private static final String VERSION = "1";
+
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+
+    // rebuild the journal when it has this many lines that don't describe a live entry
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private static final int MB = 1024 * 1024;
+
+    // journal value of absent metadata fields
+    private static final String NONE = "-";
+
+    private static volatile DiskBitmapCache sInstance;
+
+    private static final Object sInstanceLock = new Object();
+
+    /**
+     * get the singleton DiskBitmapCache for the application
+     */
+    public static DiskBitmapCache getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (sInstanceLock) {
+                if (sInstance == null) {
+                    long maxSize = (long) context.getResources().getInteger(
+                            R.integer.bitmap_disk_cache_max_size_mb) * MB;
+                    sInstance = new DiskBitmapCache(
+                            new File(context.getApplicationContext().getCacheDir(), CACHE_DIR),
+                            maxSize);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * HTTP validators of an entry, used by {@link RemoteImageFetcher} to revalidate it with the
+     * server instead of downloading it again.
+     */
+    public static final class Metadata {
+        @Nullable
+        private final String mETag;
+        @Nullable
+        private final String mLastModified;
+        private final long mValidatedTime;
+
+        /**
+         * @param eTag value of the ETag response header, or null.
+         * @param lastModified value of the Last-Modified response header, or null.
+         * @param validatedTime when the entry was last known to be up to date, in milliseconds
+         *                      since the epoch.
+         */
+        public Metadata(@Nullable String eTag, @Nullable String lastModified,
+                long validatedTime) {
+            mETag = eTag;
+            mLastModified = lastModified;
+            mValidatedTime = validatedTime;
+        }
+
+        @Nullable
+        public String getETag() {
+            return mETag;
+        }
+
+        @Nullable
+        public String getLastModified() {
+            return mLastModified;
+        }
+
+        public long getValidatedTime() {
+            return mValidatedTime;
+        }
+
+        /** Returns a copy validated at the given time. */
+        public Metadata withValidatedTime(long validatedTime) {
+            return new Metadata(mETag, mLastModified, validatedTime);
+        }
+    }
+
+    private static final class Entry {
+        final long mSize;
+        @Nullable
+        final Metadata mMetadata;
+
+        Entry(long size, @Nullable Metadata metadata) {
+            mSize = size;
+            mMetadata = metadata;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxSize;
+
+    // entry name -> entry, in access order
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(0, 0.75f, true);
+    private long mSize;
+    private int mRedundantOpCount;
+    private Writer mJournalWriter;
+    private boolean mInitialized;
+
+    DiskBitmapCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns a stream over the cached bytes for the given key, or null if there is no entry.
+     * The caller must close the stream.
+     */
+    @Nullable
+    public synchronized InputStream get(String key) {
+        if (!ensureInitialized()) {
+            return null;
+        }
+        String name = getEntryName(key);
+        // get() rather than containsKey() to move the entry to the end of the LRU order
+        if (mEntries.get(name) == null) {
+            return null;
+        }
+        try {
+            InputStream in = new FileInputStream(getEntryFile(name));
+            mRedundantOpCount++;
+            appendJournal(READ + ' ' + name);
+            compactJournalIfNeeded();
+            return in;
+        } catch (FileNotFoundException e) {
+            // somebody wiped our cache directory behind our back
+            Log.w(TAG, "Entry file for " + key + " is gone");
+            removeEntry(name);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the file holding the cached bytes for the given key, or null if there is no entry.
+     * The file may be deleted by a later eviction, so callers should read it right away.
+     */
+    @Nullable
+    public synchronized File getFile(String key) {
+        if (!ensureInitialized()) {
+            return null;
+        }
+        String name = getEntryName(key);
+        if (mEntries.get(name) == null) {
+            return null;
+        }
+        File file = getEntryFile(name);
+        if (!file.exists()) {
+            Log.w(TAG, "Entry file for " + key + " is gone");
+            removeEntry(name);
+            return null;
+        }
+        mRedundantOpCount++;
+        appendJournal(READ + ' ' + name);
+        compactJournalIfNeeded();
+        return file;
+    }
+
+    /**
+     * Returns whether the cache directory and its journal could be set up. When they can't, the
+     * cache is empty and {@link #put} fails.
+     */
+    public synchronized boolean isAvailable() {
+        return ensureInitialized();
+    }
+
+    /**
+     * Returns whether an entry exists for the given key, without updating the LRU order.
+     */
+    public synchronized boolean contains(String key) {
+        return ensureInitialized() && mEntries.containsKey(getEntryName(key));
+    }
+
+    /**
+     * Returns the metadata of the entry for the given key, or null if there is no entry or it
+     * has no metadata. Doesn't update the LRU order.
+     */
+    @Nullable
+    public synchronized Metadata getMetadata(String key) {
+        if (!ensureInitialized()) {
+            return null;
+        }
+        Entry entry = mEntries.get(getEntryName(key));
+        return entry != null ? entry.mMetadata : null;
+    }
+
+    /**
+     * Replaces the metadata of the entry for the given key, typically after the server confirmed
+     * it is up to date. Does nothing if there is no entry.
+     */
+    public synchronized void setMetadata(String key, @Nullable Metadata metadata) {
+        if (!ensureInitialized()) {
+            return;
+        }
+        String name = getEntryName(key);
+        Entry entry = mEntries.get(name);
+        if (entry != null) {
+            mEntries.put(name, new Entry(entry.mSize, metadata));
+            mRedundantOpCount++;
+            appendJournal(cleanLine(name, entry.mSize, metadata));
+            compactJournalIfNeeded();
+        }
+    }
+
+    /**
+     * Copies the given stream into the cache, replacing any previous entry for the key. The stream
+     * is fully consumed but not closed. Nothing is stored if copying fails.
+     */
+    public void put(String key, InputStream in) throws IOException {
+        put(key, in, null);
+    }
+
+    /**
+     * Same as {@link #put(String, InputStream)}, also storing the given metadata with the entry.
+     */
+    public void put(String key, InputStream in, @Nullable Metadata metadata) throws IOException {
+        String name = getEntryName(key);
+        File tmp;
+        synchronized (this) {
+            if (!ensureInitialized()) {
+                throw new IOException("Disk cache unavailable");
+            }
+            tmp = File.createTempFile(name, TMP_SUFFIX, mDirectory);
+        }
+        // copy outside of the lock, this is where we wait for the network.
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            CarAppsIOUtils.copy(in, out);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        synchronized (this) {
+            if (!mInitialized || !tmp.exists()) {
+                // evicted all while we were copying
+                tmp.delete();
+                return;
+            }
+            File file = getEntryFile(name);
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Couldn't rename " + tmp + " to " + file);
+            }
+            long size = file.length();
+            Entry previous = mEntries.put(name, new Entry(size, metadata));
+            if (previous != null) {
+                mSize -= previous.mSize;
+                mRedundantOpCount++;
+            }
+            mSize += size;
+            appendJournal(cleanLine(name, size, metadata));
+            if (DEBUG) {
+                Log.d(TAG, "put " + key + " size " + size + " total " + mSize);
+            }
+            trimToSize(mMaxSize);
+            compactJournalIfNeeded();
+        }
+    }
+
+    /**
+     * Removes the entry for the given key, if any.
+     */
+    public synchronized void remove(String key) {
+        if (ensureInitialized()) {
+            removeEntry(getEntryName(key));
+        }
+    }
+
+    /**
+     * Removes the least recently used entries until the cache uses at most maxSize bytes.
+     */
+    public synchronized void trimToSize(long maxSize) {
+        if (!ensureInitialized()) {
+            return;
+        }
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        ArrayList<String> evicted = new ArrayList<>();
+        long size = mSize;
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, Entry> entry = it.next();
+            evicted.add(entry.getKey());
+            size -= entry.getValue().mSize;
+        }
+        for (int i = 0, c = evicted.size(); i < c; i++) {
+            removeEntry(evicted.get(i));
+        }
+    }
+
+    /**
+     * Deletes all the entries and the journal.
+     */
+    public synchronized void evictAll() {
+        closeJournal();
+        deleteContents(mDirectory);
+        mEntries.clear();
+        mSize = 0;
+        mRedundantOpCount = 0;
+        mInitialized = false;
+    }
+
+    public synchronized long size() {
+        return ensureInitialized() ? mSize : 0;
+    }
+
+    public long maxSize() {
+        return mMaxSize;
+    }
+
+    @VisibleForTesting
+    synchronized int getRedundantOpCount() {
+        return mRedundantOpCount;
+    }
+
+    private void removeEntry(String name) {
+        Entry entry = mEntries.remove(name);
+        if (entry == null) {
+            return;
+        }
+        mSize -= entry.mSize;
+        File file = getEntryFile(name);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Couldn't delete " + file);
+        }
+        mRedundantOpCount += 2;
+        appendJournal(REMOVE + ' ' + name);
+    }
+
+    private File getEntryFile(String name) {
+        return new File(mDirectory, name);
+    }
+
+    private boolean ensureInitialized() {
+        if (mInitialized) {
+            return true;
+        }
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Couldn't create " + mDirectory);
+            return false;
+        }
+        File journal = new File(mDirectory, JOURNAL_FILE);
+        if (journal.exists()) {
+            try {
+                readJournal(journal);
+                mJournalWriter = new BufferedWriter(new FileWriter(journal, true));
+            } catch (IOException e) {
+                Log.w(TAG, "Journal is corrupt, wiping the disk cache: " + e);
+                closeJournal();
+                deleteContents(mDirectory);
+                mEntries.clear();
+                mSize = 0;
+            }
+        }
+        if (mJournalWriter == null) {
+            try {
+                rebuildJournal();
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't create journal in " + mDirectory, e);
+                return false;
+            }
+        }
+        deleteOrphanFiles();
+        mInitialized = true;
+        trimToSize(mMaxSize);
+        return true;
+    }
+
+    private void readJournal(File journal) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(journal))) {
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                throw new IOException("unexpected journal header");
+            }
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineCount++;
+                String[] parts = line.split(" ");
+                if (parts.length < 2) {
+                    // the last line may be truncated if we were killed while writing it.
+                    continue;
+                }
+                String name = parts[1];
+                if (CLEAN.equals(parts[0]) && (parts.length == 3 || parts.length == 6)) {
+                    long size;
+                    Metadata metadata = null;
+                    try {
+                        size = Long.parseLong(parts[2]);
+                        if (parts.length == 6) {
+                            metadata = new Metadata(decodeField(parts[3]), decodeField(parts[4]),
+                                    Long.parseLong(parts[5]));
+                        }
+                    } catch (IllegalArgumentException e) {
+                        // bad number or bad escape
+                        continue;
+                    }
+                    Entry previous = mEntries.put(name, new Entry(size, metadata));
+                    if (previous != null) {
+                        mSize -= previous.mSize;
+                    }
+                    mSize += size;
+                } else if (READ.equals(parts[0])) {
+                    mEntries.get(name);
+                } else if (REMOVE.equals(parts[0])) {
+                    Entry previous = mEntries.remove(name);
+                    if (previous != null) {
+                        mSize -= previous.mSize;
+                    }
+                }
+            }
+            // drop the entries whose file was deleted behind our back
+            Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> entry = it.next();
+                if (!getEntryFile(entry.getKey()).exists()) {
+                    mSize -= entry.getValue().mSize;
+                    it.remove();
+                }
+            }
+            // only counted now, so that the lines of the dropped entries are redundant too
+            mRedundantOpCount = lineCount - mEntries.size();
+        }
+    }
+
+    private void rebuildJournal() throws IOException {
+        closeJournal();
+        File tmp = new File(mDirectory, JOURNAL_FILE_TMP);
+        try (Writer writer = new BufferedWriter(new FileWriter(tmp))) {
+            writer.write(MAGIC);
+            writer.write('\n');
+            writer.write(VERSION);
+            writer.write('\n');
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                writer.write(cleanLine(entry.getKey(), entry.getValue().mSize,
+                        entry.getValue().mMetadata));
+                writer.write('\n');
+            }
+        }
+        File journal = new File(mDirectory, JOURNAL_FILE);
+        if (!tmp.renameTo(journal)) {
+            throw new IOException("Couldn't rename " + tmp + " to " + journal);
+        }
+        mJournalWriter = new BufferedWriter(new FileWriter(journal, true));
+        mRedundantOpCount = 0;
+    }
+
+    private static String cleanLine(String name, long size, @Nullable Metadata metadata) {
+        StringBuilder line = new StringBuilder(CLEAN).append(' ').append(name).append(' ')
+                .append(size);
+        if (metadata != null) {
+            line.append(' ').append(encodeField(metadata.getETag()))
+                    .append(' ').append(encodeField(metadata.getLastModified()))
+                    .append(' ').append(metadata.getValidatedTime());
+        }
+        return line.toString();
+    }
+
+    // header values may contain spaces, which separate the journal fields
+    private static String encodeField(@Nullable String value) {
+        if (value == null) {
+            return NONE;
+        }
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Nullable
+    private static String decodeField(String field) {
+        if (NONE.equals(field)) {
+            return null;
+        }
+        try {
+            return URLDecoder.decode(field, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private void compactJournalIfNeeded() {
+        if (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && mRedundantOpCount >= mEntries.size()) {
+            try {
+                rebuildJournal();
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't compact journal", e);
+            }
+        }
+    }
+
+    private void appendJournal(String line) {
+        if (mJournalWriter == null) {
+            return;
+        }
+        try {
+            mJournalWriter.write(line);
+            mJournalWriter.write('\n');
+            mJournalWriter.flush();
+        } catch (IOException e) {
+            // the in memory state is still valid, the journal will be rebuilt from it.
+            Log.w(TAG, "Couldn't write journal: " + e);
+            mRedundantOpCount = REDUNDANT_OP_COMPACT_THRESHOLD;
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournalWriter != null) {
+            try {
+                mJournalWriter.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't close journal: " + e);
+            }
+            mJournalWriter = null;
+        }
+    }
+
+    private void deleteOrphanFiles() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!JOURNAL_FILE.equals(name) && !mEntries.containsKey(name)) {
+                file.delete();
+            }
+        }
+    }
+
+    private static void deleteContents(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                Log.w(TAG, "Couldn't delete " + file);
+            }
+        }
+    }
+
+    private static String getEntryName(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16))
+                        .append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
@@ -15,7 +15,6 @@
  */
 package com.android.car.apps.common;
 
-import android.app.ActivityManager;
 import android.content.Context;
 import android.content.Intent.ShortcutIconResource;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -23,9 +22,10 @@ import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
-import android.util.LruCache;
 import android.widget.ImageView;
 
+import com.android.car.apps.common.imaging.ImageEngine;
+
 import java.lang.ref.SoftReference;
 import java.util.ArrayList;
 import java.util.concurrent.Executor;
@@ -44,18 +44,12 @@ import java.util.concurrent.Executors;
  * If the URI does not point to a bitmap (e.g. point to a drawable xml, we won't cache it and we
  * directly return a regular Drawable).
  */
-public class DrawableDownloader {
+public class DrawableDownloader implements ImageMemoryTrimmer.Trimmable {
 
     private static final String TAG = "DrawableDownloader";
 
     private static final boolean DEBUG = false;
 
-    private static final int CORE_POOL_SIZE = 5;
-
-    // thread pool for loading non android-resources such as http,  content
-    private static final Executor BITMAP_DOWNLOADER_THREAD_POOL_EXECUTOR =
-            Executors.newFixedThreadPool(CORE_POOL_SIZE);
-
     private static final int CORE_RESOURCE_POOL_SIZE = 1;
 
     // thread pool for loading android resources,  we use separate thread pool so
@@ -63,11 +57,8 @@ public class DrawableDownloader {
     private static final Executor BITMAP_RESOURCE_DOWNLOADER_THREAD_POOL_EXECUTOR =
             Executors.newFixedThreadPool(CORE_RESOURCE_POOL_SIZE);
 
-    // 1/4 of max memory is used for bitmap mem cache
-    private static final int MEM_TO_CACHE = 4;
-
-    // hard limit for bitmap mem cache in MB
-    private static final int CACHE_HARD_LIMIT = 32;
+    // 1/4 of the bitmap mem cache size is used for recycled bitmaps
+    private static final int RECYCLE_POOL_TO_CACHE = 4;
 
     /**
      * bitmap cache item structure saved in LruCache
@@ -142,8 +133,11 @@ public class DrawableDownloader {
     }
 
     private Context mContext;
-    private LruCache<String, BitmapItem> mMemoryCache;
-    private RecycleBitmapPool mRecycledBitmaps;
+    // Part of the memory cache shared by the image loaders, see ImageEngine.
+    private final ImageEngine.Cache<String, BitmapItem> mMemoryCache;
+    private final RecycleBitmapPool mRecycledBitmaps;
+    // runs the loads of non android-resources such as http,  content
+    private final ImageEngine mEngine;
 
     private static DrawableDownloader sBitmapDownloader;
 
@@ -176,37 +170,26 @@ public class DrawableDownloader {
 
     private DrawableDownloader(Context context) {
         mContext = context;
-        int memClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE))
-                .getMemoryClass();
-        memClass = memClass / MEM_TO_CACHE;
-        if (memClass > CACHE_HARD_LIMIT) {
-            memClass = CACHE_HARD_LIMIT;
-        }
-        int cacheSize = 1024 * 1024 * memClass;
-        mMemoryCache = new LruCache<String, BitmapItem>(cacheSize) {
-            @Override
-            protected int sizeOf(String key, BitmapItem bitmap) {
-                return bitmap.mByteCount;
-            }
-            @Override
-            protected void entryRemoved(
-                    boolean evicted, String key, BitmapItem oldValue, BitmapItem newValue) {
-                if (evicted) {
-                    oldValue.clear();
-                }
-            }
-        };
-        mRecycledBitmaps = new RecycleBitmapPool();
+        ImageEngine engine = ImageEngine.getInstance(context);
+        mMemoryCache = engine.createCache(TAG, bitmap -> bitmap.mByteCount,
+                (key, evicted) -> evicted.clear());
+        mEngine = engine;
+        mRecycledBitmaps = new RecycleBitmapPool(engine.maxSize() / RECYCLE_POOL_TO_CACHE);
+        ImageMemoryTrimmer.getInstance(context).register(this);
     }
 
     /**
-     * trim memory cache to 0~1 * maxSize
+     * trim the bitmaps of this downloader in the shared memory cache and the recycled bitmaps to
+     * 0~1 * maxSize
      */
+    @Override
     public void trimTo(float amount) {
         if (amount == 0f) {
             mMemoryCache.evictAll();
+            mRecycledBitmaps.clear();
         } else {
             mMemoryCache.trimToSize((int) (amount * mMemoryCache.maxSize()));
+            mRecycledBitmaps.trimToSize((int) (amount * mRecycledBitmaps.maxSize()));
         }
     }
 
@@ -267,7 +250,7 @@ public class DrawableDownloader {
                 }
             };
             imageView.setTag(R.id.imageDownloadTask, new SoftReference<DrawableLoader>(task));
-            scheduleTask(task, options);
+            scheduleTask(task, options, () -> task.cancel(false));
         }
     }
 
@@ -304,14 +287,27 @@ public class DrawableDownloader {
             }
         };
         callback.mTask = new SoftReference<DrawableLoader>(task);
-        scheduleTask(task, options);
+        scheduleTask(task, options, () -> {
+            if (!task.isCancelled()) {
+                task.cancel(false);
+                callback.mTask = null;
+                callback.onBitmapRetrieved(null);
+            }
+        });
     }
 
-    private static void scheduleTask(DrawableLoader task, BitmapWorkerOptions options) {
+    /**
+     * Runs the task, on the shared threads at the priority of the options unless it loads a
+     * resource. onDropped is run on the UI thread if the task is dropped, see
+     * {@link BitmapWorkerOptions.Builder#priority}.
+     */
+    private void scheduleTask(DrawableLoader task, BitmapWorkerOptions options,
+            Runnable onDropped) {
         if (options.isFromResource()) {
             task.executeOnExecutor(BITMAP_RESOURCE_DOWNLOADER_THREAD_POOL_EXECUTOR, options);
         } else {
-            task.executeOnExecutor(BITMAP_DOWNLOADER_THREAD_POOL_EXECUTOR, options);
+            task.executeOnExecutor(runnable -> mEngine.execute(runnable, onDropped,
+                    options.getPriority()), options);
         }
     }
 
@@ -24,20 +24,28 @@ import android.content.res.Resources;
 import android.content.res.Resources.NotFoundException;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.ImageDecoder;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.util.Log;
+import android.util.Size;
 import android.util.TypedValue;
 import android.widget.ImageView;
 
+import com.android.car.apps.common.imaging.DecodeTable;
+import com.android.car.apps.common.imaging.ImageEngine;
+
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.util.concurrent.CancellationException;
 
 /**
  * AsyncTask which loads a bitmap.
@@ -54,14 +62,20 @@ class DrawableLoader extends AsyncTask<BitmapWorkerOptions, Void, Drawable> {
 
     private static final boolean DEBUG = false;
 
-    private static final int SOCKET_TIMEOUT = 10000;
-    private static final int READ_TIMEOUT = 10000;
+    // Bytes buffered by DECODE_MODE_HEADER_PROBE to read the image bounds, enough for JPEG
+    // headers carrying a full EXIF segment (up to 64KB).
+    private static final int HEADER_PROBE_LIMIT = 8 * ByteArrayPool.CHUNK16K;
 
     private final WeakReference<ImageView> mImageView;
     private int mOriginalWidth;
     private int mOriginalHeight;
     private final RecycleBitmapPool mRecycledBitmaps;
 
+    /** Opens the source of a decode again, when its stream can't be rewound. */
+    private interface StreamOpener {
+        InputStream open() throws IOException;
+    }
+
     private final RefcountObject.RefcountListener mRefcountListener =
             new RefcountObject.RefcountListener() {
         @Override
@@ -103,9 +117,11 @@ class DrawableLoader extends AsyncTask<BitmapWorkerOptions, Void, Drawable> {
                             UriUtils.getIconResource(workerOptions.getResourceUri()),
                             workerOptions);
                 } else if (UriUtils.isWebUri(workerOptions.getResourceUri())) {
-                    return getBitmapFromHttp(workerOptions);
+                    Drawable shared = getSharedDecode(workerOptions);
+                    return shared != null ? shared : getBitmapFromHttp(workerOptions);
                 } else if (UriUtils.isContentUri(workerOptions.getResourceUri())) {
-                    return getBitmapFromContent(workerOptions);
+                    Drawable shared = getSharedDecode(workerOptions);
+                    return shared != null ? shared : getBitmapFromContent(workerOptions);
                 } else if (UriUtils.isAccountImageUri(workerOptions.getResourceUri())) {
                     return getAccountImage(workerOptions);
                 } else {
@@ -155,7 +171,14 @@ class DrawableLoader extends AsyncTask<BitmapWorkerOptions, Void, Drawable> {
             Object drawable = loadDrawable(outputOptions.getContext(), iconResource);
             if (drawable instanceof InputStream) {
                 // Most of these are bitmaps, so resize properly.
-                return decodeBitmap((InputStream)drawable, outputOptions);
+                return decodeBitmap((InputStream)drawable, () -> {
+                    try {
+                        Object reloaded = loadDrawable(outputOptions.getContext(), iconResource);
+                        return reloaded instanceof InputStream ? (InputStream) reloaded : null;
+                    } catch (NameNotFoundException e) {
+                        throw new IOException(e);
+                    }
+                }, outputOptions);
             } else if (drawable instanceof Drawable){
                 Drawable d = (Drawable) drawable;
                 mOriginalWidth = d.getIntrinsicWidth();
@@ -174,22 +197,31 @@ class DrawableLoader extends AsyncTask<BitmapWorkerOptions, Void, Drawable> {
         }
     }
 
-    private Drawable decodeBitmap(InputStream in, BitmapWorkerOptions options)
-            throws IOException {
+    /**
+     * Decodes {@code in}, reading the bounds first. If the header didn't fit in what
+     * {@link BitmapWorkerOptions#DECODE_MODE_HEADER_PROBE} buffers, the source is opened again
+     * with {@code reopener} to decode it. It is also opened again to retry a decode which failed,
+     * eg: because the recycled bitmap didn't fit.
+     */
+    private Drawable decodeBitmap(InputStream in, StreamOpener reopener,
+            BitmapWorkerOptions options) throws IOException {
         CachedInputStream bufferedStream = null;
         BitmapFactory.Options bitmapOptions = null;
+        // In DECODE_MODE_BUFFERED, let the bufferedStream be able to mark unlimited bytes up to
+        // full stream length. Otherwise only buffer what is needed to read the header.
+        // The value that BitmapFactory uses (1024) is too small for detecting bounds
+        final int markLimit = options.getDecodeMode() == BitmapWorkerOptions.DECODE_MODE_BUFFERED
+                ? Integer.MAX_VALUE : HEADER_PROBE_LIMIT;
         try {
             bufferedStream = new CachedInputStream(in);
-            // Let the bufferedStream be able to mark unlimited bytes up to full stream length.
-            // The value that BitmapFactory uses (1024) is too small for detecting bounds
-            bufferedStream.setOverrideMarkLimit(Integer.MAX_VALUE);
+            bufferedStream.setOverrideMarkLimit(markLimit);
             bitmapOptions = new BitmapFactory.Options();
             bitmapOptions.inJustDecodeBounds = true;
             if (options.getBitmapConfig() != null) {
                 bitmapOptions.inPreferredConfig = options.getBitmapConfig();
             }
             bitmapOptions.inTempStorage = ByteArrayPool.get16KBPool().allocateChunk();
-            bufferedStream.mark(Integer.MAX_VALUE);
+            bufferedStream.mark(markLimit);
             BitmapFactory.decodeStream(bufferedStream, null, bitmapOptions);
 
             mOriginalWidth = bitmapOptions.outWidth;
@@ -225,19 +257,41 @@ class DrawableLoader extends AsyncTask<BitmapWorkerOptions, Void, Drawable> {
             }
 
             // Reset buffer to original position and disable the overrideMarkLimit
-            bufferedStream.reset();
+            try {
+                bufferedStream.reset();
+            } catch (IOException e) {
+                Log.w(TAG, "Image header is larger than " + markLimit + " bytes, reopening");
+                bufferedStream.close();
+                bufferedStream = null;
+                InputStream reopened = reopener.open();
+                if (reopened == null) {
+                    return null;
+                }
+                bufferedStream = new CachedInputStream(reopened);
+            }
             bufferedStream.setOverrideMarkLimit(0);
             Bitmap bitmap = null;
             try {
                 bitmapOptions.inJustDecodeBounds = false;
                 bitmapOptions.inSampleSize = scale;
                 bitmapOptions.inMutable = true;
+                // round up, the pool hands out allocations at least as large as requested.
                 bitmapOptions.inBitmap = mRecycledBitmaps.getRecycledBitmap(
-                        mOriginalWidth / scale, mOriginalHeight / scale);
+                        (mOriginalWidth + scale - 1) / scale,
+                        (mOriginalHeight + scale - 1) / scale,
+                        bitmapOptions.inPreferredConfig);
                 bitmap = BitmapFactory.decodeStream(bufferedStream, null, bitmapOptions);
             } catch (RuntimeException ex) {
                 Log.e(TAG, "RuntimeException" + ex + ", trying decodeStream again");
-                bufferedStream.reset();
+                // The stream isn't marked anymore, so read the source again, typically without
+                // the recycled bitmap the decoder rejected.
+                bufferedStream.close();
+                bufferedStream = null;
+                InputStream reopened = reopener.open();
+                if (reopened == null) {
+                    return null;
+                }
+                bufferedStream = new CachedInputStream(reopened);
                 bufferedStream.setOverrideMarkLimit(0);
                 bitmapOptions.inBitmap = null;
                 bitmap = BitmapFactory.decodeStream(bufferedStream, null, bitmapOptions);
@@ -246,12 +300,7 @@ class DrawableLoader extends AsyncTask<BitmapWorkerOptions, Void, Drawable> {
                 Log.d(TAG, "bitmap was null");
                 return null;
             }
-            RefcountObject<Bitmap> object = new RefcountObject<Bitmap>(bitmap);
-            object.addRef();
-            object.setRefcountListener(mRefcountListener);
-            RefcountBitmapDrawable d = new RefcountBitmapDrawable(
-                    options.getContext().getResources(), object);
-            return d;
+            return createRefcountDrawable(bitmap, options);
         } finally {
             Log.w(TAG, "couldn't load bitmap, releasing resources");
             if (bitmapOptions != null) {
@@ -263,18 +312,108 @@ class DrawableLoader extends AsyncTask<BitmapWorkerOptions, Void, Drawable> {
         }
     }
 
+    /**
+     * Decodes the source in a single pass at the largest size fitting the requested bounds,
+     * without buffering the encoded image. Such decodes can't reuse a recycled bitmap, but their
+     * bitmaps still go back to the pool once released.
+     */
+    private Drawable decodeSource(ImageDecoder.Source source, final BitmapWorkerOptions options)
+            throws IOException {
+        try {
+            Bitmap bitmap = ImageDecoder.decodeBitmap(source, (decoder, info, src) -> {
+                if (isCancelled()) throw new CancellationException();
+                mOriginalWidth = info.getSize().getWidth();
+                mOriginalHeight = info.getSize().getHeight();
+                // Software and mutable, so that the bitmap can be reused by RecycleBitmapPool.
+                decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+                decoder.setMutableRequired(true);
+                if (options.getBitmapConfig() == Bitmap.Config.RGB_565) {
+                    decoder.setMemorySizePolicy(ImageDecoder.MEMORY_POLICY_LOW_RAM);
+                }
+                int maxW = options.getWidth();
+                int maxH = options.getHeight();
+                if (mOriginalWidth > maxW || mOriginalHeight > maxH) {
+                    float scale = Math.min(maxW / (float) mOriginalWidth,
+                            maxH / (float) mOriginalHeight);
+                    decoder.setTargetSize(Math.max(1, Math.round(scale * mOriginalWidth)),
+                            Math.max(1, Math.round(scale * mOriginalHeight)));
+                }
+            });
+            return createRefcountDrawable(bitmap, options);
+        } catch (CancellationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a decode of the uri shared by another loader (see {@link DecodeTable}), or null.
+     * The bitmaps of this loader go back to the {@link RecycleBitmapPool} once released, so they
+     * aren't shared in turn.
+     */
+    private Drawable getSharedDecode(BitmapWorkerOptions options) {
+        Bitmap.Config config = options.getBitmapConfig() != null
+                ? options.getBitmapConfig() : Bitmap.Config.ARGB_8888;
+        Size maxSize = new Size(options.getWidth(), options.getHeight());
+        DecodeTable decodes = ImageEngine.getInstance(options.getContext()).getDecodeTable();
+        try (DecodeTable.Decode decode = decodes.open(options.getResourceUri(), config,
+                sourceSize -> DecodeTable.fitSize(sourceSize, maxSize), false)) {
+            Bitmap shared = decode.getBitmap();
+            if (shared == null) {
+                return null;
+            }
+            mOriginalWidth = decode.getSourceSize().getWidth();
+            mOriginalHeight = decode.getSourceSize().getHeight();
+            // A plain BitmapDrawable, so that the shared bitmap never goes to the pool.
+            return new BitmapDrawable(options.getContext().getResources(), shared);
+        }
+    }
+
+    private static boolean useSinglePassDecoder(BitmapWorkerOptions options) {
+        return options.getDecodeMode() == BitmapWorkerOptions.DECODE_MODE_HEADER_PROBE
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P;
+    }
+
+    private Drawable createRefcountDrawable(Bitmap bitmap, BitmapWorkerOptions options) {
+        RefcountObject<Bitmap> object = new RefcountObject<Bitmap>(bitmap);
+        object.addRef();
+        object.setRefcountListener(mRefcountListener);
+        return new RefcountBitmapDrawable(options.getContext().getResources(), object);
+    }
+
+    private Drawable decodeDiskCacheEntry(DiskBitmapCache diskCache, BitmapWorkerOptions options)
+            throws IOException {
+        String key = options.getCacheKey();
+        if (useSinglePassDecoder(options)) {
+            File file = diskCache.getFile(key);
+            if (file != null) {
+                return decodeSource(ImageDecoder.createSource(file), options);
+            }
+        } else {
+            InputStream in = diskCache.get(key);
+            if (in != null) {
+                return decodeBitmap(in, () -> diskCache.get(key), options);
+            }
+        }
+        Log.w(TAG, "Disk cache dropped " + key);
+        return null;
+    }
+
     private Drawable getBitmapFromHttp(BitmapWorkerOptions options) throws IOException {
+        RemoteImageFetcher fetcher = RemoteImageFetcher.getInstance(options.getContext());
         URL url = new URL(options.getResourceUri().toString());
         if (DEBUG) {
             Log.d(TAG, "Loading " + url);
         }
         try {
-            // TODO use volley for better disk cache
-            URLConnection connection = url.openConnection();
-            connection.setConnectTimeout(SOCKET_TIMEOUT);
-            connection.setReadTimeout(READ_TIMEOUT);
-            InputStream in = connection.getInputStream();
-            return decodeBitmap(in, options);
+            if (options.isDiskCacheEnabled()) {
+                // Save (or revalidate) the encoded image first, then decode from the disk copy.
+                if (fetcher.fetchToDiskCache(options.getCacheKey(), url) != null) {
+                    return decodeDiskCacheEntry(
+                            DiskBitmapCache.getInstance(options.getContext()), options);
+                }
+                Log.w(TAG, "Disk cache unavailable for " + url + ", streaming it");
+            }
+            return decodeBitmap(fetcher.openStream(url), () -> fetcher.openStream(url), options);
         } catch (SocketTimeoutException e) {
             Log.e(TAG, "loading " + url + " timed out");
         }
@@ -286,11 +425,18 @@ class DrawableLoader extends AsyncTask<BitmapWorkerOptions, Void, Drawable> {
         Uri resourceUri = options.getResourceUri();
         if (resourceUri != null) {
             try {
+                if (useSinglePassDecoder(options)) {
+                    return decodeSource(ImageDecoder.createSource(
+                            options.getContext().getContentResolver(), resourceUri), options);
+                }
                 InputStream bitmapStream =
                         options.getContext().getContentResolver().openInputStream(resourceUri);
 
                 if (bitmapStream != null) {
-                    return decodeBitmap(bitmapStream, options);
+                    return decodeBitmap(bitmapStream,
+                            () -> options.getContext().getContentResolver()
+                                    .openInputStream(resourceUri),
+                            options);
                 } else {
                     Log.w(TAG, "Content provider returned a null InputStream when trying to " +
                             "open resource.");
@@ -375,6 +521,8 @@ class DrawableLoader extends AsyncTask<BitmapWorkerOptions, Void, Drawable> {
                                     .height(options.getHeight())
                                     .cacheFlag(options.getCacheFlag())
                                     .bitmapConfig(options.getBitmapConfig())
+                                    .sizeBuckets(options.getSizeBuckets())
+                                    .decodeMode(options.getDecodeMode())
                                     .resource(Uri.parse(picUriString));
                     return DrawableDownloader.getInstance(context)
                             .loadBitmapBlocking(optionBuilder.build());
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.apps.common;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Registry of the image memory caches of the application. It listens to
+ * {@link ComponentCallbacks2#onTrimMemory} and trims every registered cache by the same
+ * proportion, from keeping 75% of its budget when the system starts running low to evicting
+ * everything when the process is about to be killed. The shared {@link ByteArrayPool}s are
+ * cleared as well under serious pressure.
+ * <p>
+ * Caches are held weakly, so registering doesn't keep them alive.
+ * @hide
+ */
+public class ImageMemoryTrimmer implements ComponentCallbacks2 {
+
+    private static final String TAG = "ImageMemoryTrimmer";
+    private static final boolean DEBUG = false;
+
+    // at or below this amount, the byte[] pools are dropped too
+    private static final float CLEAR_BYTE_ARRAY_POOLS_AMOUNT = 0.5f;
+
+    /** A memory cache that can give memory back. */
+    public interface Trimmable {
+        /**
+         * Trims the cache to the given proportion (0~1) of its maximum size, 0 evicts everything.
+         */
+        void trimTo(float amount);
+    }
+
+    private static volatile ImageMemoryTrimmer sInstance;
+
+    private static final Object sInstanceLock = new Object();
+
+    /**
+     * get the singleton ImageMemoryTrimmer, registered with the application context
+     */
+    public static ImageMemoryTrimmer getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (sInstanceLock) {
+                if (sInstance == null) {
+                    sInstance = new ImageMemoryTrimmer();
+                    context.getApplicationContext().registerComponentCallbacks(sInstance);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private final Set<Trimmable> mTrimmables =
+            Collections.newSetFromMap(new WeakHashMap<Trimmable, Boolean>());
+
+    private ImageMemoryTrimmer() {
+    }
+
+    /** Trims the given cache when the system is low on memory, until it is garbage collected. */
+    public synchronized void register(Trimmable trimmable) {
+        mTrimmables.add(trimmable);
+    }
+
+    public synchronized void unregister(Trimmable trimmable) {
+        mTrimmables.remove(trimmable);
+    }
+
+    /** Trims every registered cache to the given proportion of its maximum size. */
+    public void trimTo(float amount) {
+        ArrayList<Trimmable> trimmables;
+        synchronized (this) {
+            trimmables = new ArrayList<>(mTrimmables);
+        }
+        if (DEBUG) {
+            Log.d(TAG, "trimTo " + amount + " " + trimmables.size() + " caches");
+        }
+        for (Trimmable trimmable : trimmables) {
+            trimmable.trimTo(amount);
+        }
+        if (amount <= CLEAR_BYTE_ARRAY_POOLS_AMOUNT) {
+            ByteArrayPool.clearAll();
+        }
+    }
+
+    /**
+     * Returns the proportion of their maximum size the caches should be trimmed to for the given
+     * {@link ComponentCallbacks2} trim level, or 1 if they shouldn't be trimmed.
+     */
+    static float getTrimAmount(int level) {
+        if (level >= TRIM_MEMORY_COMPLETE) {
+            return 0f;
+        } else if (level >= TRIM_MEMORY_MODERATE) {
+            return 0.25f;
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            return 0.5f;
+        } else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            return 0.75f;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0.25f;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            return 0.5f;
+        } else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            return 0.75f;
+        }
+        return 1f;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        float amount = getTrimAmount(level);
+        if (amount < 1f) {
+            trimTo(amount);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        trimTo(0f);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
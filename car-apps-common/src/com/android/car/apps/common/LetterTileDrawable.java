@@ -28,10 +28,17 @@ import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
+import android.util.LruCache;
+
+import java.util.Objects;
 
 /**
  * A drawable that encapsulates all the functionality needed to display a letter tile to
  * represent a contact image.
+ * <p>
+ * Square tiles are rendered once per letter, color and size into a bitmap cache shared by all
+ * the instances, so that long contact lists don't redraw the same text on every row. Instances
+ * can be created and drawn from any thread.
  */
 public class LetterTileDrawable extends Drawable {
     /** Letter tile */
@@ -42,11 +49,11 @@ public class LetterTileDrawable extends Drawable {
     private static Drawable sDefaultPersonAvatar;
     private static Drawable sDefaultBusinessAvatar;
     private static Drawable sDefaultVoicemailAvatar;
+    private static Typeface sTypeface;
+    private static final Object sResourcesLock = new Object();
 
-    /** Reusable components to avoid new allocations */
-    private static final Paint sPaint = new Paint();
-    private static final Rect sRect = new Rect();
-    private static final char[] sFirstChar = new char[1];
+    /** Rendered square tiles, see {@link #getTileBitmap}. */
+    private static LruCache<TileKey, Bitmap> sTileCache;
 
     /** Contact type constants */
     public static final int TYPE_PERSON = 1;
@@ -56,6 +63,11 @@ public class LetterTileDrawable extends Drawable {
 
     private final Paint mPaint;
 
+    /** Reusable components to avoid new allocations */
+    private final Paint mTilePaint = new Paint();
+    private final Rect mRect = new Rect();
+    private final char[] mFirstChar = new char[1];
+
     @Nullable private String mDisplayName;
     private int mColor;
     private int mContactType = TYPE_DEFAULT;
@@ -71,34 +83,49 @@ public class LetterTileDrawable extends Drawable {
         mPaint.setDither(true);
         setScale(0.7f);
 
-        if (sColors == null) {
-            sDefaultColor = res.getColor(R.color.letter_tile_default_color);
-            TypedArray ta = res.obtainTypedArray(R.array.letter_tile_colors);
-            if (ta.length() == 0) {
-                // TODO(dnotario). Looks like robolectric shadow doesn't currently support
-                // obtainTypedArray and always returns length 0 array, which will make some code
-                // below that does a division by length of sColors choke. Workaround by creating
-                // an array of length 1. A more proper fix tracked by b/26518438.
-                sColors = new int[] { sDefaultColor };
-
-            } else {
-                sColors = new int[ta.length()];
-                for (int i = ta.length() - 1; i >= 0; i--) {
-                    sColors[i] = ta.getColor(i, sDefaultColor);
-                }
-                ta.recycle();
+        synchronized (sResourcesLock) {
+            if (sColors == null) {
+                loadResources(res);
             }
+        }
+        mTilePaint.setTypeface(sTypeface);
+        mTilePaint.setTextAlign(Align.CENTER);
+        mTilePaint.setAntiAlias(true);
+    }
+
+    private static void loadResources(Resources res) {
+        sDefaultColor = res.getColor(R.color.letter_tile_default_color);
+        TypedArray ta = res.obtainTypedArray(R.array.letter_tile_colors);
+        if (ta.length() == 0) {
+            // TODO(dnotario). Looks like robolectric shadow doesn't currently support
+            // obtainTypedArray and always returns length 0 array, which will make some code
+            // below that does a division by length of sColors choke. Workaround by creating
+            // an array of length 1. A more proper fix tracked by b/26518438.
+            sColors = new int[] { sDefaultColor };
 
-            sTileFontColor = res.getColor(R.color.letter_tile_font_color);
-            sLetterToTileRatio = res.getFraction(R.fraction.letter_to_tile_ratio, 1, 1);
-            // TODO: get images for business and voicemail
-            sDefaultPersonAvatar = res.getDrawable(R.drawable.ic_person, null /* theme */);
-            sDefaultBusinessAvatar = res.getDrawable(R.drawable.ic_person, null /* theme */);
-            sDefaultVoicemailAvatar = res.getDrawable(R.drawable.ic_person, null /* theme */);
-            sPaint.setTypeface(Typeface.create("sans-serif-light", Typeface.NORMAL));
-            sPaint.setTextAlign(Align.CENTER);
-            sPaint.setAntiAlias(true);
+        } else {
+            int[] colors = new int[ta.length()];
+            for (int i = ta.length() - 1; i >= 0; i--) {
+                colors[i] = ta.getColor(i, sDefaultColor);
+            }
+            ta.recycle();
+            sColors = colors;
         }
+
+        sTileFontColor = res.getColor(R.color.letter_tile_font_color);
+        sLetterToTileRatio = res.getFraction(R.fraction.letter_to_tile_ratio, 1, 1);
+        // TODO: get images for business and voicemail
+        sDefaultPersonAvatar = res.getDrawable(R.drawable.ic_person, null /* theme */);
+        sDefaultBusinessAvatar = res.getDrawable(R.drawable.ic_person, null /* theme */);
+        sDefaultVoicemailAvatar = res.getDrawable(R.drawable.ic_person, null /* theme */);
+        sTypeface = Typeface.create("sans-serif-light", Typeface.NORMAL);
+        int cacheSizeKb = res.getInteger(R.integer.letter_tile_cache_max_size_kb);
+        sTileCache = new LruCache<TileKey, Bitmap>(cacheSizeKb * 1024) {
+            @Override
+            protected int sizeOf(TileKey key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
     }
 
     @Override
@@ -107,18 +134,48 @@ public class LetterTileDrawable extends Drawable {
         if (!isVisible() || bounds.isEmpty()) {
             return;
         }
-        // Draw letter tile.
-        drawLetterTile(canvas);
+        Bitmap tile = bounds.width() == bounds.height() ? getTileBitmap(bounds.width()) : null;
+        if (tile != null) {
+            // Like a tile drawn directly, only the alpha applies: the color filter never did.
+            mTilePaint.setAlpha(mPaint.getAlpha());
+            canvas.drawBitmap(tile, bounds.left, bounds.top, mTilePaint);
+        } else {
+            // Draw letter tile.
+            drawLetterTile(canvas, bounds, mPaint.getAlpha());
+        }
+    }
+
+    /**
+     * Returns the rendered tile of the given size from the shared cache, rendering it if needed,
+     * or null if it is too large to be cached.
+     */
+    @Nullable
+    private Bitmap getTileBitmap(int size) {
+        // Keep room for a screenful of tiles.
+        if ((long) size * size * 4 > sTileCache.maxSize() / 8) {
+            return null;
+        }
+        TileKey key = new TileKey(getTileLetter(), mContactType, mColor, size, mIsCircle,
+                mScale, mOffset);
+        Bitmap tile = sTileCache.get(key);
+        if (tile == null) {
+            tile = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+            drawLetterTile(new Canvas(tile), new Rect(0, 0, size, size), 0xFF);
+            // Another thread may have rendered the same tile meanwhile, either is fine.
+            sTileCache.put(key, tile);
+        }
+        return tile;
     }
 
     /**
-     * Draw the drawable onto the canvas at the current bounds taking into account the current
+     * Draw the drawable onto the canvas at the given bounds taking into account the current
      * scale.
      */
-    private void drawDrawableOnCanvas(final Drawable drawable, final Canvas canvas) {
+    private void drawDrawableOnCanvas(final Drawable drawable, final Canvas canvas,
+            final Rect bounds, int alpha) {
         // The drawable should be drawn in the middle of the canvas without changing its width to
         // height ratio.
-        final Rect destRect = copyBounds();
+        final Rect destRect = new Rect(bounds);
 
         // Crop the destination bounds into a square, scaled and offset as appropriate
         final int halfLength = (int) (mScale * Math.min(destRect.width(), destRect.height()) / 2);
@@ -128,47 +185,60 @@ public class LetterTileDrawable extends Drawable {
                 destRect.centerX() + halfLength,
                 (int) (destRect.centerY() + halfLength + mOffset * destRect.height()));
 
-        drawable.setAlpha(mPaint.getAlpha());
-        drawable.setColorFilter(sTileFontColor, PorterDuff.Mode.SRC_IN);
-        drawable.setBounds(destRect);
-        drawable.draw(canvas);
+        // The default avatars are shared by all the instances.
+        synchronized (drawable) {
+            drawable.setAlpha(alpha);
+            drawable.setColorFilter(sTileFontColor, PorterDuff.Mode.SRC_IN);
+            drawable.setBounds(destRect);
+            drawable.draw(canvas);
+        }
     }
 
-    private void drawLetterTile(final Canvas canvas) {
+    private void drawLetterTile(final Canvas canvas, final Rect bounds, int alpha) {
         // Draw background color.
-        sPaint.setColor(mColor);
+        mTilePaint.setColor(mColor);
 
-        sPaint.setAlpha(mPaint.getAlpha());
-        final Rect bounds = getBounds();
+        mTilePaint.setAlpha(alpha);
         final int minDimension = Math.min(bounds.width(), bounds.height());
 
         if (mIsCircle) {
-            canvas.drawCircle(bounds.centerX(), bounds.centerY(), minDimension / 2, sPaint);
+            canvas.drawCircle(bounds.centerX(), bounds.centerY(), minDimension / 2, mTilePaint);
         } else {
-            canvas.drawRect(bounds, sPaint);
+            canvas.drawRect(bounds, mTilePaint);
         }
 
-        // Draw letter/digit only if the first character is an english letter
-        if (!TextUtils.isEmpty(mDisplayName) && isEnglishLetter(mDisplayName.charAt(0))) {
+        char letter = getTileLetter();
+        if (letter != 0) {
             // Draw letter or digit.
-            sFirstChar[0] = Character.toUpperCase(mDisplayName.charAt(0));
+            mFirstChar[0] = letter;
 
             // Scale text by canvas bounds and user selected scaling factor
-            sPaint.setTextSize(mScale * sLetterToTileRatio * minDimension);
-            //sPaint.setTextSize(sTileLetterFontSize);
-            sPaint.getTextBounds(sFirstChar, 0, 1, sRect);
-            sPaint.setColor(sTileFontColor);
+            mTilePaint.setTextSize(mScale * sLetterToTileRatio * minDimension);
+            mTilePaint.getTextBounds(mFirstChar, 0, 1, mRect);
+            mTilePaint.setColor(sTileFontColor);
+            mTilePaint.setAlpha(alpha);
 
             // Draw the letter in the canvas, vertically shifted up or down by the user-defined
             // offset
-            canvas.drawText(sFirstChar, 0, 1, bounds.centerX(),
-                    bounds.centerY() + mOffset * bounds.height() + sRect.height() / 2,
-                    sPaint);
+            canvas.drawText(mFirstChar, 0, 1, bounds.centerX(),
+                    bounds.centerY() + mOffset * bounds.height() + mRect.height() / 2,
+                    mTilePaint);
         } else {
             // Draw the default image if there is no letter/digit to be drawn
             final Drawable drawable = getDrawablepForContactType(mContactType);
-            drawDrawableOnCanvas(drawable, canvas);
+            drawDrawableOnCanvas(drawable, canvas, bounds, alpha);
+        }
+    }
+
+    /**
+     * Returns the upper case letter drawn on the tile, or 0 to draw the default avatar. Only
+     * english letters are drawn.
+     */
+    private char getTileLetter() {
+        if (!TextUtils.isEmpty(mDisplayName) && isEnglishLetter(mDisplayName.charAt(0))) {
+            return Character.toUpperCase(mDisplayName.charAt(0));
         }
+        return 0;
     }
 
     public int getColor() {
@@ -263,15 +333,61 @@ public class LetterTileDrawable extends Drawable {
     /**
      * Convert the drawable to a bitmap.
      * @param size The target size of the bitmap.
-     * @return A bitmap representation of the drawable.
+     * @return A bitmap representation of the drawable. When the tile is cached, this is an
+     * immutable copy of it.
      */
     public Bitmap toBitmap(int size) {
+        // Cached tiles are opaque, draw() applies the alpha when drawing them but a bitmap can't.
+        Bitmap tile = mPaint.getAlpha() == 0xFF ? getTileBitmap(size) : null;
+        if (tile != null) {
+            // The cached tile is shared by all the instances, callers get their own copy.
+            return tile.copy(tile.getConfig(), false);
+        }
         Bitmap largeIcon = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(largeIcon);
-        Rect bounds = getBounds();
-        setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
-        draw(canvas);
-        setBounds(bounds);
+        drawLetterTile(new Canvas(largeIcon), new Rect(0, 0, size, size), mPaint.getAlpha());
         return largeIcon;
     }
-}
\ No newline at end of file
+
+    /** Everything that changes how a tile is rendered. */
+    private static final class TileKey {
+        private final char mLetter;
+        private final int mContactType;
+        private final int mColor;
+        private final int mSize;
+        private final boolean mIsCircle;
+        private final float mScale;
+        private final float mOffset;
+
+        TileKey(char letter, int contactType, int color, int size, boolean isCircle, float scale,
+                float offset) {
+            mLetter = letter;
+            // Only the default avatar depends on the contact type.
+            mContactType = letter == 0 ? contactType : 0;
+            mColor = color;
+            mSize = size;
+            mIsCircle = isCircle;
+            mScale = scale;
+            mOffset = offset;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof TileKey)) {
+                return false;
+            }
+            TileKey other = (TileKey) obj;
+            return mLetter == other.mLetter && mContactType == other.mContactType
+                    && mColor == other.mColor && mSize == other.mSize
+                    && mIsCircle == other.mIsCircle && mScale == other.mScale
+                    && mOffset == other.mOffset;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mLetter, mContactType, mColor, mSize, mIsCircle, mScale, mOffset);
+        }
+    }
+}
@@ -17,20 +17,22 @@ package com.android.car.apps.common;
 
 import android.graphics.Bitmap;
 import android.util.Log;
-import android.util.SparseArray;
 
-import java.lang.ref.SoftReference;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
 
 /**
- * This class saves recycle bitmap as SoftReference,  which is too vulnerable to
- * be garbage collected due to other part of application is re-allocating lots of
- * memory,  we will lose all SoftReference in a GC run.  We should maintain
- * certain amount of recycled bitmaps in memory, we may also need remove bitmap from LRUCache
- * if we are not able to get a recycled bitmap here.
+ * Pool of bitmaps that are no longer displayed, to be reused as
+ * {@link android.graphics.BitmapFactory.Options#inBitmap} when decoding new bitmaps.
+ * <p>
+ * Bitmaps are held strongly, grouped by {@link Bitmap.Config} and allocation size, up to a byte
+ * budget. When the budget is exceeded the least recently recycled bitmaps are evicted. A request
+ * can be served by a larger allocation, up to {@link #MAX_REUSE_RATIO} times the needed bytes.
  *
  * @hide
  */
@@ -38,122 +40,210 @@ public class RecycleBitmapPool {
 
     private static final String TAG = "RecycleBitmapPool";
     private static final boolean DEBUG = false;
-    // allow reuse bitmap with larger bytes, set to 0 to disable different byte size
-    private static final int LARGER_BITMAP_ALLOWED_REUSE = 0;
-    private static final boolean LARGER_BITMAP_ALLOWED = LARGER_BITMAP_ALLOWED_REUSE > 0;
 
-    private static Method sGetAllocationByteCount;
+    /** Default byte budget of the pool. */
+    public static final int DEFAULT_MAX_SIZE_BYTES = 8 * 1024 * 1024;
 
-    static {
-        try {
-            // KLP or later
-            sGetAllocationByteCount = Bitmap.class.getMethod("getAllocationByteCount");
-        } catch (NoSuchMethodException e) {
+    // allow reuse of bitmaps with up to this many times the needed bytes
+    private static final int MAX_REUSE_RATIO = 4;
+
+    // config -> allocation size -> bitmaps
+    private final HashMap<Bitmap.Config, TreeMap<Integer, ArrayList<Bitmap>>> mRecycled =
+            new HashMap<>();
+    // all pooled bitmaps, least recently added first, with the key they are pooled under
+    private final LinkedHashMap<Bitmap, PoolKey> mLru = new LinkedHashMap<>();
+    private int mMaxSize;
+    private int mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    private static class PoolKey {
+        final Bitmap.Config mConfig;
+        final int mSize;
+
+        PoolKey(Bitmap.Config config, int size) {
+            mConfig = config;
+            mSize = size;
         }
     }
 
-    private final SparseArray<ArrayList<SoftReference<Bitmap>>> mRecycled8888 =
-            new SparseArray<ArrayList<SoftReference<Bitmap>>>();
-
     public RecycleBitmapPool() {
+        this(DEFAULT_MAX_SIZE_BYTES);
+    }
+
+    public RecycleBitmapPool(int maxSizeBytes) {
+        mMaxSize = maxSizeBytes;
     }
 
     public static int getSize(Bitmap bitmap) {
-        if (sGetAllocationByteCount != null) {
-            try {
-                return (Integer) sGetAllocationByteCount.invoke(bitmap);
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, "getAllocationByteCount() failed", e);
-            } catch (IllegalAccessException e) {
-                Log.e(TAG, "getAllocationByteCount() failed", e);
-            } catch (InvocationTargetException e) {
-                Log.e(TAG, "getAllocationByteCount() failed", e);
-            }
-            sGetAllocationByteCount = null;
-        }
-        return bitmap.getByteCount();
+        return bitmap.getAllocationByteCount();
     }
 
-    private static int getSize(int width, int height) {
-        if (width >= 2048 || height >= 2048) {
-            return 0;
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            case RGBA_F16:
+                return 8;
+            case ARGB_8888:
+            default:
+                return 4;
         }
-        return width * height * 4;
     }
 
     public void addRecycledBitmap(Bitmap bitmap) {
-        if (bitmap.isRecycled()) {
+        if (bitmap.isRecycled() || !bitmap.isMutable()) {
             return;
         }
         Bitmap.Config config = bitmap.getConfig();
-        if (config != Bitmap.Config.ARGB_8888) {
+        if (config == null || config == Bitmap.Config.HARDWARE) {
             return;
         }
         int key = getSize(bitmap);
-        if (key == 0) {
+        if (key == 0 || key > mMaxSize / 2) {
             return;
         }
-        synchronized (mRecycled8888) {
-            ArrayList<SoftReference<Bitmap>> list = mRecycled8888.get(key);
+        synchronized (this) {
+            if (mLru.containsKey(bitmap)) {
+                return;
+            }
+            mLru.put(bitmap, new PoolKey(config, key));
+            TreeMap<Integer, ArrayList<Bitmap>> bySize = mRecycled.get(config);
+            if (bySize == null) {
+                bySize = new TreeMap<>();
+                mRecycled.put(config, bySize);
+            }
+            ArrayList<Bitmap> list = bySize.get(key);
             if (list == null) {
-                list = new ArrayList<SoftReference<Bitmap>>();
-                mRecycled8888.put(key, list);
+                list = new ArrayList<Bitmap>();
+                bySize.put(key, list);
             }
-            list.add(new SoftReference<Bitmap>(bitmap));
+            list.add(bitmap);
+            mSize += key;
             if (DEBUG) {
                 Log.d(TAG, list.size() + " add bitmap " + bitmap.getWidth() + " "
-                        + bitmap.getHeight());
+                        + bitmap.getHeight() + " " + config);
             }
+            trimToSize(mMaxSize);
         }
     }
 
+    /**
+     * Returns a recycled ARGB_8888 bitmap that can be used to decode an image of the given size.
+     */
     public Bitmap getRecycledBitmap(int width, int height) {
-        int key = getSize(width, height);
-        if (key == 0) {
+        return getRecycledBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Returns a recycled bitmap of the given config whose allocation is large enough to decode
+     * an image of the given size, or null.
+     */
+    public Bitmap getRecycledBitmap(int width, int height, Bitmap.Config config) {
+        if (width <= 0 || height <= 0 || config == null) {
             return null;
         }
-        synchronized (mRecycled8888) {
-            // for the new version with getAllocationByteCount(), we allow larger size
-            // to be reused for the bitmap,  otherwise we just looks for same size
-            Bitmap bitmap = getRecycledBitmap(mRecycled8888.get(key));
-            if (sGetAllocationByteCount == null || bitmap != null) {
-                return bitmap;
-            }
-            if (LARGER_BITMAP_ALLOWED) {
-                for (int i = 0, c = mRecycled8888.size(); i < c; i++) {
-                    int k = mRecycled8888.keyAt(i);
-                    if (k > key && k <= key * LARGER_BITMAP_ALLOWED_REUSE) {
-                        bitmap = getRecycledBitmap(mRecycled8888.valueAt(i));
-                        if (bitmap != null) {
-                            return bitmap;
+        long needed = (long) width * height * getBytesPerPixel(config);
+        if (needed > mMaxSize) {
+            return null;
+        }
+        synchronized (this) {
+            TreeMap<Integer, ArrayList<Bitmap>> bySize = mRecycled.get(config);
+            if (bySize != null) {
+                Map.Entry<Integer, ArrayList<Bitmap>> entry = bySize.ceilingEntry((int) needed);
+                while (entry != null && entry.getKey() <= needed * MAX_REUSE_RATIO) {
+                    Bitmap bitmap = removeLast(bySize, entry.getKey(), entry.getValue());
+                    if (bitmap != null) {
+                        mHitCount++;
+                        if (DEBUG) {
+                            Log.d(TAG, "reuse " + bitmap.getWidth() + " " + bitmap.getHeight()
+                                    + " for " + width + " " + height);
                         }
+                        return bitmap;
                     }
+                    entry = bySize.higherEntry(entry.getKey());
                 }
             }
+            mMissCount++;
         }
         if (DEBUG) {
-            Log.d(TAG, "not avaialbe for " + width + "," + height);
+            Log.d(TAG, "not available for " + width + "," + height + " " + config);
         }
         return null;
     }
 
-    private static Bitmap getRecycledBitmap(ArrayList<SoftReference<Bitmap>> list) {
-        if (list != null && !list.isEmpty()) {
-            while (!list.isEmpty()) {
-                SoftReference<Bitmap> ref = list.remove(list.size() - 1);
-                Bitmap bitmap = ref.get();
-                if (bitmap != null && !bitmap.isRecycled()) {
-                    if (DEBUG) {
-                        Log.d(TAG, "reuse " + bitmap.getWidth() + " " + bitmap.getHeight());
-                    }
-                    return bitmap;
-                } else {
-                    if (DEBUG) {
-                        Log.d(TAG, " we lost SoftReference to bitmap");
-                    }
+    private Bitmap removeLast(TreeMap<Integer, ArrayList<Bitmap>> bySize, int key,
+            ArrayList<Bitmap> list) {
+        Bitmap result = null;
+        while (result == null && !list.isEmpty()) {
+            Bitmap bitmap = list.remove(list.size() - 1);
+            mLru.remove(bitmap);
+            mSize -= key;
+            if (!bitmap.isRecycled()) {
+                result = bitmap;
+            }
+        }
+        if (list.isEmpty()) {
+            bySize.remove(key);
+        }
+        return result;
+    }
+
+    /**
+     * Evicts the least recently recycled bitmaps until the pool holds at most maxSize bytes.
+     */
+    public synchronized void trimToSize(int maxSize) {
+        Iterator<Map.Entry<Bitmap, PoolKey>> it = mLru.entrySet().iterator();
+        while (mSize > maxSize && it.hasNext()) {
+            Map.Entry<Bitmap, PoolKey> entry = it.next();
+            it.remove();
+            Bitmap bitmap = entry.getKey();
+            int key = entry.getValue().mSize;
+            TreeMap<Integer, ArrayList<Bitmap>> bySize = mRecycled.get(entry.getValue().mConfig);
+            ArrayList<Bitmap> list = bySize != null ? bySize.get(key) : null;
+            if (list != null) {
+                list.remove(bitmap);
+                if (list.isEmpty()) {
+                    bySize.remove(key);
                 }
             }
+            mSize -= key;
+            mEvictionCount++;
         }
-        return null;
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /** Changes the byte budget, evicting bitmaps if needed. */
+    public synchronized void setMaxSize(int maxSizeBytes) {
+        mMaxSize = maxSizeBytes;
+        trimToSize(mMaxSize);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
     }
 }
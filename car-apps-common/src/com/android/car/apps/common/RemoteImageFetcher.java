@@ -0,0 +1,239 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.apps.common;
+
+import android.annotation.Nullable;
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches remote images for {@link BitmapWorkerTask}, {@link DrawableLoader} and
+ * {@link com.android.car.apps.common.imaging.LocalImageFetcher}.
+ * <p>
+ * Connections are kept alive and reused between requests to the same host: response bodies are
+ * always read to the end and closed, and connections are never disconnected explicitly.
+ * <p>
+ * Images stored in the {@link DiskBitmapCache} keep the ETag and Last-Modified validators of
+ * their response. Once an entry is older than the revalidation delay, it is revalidated with a
+ * conditional request and only downloaded again if the server has a new version. If the server
+ * can't be reached, the cached version is used.
+ * <p>
+ * All the methods block on network and disk I/O and must be called from a worker thread.
+ * @hide
+ */
+public class RemoteImageFetcher {
+
+    private static final String TAG = "RemoteImageFetcher";
+
+    private static final boolean DEBUG = false;
+
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 10000;
+
+    // cached images are used without contacting the server for this long
+    private static final long REVALIDATE_AFTER_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    // bytes read after the consumer is done, so that the connection can be reused
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    /** Source of the current time, replaced by tests. */
+    interface Clock {
+        long currentTimeMillis();
+    }
+
+    private static volatile RemoteImageFetcher sInstance;
+
+    private static final Object sInstanceLock = new Object();
+
+    /**
+     * get the singleton RemoteImageFetcher for the application
+     */
+    public static RemoteImageFetcher getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (sInstanceLock) {
+                if (sInstance == null) {
+                    sInstance = new RemoteImageFetcher(DiskBitmapCache.getInstance(context),
+                            REVALIDATE_AFTER_MILLIS, System::currentTimeMillis);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private final DiskBitmapCache mDiskCache;
+    private final long mRevalidateAfterMillis;
+    private final Clock mClock;
+
+    RemoteImageFetcher(DiskBitmapCache diskCache, long revalidateAfterMillis, Clock clock) {
+        mDiskCache = diskCache;
+        mRevalidateAfterMillis = revalidateAfterMillis;
+        mClock = clock;
+    }
+
+    /**
+     * Makes sure the disk cache holds an up to date copy of the image at the given url, and
+     * returns the file of that copy. Returns null without contacting the server if the disk cache
+     * is not available, or if it didn't keep the image; callers should then use
+     * {@link #openStream}. The file may be deleted by a later eviction, so callers should read it
+     * right away.
+     *
+     * @param cacheKey key of the image in the {@link DiskBitmapCache}.
+     * @throws IOException if the image couldn't be downloaded and there is no cached copy.
+     */
+    @Nullable
+    public File fetchToDiskCache(String cacheKey, URL url) throws IOException {
+        if (!mDiskCache.isAvailable()) {
+            return null;
+        }
+        DiskBitmapCache.Metadata metadata = mDiskCache.getMetadata(cacheKey);
+        boolean cached = mDiskCache.contains(cacheKey);
+        long now = mClock.currentTimeMillis();
+        if (cached && (metadata == null
+                || now - metadata.getValidatedTime() < mRevalidateAfterMillis)) {
+            // Fresh, or stored without validators (nothing to revalidate with).
+            return mDiskCache.getFile(cacheKey);
+        }
+
+        HttpURLConnection connection = openConnection(url);
+        if (cached) {
+            if (metadata.getETag() != null) {
+                connection.setRequestProperty("If-None-Match", metadata.getETag());
+            }
+            if (metadata.getLastModified() != null) {
+                connection.setRequestProperty("If-Modified-Since", metadata.getLastModified());
+            }
+        }
+        try {
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached) {
+                if (DEBUG) {
+                    Log.d(TAG, "Not modified " + url);
+                }
+                drainAndClose(connection);
+                mDiskCache.setMetadata(cacheKey, metadata.withValidatedTime(now));
+                return mDiskCache.getFile(cacheKey);
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                drainAndClose(connection);
+                throw new IOException("Unexpected response " + code + " for " + url);
+            }
+            DiskBitmapCache.Metadata newMetadata = new DiskBitmapCache.Metadata(
+                    connection.getHeaderField("ETag"),
+                    connection.getHeaderField("Last-Modified"), now);
+            try (InputStream in = new BufferedInputStream(connection.getInputStream())) {
+                mDiskCache.put(cacheKey, in, newMetadata);
+            }
+            if (DEBUG) {
+                Log.d(TAG, "Downloaded " + url + " etag " + newMetadata.getETag());
+            }
+            return mDiskCache.getFile(cacheKey);
+        } catch (IOException e) {
+            if (cached) {
+                Log.w(TAG, "Couldn't revalidate " + url + ", using the cached copy: " + e);
+                return mDiskCache.getFile(cacheKey);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a stream over the image at the given url, to be decoded as it is downloaded. Closing
+     * the stream releases the connection for reuse.
+     */
+    public InputStream openStream(URL url) throws IOException {
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        if (connection instanceof HttpURLConnection) {
+            int code = ((HttpURLConnection) connection).getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                drainAndClose((HttpURLConnection) connection);
+                throw new IOException("Unexpected response " + code + " for " + url);
+            }
+        }
+        return new DrainingInputStream(new BufferedInputStream(connection.getInputStream()));
+    }
+
+    private static HttpURLConnection openConnection(URL url) throws IOException {
+        URLConnection connection = url.openConnection();
+        if (!(connection instanceof HttpURLConnection)) {
+            throw new IOException("Not an http url " + url);
+        }
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        return (HttpURLConnection) connection;
+    }
+
+    private static void drainAndClose(HttpURLConnection connection) {
+        InputStream in = connection.getErrorStream();
+        try {
+            if (in == null) {
+                in = connection.getInputStream();
+            }
+        } catch (IOException e) {
+            // no body
+            return;
+        }
+        try (InputStream body = new DrainingInputStream(in)) {
+            // closing drains the body
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't drain response: " + e);
+        }
+    }
+
+    /**
+     * Reads what the consumer left of a response body when closed, so that the connection goes
+     * back to the pool instead of being discarded.
+     */
+    private static class DrainingInputStream extends FilterInputStream {
+
+        DrainingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                long drained = 0;
+                while (drained < MAX_DRAIN_BYTES) {
+                    long skipped = in.skip(MAX_DRAIN_BYTES - drained);
+                    if (skipped <= 0) {
+                        // skip() may return 0 before the end, read() tells for sure
+                        if (in.read() < 0) {
+                            break;
+                        }
+                        skipped = 1;
+                    }
+                    drained += skipped;
+                }
+            } catch (IOException e) {
+                // the connection won't be reused, that's all
+            } finally {
+                super.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common.imaging;
+
+import android.annotation.Nullable;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.Size;
+
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Index of the decoded images by fingerprint of their encoded bytes, so that the same image
+ * fetched via different uris (eg: the same album art from two media sources) is decoded once.
+ * A decode can also be reused for a request of a nearby size, see {@link #NEARBY_SIZE_RATIO}.
+ * <p>
+ * Drawables are held weakly: they are kept alive by the memory cache of
+ * {@link LocalImageFetcher}, this index only lets a new key share them. The memory cache only
+ * charges a shared drawable once against the budget, see {@link ImageEngine}. Thread safe.
+ */
+class ContentDedupeCache {
+
+    private static final int MAX_FINGERPRINTS = 200;
+
+    /** Reuse a decode up to this many times larger (in each dimension) than needed. */
+    private static final float NEARBY_SIZE_RATIO = 1.5f;
+
+    private static class Decode {
+        final Size mSourceSize;
+        final WeakReference<Drawable> mDrawable;
+
+        Decode(Size sourceSize, Drawable drawable) {
+            mSourceSize = sourceSize;
+            mDrawable = new WeakReference<>(drawable);
+        }
+    }
+
+    // fingerprint -> decodes of the image at different sizes, least recently used first
+    private final LinkedHashMap<String, ArrayList<Decode>> mDecodes =
+            new LinkedHashMap<String, ArrayList<Decode>>(0, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ArrayList<Decode>> eldest) {
+                    return size() > MAX_FINGERPRINTS;
+                }
+            };
+
+    private int mHitCount;
+    private int mMissCount;
+
+    /** Returns a fingerprint of the given encoded image. */
+    static String fingerprint(byte[] bytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(bytes);
+            StringBuilder builder = new StringBuilder(hash.length * 2 + 12);
+            for (byte b : hash) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16))
+                        .append(Character.forDigit(b & 0xF, 16));
+            }
+            // the length makes collisions of the fallback below even less likely
+            return builder.append(':').append(bytes.length).toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(Arrays.hashCode(bytes)) + ':' + bytes.length;
+        }
+    }
+
+    /**
+     * Returns a decode of the image with the given fingerprint that can be displayed for a
+     * request of the given max size, or null.
+     */
+    @Nullable
+    synchronized Drawable get(String fingerprint, Size maxImageSize) {
+        ArrayList<Decode> decodes = mDecodes.get(fingerprint);
+        if (decodes != null) {
+            Iterator<Decode> it = decodes.iterator();
+            while (it.hasNext()) {
+                Decode decode = it.next();
+                Drawable drawable = decode.mDrawable.get();
+                if (drawable == null) {
+                    it.remove();
+                } else if (isNearby(drawable, decode.mSourceSize, maxImageSize)) {
+                    mHitCount++;
+                    return drawable;
+                }
+            }
+            if (decodes.isEmpty()) {
+                mDecodes.remove(fingerprint);
+            }
+        }
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * Records a decode of the image with the given fingerprint and (original) source size. Only
+     * bitmaps are shared, other drawables (eg: animated ones) have their own state.
+     */
+    synchronized void put(String fingerprint, Size sourceSize, Drawable drawable) {
+        if (!(drawable instanceof BitmapDrawable)) {
+            return;
+        }
+        ArrayList<Decode> decodes = mDecodes.get(fingerprint);
+        if (decodes == null) {
+            decodes = new ArrayList<>(2);
+            mDecodes.put(fingerprint, decodes);
+        }
+        decodes.add(new Decode(sourceSize, drawable));
+    }
+
+    synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Whether the decoded drawable is at least as large as what a decode for maxImageSize would
+     * produce (never upscaled), and not much larger.
+     */
+    private static boolean isNearby(Drawable drawable, Size sourceSize, Size maxImageSize) {
+        Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+        int srcW = sourceSize.getWidth();
+        int srcH = sourceSize.getHeight();
+        float scale = Math.min(1f, Math.min(maxImageSize.getWidth() / (float) srcW,
+                maxImageSize.getHeight() / (float) srcH));
+        int targetW = Math.round(scale * srcW);
+        int targetH = Math.round(scale * srcH);
+        // the bitmap rather than the intrinsic size, which depends on the display density
+        int w = bitmap.getWidth();
+        int h = bitmap.getHeight();
+        return w >= targetW && h >= targetH
+                && w <= targetW * NEARBY_SIZE_RATIO && h <= targetH * NEARBY_SIZE_RATIO;
+    }
+}
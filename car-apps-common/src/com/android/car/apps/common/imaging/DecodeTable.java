@@ -0,0 +1,257 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common.imaging;
+
+import android.annotation.Nullable;
+import android.annotation.WorkerThread;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Size;
+
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.UnaryOperator;
+
+/**
+ * The decodes in flight and the recent decodes of each uri, shared by the image loaders (see
+ * {@link ImageEngine}), so that a uri loaded by several loaders is only decoded once. Each loader
+ * keeps its own memory cache and result type, and wraps the shared bitmap as it needs.
+ * <p>
+ * A loader about to decode a uri calls {@link #open}: if another loader is decoding the uri, it
+ * waits for that decode (which already runs on a worker thread) rather than decoding the same
+ * bytes at the same time. It then gets a decode of a nearby size if there is one (see
+ * {@link #NEARBY_SIZE_RATIO}), or decodes the uri itself and {@link Decode#publish publishes}
+ * the result.
+ * <p>
+ * Bitmaps are held weakly: they are kept alive by the memory caches of the loaders. Shared
+ * bitmaps must not be modified or recycled. Thread safe.
+ */
+public class DecodeTable {
+
+    private static final int MAX_URIS = 200;
+
+    /** Reuse a decode up to this many times larger (in each dimension) than needed. */
+    private static final float NEARBY_SIZE_RATIO = 1.5f;
+
+    private static class Result {
+        final Size mSourceSize;
+        final WeakReference<Bitmap> mBitmap;
+
+        Result(Size sourceSize, Bitmap bitmap) {
+            mSourceSize = sourceSize;
+            mBitmap = new WeakReference<>(bitmap);
+        }
+    }
+
+    /**
+     * A decode of a uri: either a shared bitmap found by {@link #open}, or a decode the caller
+     * must do itself and then {@link #publish}. Must be closed, which lets the loaders waiting
+     * for it go on.
+     */
+    public final class Decode implements AutoCloseable {
+        private final Uri mUri;
+        private final Thread mThread = Thread.currentThread();
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        @Nullable
+        private final Bitmap mBitmap;
+        @Nullable
+        private final Size mSourceSize;
+
+        private Decode(Uri uri, @Nullable Bitmap bitmap, @Nullable Size sourceSize) {
+            mUri = uri;
+            mBitmap = bitmap;
+            mSourceSize = sourceSize;
+        }
+
+        /** The shared bitmap, or null if the caller must decode the uri itself. */
+        @Nullable
+        public Bitmap getBitmap() {
+            return mBitmap;
+        }
+
+        /** The size of the source of the shared bitmap, or null. */
+        @Nullable
+        public Size getSourceSize() {
+            return mSourceSize;
+        }
+
+        /**
+         * Shares the bitmap decoded by the caller, from a source of the given size. The caller
+         * must not modify or recycle it anymore.
+         */
+        public void publish(Bitmap bitmap, Size sourceSize) {
+            synchronized (DecodeTable.this) {
+                ArrayList<Result> results = mResults.get(mUri);
+                if (results == null) {
+                    results = new ArrayList<>(2);
+                    mResults.put(mUri, results);
+                }
+                results.add(new Result(sourceSize, bitmap));
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (DecodeTable.this) {
+                if (mInFlight.get(mUri) == this) {
+                    mInFlight.remove(mUri);
+                }
+            }
+            mDone.countDown();
+        }
+    }
+
+    // uri -> decodes of the image at different sizes, least recently used first
+    private final LinkedHashMap<Uri, ArrayList<Result>> mResults =
+            new LinkedHashMap<Uri, ArrayList<Result>>(0, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Uri, ArrayList<Result>> eldest) {
+                    return size() > MAX_URIS;
+                }
+            };
+    // uri -> the decode other loaders wait for
+    private final HashMap<Uri, Decode> mInFlight = new HashMap<>();
+
+    private int mHitCount;
+    private int mMissCount;
+
+    DecodeTable() {
+    }
+
+    /**
+     * Returns a decode of the uri, waiting for the decode of another loader if there is one. Its
+     * bitmap is null if no decode can be shared: the caller then decodes the uri itself, and
+     * publishes the result if it can be shared. The decode must be closed either way.
+     * @param config the config of the bitmap, or null if any config that can be drawn will do.
+     * @param targetSizeOf returns the size the caller would decode a source of the given size to.
+     * @param willPublish whether the caller will publish its own decode, so that other loaders
+     *                    wait for it.
+     */
+    @WorkerThread
+    public Decode open(Uri uri, @Nullable Bitmap.Config config, UnaryOperator<Size> targetSizeOf,
+            boolean willPublish) {
+        Decode inFlight;
+        synchronized (this) {
+            Decode found = find(uri, config, targetSizeOf);
+            if (found != null) {
+                return found;
+            }
+            inFlight = mInFlight.get(uri);
+            if (inFlight == null || inFlight.mThread == Thread.currentThread()) {
+                return startDecode(uri, willPublish && inFlight == null);
+            }
+        }
+        try {
+            inFlight.mDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Decode(uri, null, null);
+        }
+        synchronized (this) {
+            Decode found = find(uri, config, targetSizeOf);
+            if (found != null) {
+                return found;
+            }
+            // The other decode failed or was for another size, only wait once.
+            return startDecode(uri, willPublish && !mInFlight.containsKey(uri));
+        }
+    }
+
+    /** Called with the lock held. */
+    private Decode startDecode(Uri uri, boolean inFlight) {
+        mMissCount++;
+        Decode decode = new Decode(uri, null, null);
+        if (inFlight) {
+            mInFlight.put(uri, decode);
+        }
+        return decode;
+    }
+
+    /** Called with the lock held. */
+    @Nullable
+    private Decode find(Uri uri, @Nullable Bitmap.Config config,
+            UnaryOperator<Size> targetSizeOf) {
+        ArrayList<Result> results = mResults.get(uri);
+        if (results == null) {
+            return null;
+        }
+        Iterator<Result> it = results.iterator();
+        while (it.hasNext()) {
+            Result result = it.next();
+            Bitmap bitmap = result.mBitmap.get();
+            if (bitmap == null || bitmap.isRecycled()) {
+                it.remove();
+            } else if ((config == null || bitmap.getConfig() == config)
+                    && isNearby(bitmap, targetSizeOf.apply(result.mSourceSize))) {
+                mHitCount++;
+                return new Decode(uri, bitmap, result.mSourceSize);
+            }
+        }
+        if (results.isEmpty()) {
+            mResults.remove(uri);
+        }
+        return null;
+    }
+
+    /**
+     * Whether the bitmap is at least as large as the target size (give or take the rounding of
+     * the loaders), and not much larger.
+     */
+    private static boolean isNearby(Bitmap bitmap, Size targetSize) {
+        int w = bitmap.getWidth();
+        int h = bitmap.getHeight();
+        int targetW = targetSize.getWidth();
+        int targetH = targetSize.getHeight();
+        return w + 1 >= targetW && h + 1 >= targetH
+                && w <= targetW * NEARBY_SIZE_RATIO + 1 && h <= targetH * NEARBY_SIZE_RATIO + 1;
+    }
+
+    /**
+     * Returns the size of the largest image fitting in maxSize with the aspect ratio of the
+     * source, never larger than the source.
+     */
+    public static Size fitSize(Size sourceSize, Size maxSize) {
+        int srcW = sourceSize.getWidth();
+        int srcH = sourceSize.getHeight();
+        if (srcW <= maxSize.getWidth() && srcH <= maxSize.getHeight()) {
+            return sourceSize;
+        }
+        float scale = Math.min(maxSize.getWidth() / (float) srcW,
+                maxSize.getHeight() / (float) srcH);
+        return new Size(Math.max(1, Math.round(scale * srcW)),
+                Math.max(1, Math.round(scale * srcH)));
+    }
+
+    synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("DecodeTable uris=" + mResults.size() + " inFlight=" + mInFlight.size()
+                + " hits=" + mHitCount + " misses=" + mMissCount);
+    }
+}
@@ -47,6 +47,18 @@ public class ImageBinder<T extends ImageBinder.ImageRef> {
         BACKGROUND
     }
 
+    /**
+     * How urgently an image is needed, pending requests are decoded in this order.
+     */
+    public enum Priority {
+        /** For images displayed on screen. */
+        VISIBLE,
+        /** For images likely to be displayed soon (eg: the next rows of a list). */
+        PREFETCH,
+        /** For images that aren't displayed. */
+        BACKGROUND
+    }
+
     /**
      * Interface to define keys for identifying images.
      */
@@ -58,6 +70,15 @@ public class ImageBinder<T extends ImageBinder.ImageRef> {
         /** Returns the uri to use to retrieve the image. */
         @Nullable Uri getImageURI();
 
+        /**
+         * Returns the uri of a cheaper version of the image, displayed while the full image loads
+         * when the binder is progressive (see {@link ImageBinder#setPreviewSize}). When null, the
+         * preview is a heavily sub-sampled decode of {@link #getImageURI()}.
+         */
+        default @Nullable Uri getThumbnailURI() {
+            return null;
+        }
+
         /** For when the image ref doesn't always use a uri. */
         default @Nullable Drawable getImage(Context context) {
             return null;
@@ -72,9 +93,16 @@ public class ImageBinder<T extends ImageBinder.ImageRef> {
     @Nullable
     private final Consumer<Drawable> mClient;
 
+    @Nullable
+    private Size mPreviewSize;
+    private Priority mPriority = Priority.VISIBLE;
+
     private T mCurrentRef;
     private ImageKey mCurrentKey;
     private BiConsumer<ImageKey, Drawable> mFetchReceiver;
+    private ImageKey mPreviewKey;
+    private BiConsumer<ImageKey, Drawable> mPreviewReceiver;
+    private boolean mPreviewDisplayed;
 
 
     public ImageBinder(@NonNull PlaceholderType type, @NonNull Size maxImageSize,
@@ -90,6 +118,31 @@ public class ImageBinder<T extends ImageBinder.ImageRef> {
         mClient = null;
     }
 
+    /**
+     * Makes this binder progressive: while the full size image loads, a preview fitting in the
+     * given size is delivered first to the same consumer, then replaced by the full image.
+     * Pass null (default) to only deliver the full image.
+     */
+    public void setPreviewSize(@Nullable Size previewSize) {
+        mPreviewSize = previewSize;
+    }
+
+    /**
+     * Sets the priority of the requests of this binder (default is {@link Priority#VISIBLE}),
+     * including the pending one. Typically called when the bound element scrolls on or off
+     * screen.
+     */
+    public void setPriority(Context context, @NonNull Priority priority) {
+        mPriority = checkNotNull(priority, "Need a priority");
+        LocalImageFetcher fetcher = getImageFetcher(context);
+        if (mCurrentKey != null) {
+            fetcher.setPriority(mCurrentKey, mFetchReceiver, mPriority);
+        }
+        if (mPreviewKey != null) {
+            fetcher.setPriority(mPreviewKey, mPreviewReceiver, mPriority);
+        }
+    }
+
     protected void setDrawable(@Nullable Drawable drawable) {
         if (mClient != null) {
             mClient.accept(drawable);
@@ -117,11 +170,15 @@ public class ImageBinder<T extends ImageBinder.ImageRef> {
 
             mFetchReceiver = (key, drawable) -> {
                 if (Objects.equals(mCurrentKey, key)) {
-                    Drawable displayed =
-                            (drawable == null && mPlaceholderType != PlaceholderType.NONE)
-                                    ? mCurrentRef.getPlaceholder(context, mPlaceholderType)
-                                    : drawable;
-                    setDrawable(displayed);
+                    cancelPreview(context);
+                    // Keep showing the preview if the full image couldn't be loaded.
+                    if (drawable != null || !mPreviewDisplayed) {
+                        Drawable displayed =
+                                (drawable == null && mPlaceholderType != PlaceholderType.NONE)
+                                        ? mCurrentRef.getPlaceholder(context, mPlaceholderType)
+                                        : drawable;
+                        setDrawable(displayed);
+                    }
                     onRequestFinished();
                 }
             };
@@ -131,11 +188,38 @@ public class ImageBinder<T extends ImageBinder.ImageRef> {
                 mFetchReceiver.accept(null, null);
             } else {
                 mCurrentKey = new ImageKey(mCurrentRef.getImageURI(), mMaxImageSize);
-                getImageFetcher(context).getImage(context, mCurrentKey, mFetchReceiver);
+                LocalImageFetcher fetcher = getImageFetcher(context);
+                // Requests of the same priority are served in order, so the preview is requested
+                // first to be decoded before the full image. It isn't needed if the full image is
+                // in the cache.
+                if (mPreviewSize != null && fetcher.getCachedImage(mCurrentKey) == null) {
+                    fetchPreview(context);
+                }
+                fetcher.getImage(context, mCurrentKey, mFetchReceiver, mPriority);
             }
         }
     }
 
+    private void fetchPreview(Context context) {
+        Uri previewUri = mCurrentRef.getThumbnailURI();
+        if (UriUtils.isEmpty(previewUri)) {
+            previewUri = mCurrentRef.getImageURI();
+        }
+        mPreviewReceiver = (key, drawable) -> {
+            if (Objects.equals(mPreviewKey, key)) {
+                // The full image request is still pending or not made yet, otherwise mPreviewKey
+                // would be null.
+                if (drawable != null) {
+                    setDrawable(drawable);
+                    mPreviewDisplayed = true;
+                }
+                onPreviewFinished();
+            }
+        };
+        mPreviewKey = new ImageKey(previewUri, mPreviewSize);
+        getImageFetcher(context).getImage(context, mPreviewKey, mPreviewReceiver, mPriority);
+    }
+
     private boolean isSameImage(Context context, @Nullable T newRef) {
         if (mCurrentRef == null && newRef == null) return true;
 
@@ -151,14 +235,28 @@ public class ImageBinder<T extends ImageBinder.ImageRef> {
     }
 
     protected void prepareForNewBinding(Context context) {
+        cancelPreview(context);
+        mPreviewDisplayed = false;
         if (mCurrentKey != null) {
             getImageFetcher(context).cancelRequest(mCurrentKey, mFetchReceiver);
             onRequestFinished();
         }
     }
 
+    private void cancelPreview(Context context) {
+        if (mPreviewKey != null) {
+            getImageFetcher(context).cancelRequest(mPreviewKey, mPreviewReceiver);
+            onPreviewFinished();
+        }
+    }
+
     private void onRequestFinished() {
         mCurrentKey = null;
         mFetchReceiver = null;
     }
+
+    private void onPreviewFinished() {
+        mPreviewKey = null;
+        mPreviewReceiver = null;
+    }
 }
@@ -0,0 +1,465 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common.imaging;
+
+import android.annotation.Nullable;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+import com.android.car.apps.common.ImageMemoryTrimmer;
+import com.android.car.apps.common.R;
+import com.android.car.apps.common.imaging.ImageBinder.Priority;
+
+import java.io.PrintWriter;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * The resources shared by the image loaders of the application ({@link LocalImageFetcher},
+ * {@link com.android.car.apps.common.BitmapDownloader} and
+ * {@link com.android.car.apps.common.DrawableDownloader}): a single memory budget and a single
+ * pool of decoding threads.
+ * <p>
+ * Each loader gets a {@link Cache} view over the shared LRUs, so that an image used by one loader
+ * can evict an image that another loader hasn't used for a while, and the total stays within
+ * one budget instead of one budget per loader.
+ * <p>
+ * Images held in graphics memory (hardware bitmaps) are accounted in a separate LRU with its own
+ * budget, so that they only evict each other and never the images held in the Java heap.
+ * <p>
+ * A value cached under several keys (eg: the same decode shared by two uris) is only charged
+ * for its first entry. If that entry is removed first, the others stay uncharged until they are
+ * removed too. Caches whose values wrap a bitmap can charge by bitmap instead, so that a bitmap
+ * shared by several loaders is only charged once too.
+ * <p>
+ * This is not a loading pipeline: each loader still resolves its own URIs, decodes its own way
+ * and tracks its own requests, since their keys and results differ. They do share the decodes
+ * of each uri though, see {@link DecodeTable}.
+ */
+public class ImageEngine implements ImageMemoryTrimmer.Trimmable {
+
+    private static final int MB = 1024 * 1024;
+
+    // 1/4 of max memory is used for the shared heap memory cache
+    private static final int MEM_TO_CACHE = 4;
+
+    // hard limit for the shared heap memory cache in MB
+    private static final int CACHE_HARD_LIMIT = 32;
+
+    /** Should not be reset to null once created. */
+    private static volatile ImageEngine sInstance;
+
+    private static final Object sInstanceLock = new Object();
+
+    /** Returns the singleton. */
+    public static ImageEngine getInstance(Context context) {
+        if (sInstance == null) {
+            synchronized (sInstanceLock) {
+                if (sInstance == null) {
+                    sInstance = new ImageEngine(context.getApplicationContext());
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /** Key of the shared LRUs, the key of a {@link Cache} scoped to that cache. */
+    private static final class EntryKey {
+        final Cache<?, ?> mCache;
+        final Object mKey;
+
+        EntryKey(Cache<?, ?> cache, Object key) {
+            mCache = cache;
+            mKey = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            EntryKey entryKey = (EntryKey) o;
+            return mCache == entryKey.mCache && mKey.equals(entryKey.mKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(mCache), mKey);
+        }
+    }
+
+    private static final class Entry {
+        final Object mValue;
+        /** What the value is charged for, see {@link Cache#addValueRef}. */
+        final Object mStorage;
+        final int mSize;
+        final boolean mGraphics;
+
+        Entry(Object value, Object storage, int size, boolean graphics) {
+            mValue = value;
+            mStorage = storage;
+            mSize = size;
+            mGraphics = graphics;
+        }
+    }
+
+    private final LruCache<EntryKey, Entry> mHeapCache;
+    private final LruCache<EntryKey, Entry> mGraphicsCache;
+    private final PriorityExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final DecodeTable mDecodeTable = new DecodeTable();
+    /** Number of entries of the LRUs holding each value (or storage), guarded by itself. */
+    private final IdentityHashMap<Object, Integer> mValueRefs = new IdentityHashMap<>();
+
+    private ImageEngine(Context context) {
+        Resources res = context.getResources();
+        int memClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE))
+                .getMemoryClass();
+        int heapSizeMB = Math.max(res.getInteger(R.integer.bitmap_memory_cache_max_size_mb),
+                Math.min(memClass / MEM_TO_CACHE, CACHE_HARD_LIMIT));
+        mHeapCache = createLru(heapSizeMB * MB);
+        mGraphicsCache = createLru(
+                res.getInteger(R.integer.bitmap_graphics_memory_cache_max_size_mb) * MB);
+        mExecutor = new PriorityExecutor(res.getInteger(R.integer.image_fetcher_thread_pool_size),
+                res.getInteger(R.integer.image_fetcher_max_queue_size));
+        ImageMemoryTrimmer.getInstance(context).register(this);
+    }
+
+    private static LruCache<EntryKey, Entry> createLru(int maxSize) {
+        return new LruCache<EntryKey, Entry>(maxSize) {
+            @Override
+            protected int sizeOf(EntryKey key, Entry entry) {
+                return entry.mSize;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, EntryKey key, Entry oldValue,
+                    Entry newValue) {
+                key.mCache.onEntryRemoved(evicted, key.mKey, oldValue);
+            }
+        };
+    }
+
+    /**
+     * Creates a view of the shared memory caches whose values are all in the Java heap.
+     * @see #createCache(String, ToIntFunction, Predicate, BiConsumer)
+     */
+    public <K, V> Cache<K, V> createCache(String name, ToIntFunction<V> sizeOf,
+            @Nullable BiConsumer<K, V> onEvicted) {
+        return new Cache<>(name, sizeOf, null, null, onEvicted);
+    }
+
+    /**
+     * Creates a view of the shared memory caches.
+     * @param sizeOf returns the size of a value in bytes, must not change while it is cached.
+     * @param isGraphics returns whether a value is held in graphics memory rather than in the
+     *                   Java heap, must not change while it is cached. May be null (heap only).
+     * @param onEvicted called when a value is removed to make room or by a trim, but not by
+     *                  {@link Cache#remove} or when it is replaced. May be null.
+     */
+    public <K, V> Cache<K, V> createCache(String name, ToIntFunction<V> sizeOf,
+            @Nullable Predicate<V> isGraphics, @Nullable BiConsumer<K, V> onEvicted) {
+        return new Cache<>(name, sizeOf, null, isGraphics, onEvicted);
+    }
+
+    /**
+     * Creates a view of the shared memory caches whose values wrap a bitmap that other loaders
+     * may cache too (see {@link DecodeTable}): values holding the same bitmap, in this cache or
+     * in another one, are only charged once.
+     * @param storageOf returns the bitmap held by a value, must not change while it is cached.
+     * @see #createCache(String, ToIntFunction, Predicate, BiConsumer)
+     */
+    public <K, V> Cache<K, V> createCache(String name, ToIntFunction<V> sizeOf,
+            Function<V, Bitmap> storageOf, @Nullable Predicate<V> isGraphics,
+            @Nullable BiConsumer<K, V> onEvicted) {
+        return new Cache<>(name, sizeOf, storageOf, isGraphics, onEvicted);
+    }
+
+    /**
+     * Runs work on the shared threads at the given priority. Work submitted below
+     * {@link Priority#VISIBLE} may be dropped when too much work is pending, onDropped is then
+     * posted to the UI thread.
+     */
+    public void execute(Runnable runnable, Runnable onDropped, Priority priority) {
+        mExecutor.execute(runnable, () -> mMainHandler.post(onDropped), priority);
+    }
+
+    PriorityExecutor getPriorityExecutor() {
+        return mExecutor;
+    }
+
+    /** Returns the decodes of each uri shared by the loaders. */
+    public DecodeTable getDecodeTable() {
+        return mDecodeTable;
+    }
+
+    /** Trims the shared memory caches to 0~1 * their maxSize. */
+    @Override
+    public void trimTo(float amount) {
+        if (amount == 0f) {
+            mHeapCache.evictAll();
+            mGraphicsCache.evictAll();
+        } else {
+            mHeapCache.trimToSize((int) (amount * mHeapCache.maxSize()));
+            mGraphicsCache.trimToSize((int) (amount * mGraphicsCache.maxSize()));
+        }
+    }
+
+    /** Size of the shared heap memory cache, in bytes. */
+    public int size() {
+        return mHeapCache.size();
+    }
+
+    /** Budget of the shared heap memory cache, in bytes. */
+    public int maxSize() {
+        return mHeapCache.maxSize();
+    }
+
+    /** Size of the shared graphics memory cache, in bytes. */
+    public int graphicsSize() {
+        return mGraphicsCache.size();
+    }
+
+    /** Budget of the shared graphics memory cache, in bytes. */
+    public int graphicsMaxSize() {
+        return mGraphicsCache.maxSize();
+    }
+
+    /** Number of image loads waiting for a thread. */
+    public int getQueueLength() {
+        return mExecutor.getQueueSize();
+    }
+
+    /** Average time image loads waited for a thread, in milliseconds. */
+    public long getAverageWaitMillis() {
+        return mExecutor.getAverageWaitMillis();
+    }
+
+    /** Average time image loads took to fetch and decode, in milliseconds. */
+    public long getAverageDecodeMillis() {
+        return mExecutor.getAverageRunMillis();
+    }
+
+    /** Number of off-screen image loads dropped because too many loads were pending. */
+    public long getDroppedCount() {
+        return mExecutor.getDroppedCount();
+    }
+
+    /** Prints the memory caches usage and the pending work. */
+    public void dump(PrintWriter writer) {
+        writer.println("ImageEngine heap size=" + size() + " max=" + maxSize()
+                + " hits=" + mHeapCache.hitCount() + " misses=" + mHeapCache.missCount()
+                + " evictions=" + mHeapCache.evictionCount());
+        writer.println("ImageEngine graphics size=" + graphicsSize() + " max=" + graphicsMaxSize()
+                + " hits=" + mGraphicsCache.hitCount() + " misses=" + mGraphicsCache.missCount()
+                + " evictions=" + mGraphicsCache.evictionCount());
+        mDecodeTable.dump(writer);
+        mExecutor.dump(writer);
+    }
+
+    /**
+     * The part of the shared memory caches used by one loader, mirroring the {@link LruCache}
+     * API. Sizes and trims apply to the heap part, see {@link #graphicsSize} and
+     * {@link #trimGraphicsToSize} for the graphics part. Thread safe.
+     */
+    public final class Cache<K, V> {
+        private final String mName;
+        private final ToIntFunction<V> mSizeOf;
+        @Nullable
+        private final Function<V, Bitmap> mStorageOf;
+        @Nullable
+        private final Predicate<V> mIsGraphics;
+        @Nullable
+        private final BiConsumer<K, V> mOnEvicted;
+        private final AtomicInteger mSize = new AtomicInteger();
+        private final AtomicInteger mGraphicsSize = new AtomicInteger();
+        private final AtomicInteger mHitCount = new AtomicInteger();
+        private final AtomicInteger mMissCount = new AtomicInteger();
+
+        private Cache(String name, ToIntFunction<V> sizeOf,
+                @Nullable Function<V, Bitmap> storageOf, @Nullable Predicate<V> isGraphics,
+                @Nullable BiConsumer<K, V> onEvicted) {
+            mName = name;
+            mSizeOf = sizeOf;
+            mStorageOf = storageOf;
+            mIsGraphics = isGraphics;
+            mOnEvicted = onEvicted;
+        }
+
+        @Nullable
+        @SuppressWarnings("unchecked")
+        public V get(K key) {
+            EntryKey entryKey = new EntryKey(this, key);
+            Entry entry = mHeapCache.get(entryKey);
+            if (entry == null && mIsGraphics != null) {
+                entry = mGraphicsCache.get(entryKey);
+            }
+            if (entry == null) {
+                mMissCount.incrementAndGet();
+                return null;
+            }
+            mHitCount.incrementAndGet();
+            return (V) entry.mValue;
+        }
+
+        /** Caches the value, returns the value previously cached for the key. */
+        @Nullable
+        @SuppressWarnings("unchecked")
+        public V put(K key, V value) {
+            boolean graphics = mIsGraphics != null && mIsGraphics.test(value);
+            synchronized (mValueRefs) {
+                // Release the previous entry first, in case it holds the same value and is the
+                // one charged for it.
+                V previous = remove(key);
+                Object storage = storageOf(value);
+                Entry entry = new Entry(value, storage, addValueRef(storage, value), graphics);
+                (graphics ? mGraphicsSize : mSize).addAndGet(entry.mSize);
+                (graphics ? mGraphicsCache : mHeapCache).put(new EntryKey(this, key), entry);
+                return previous;
+            }
+        }
+
+        @Nullable
+        @SuppressWarnings("unchecked")
+        public V remove(K key) {
+            EntryKey entryKey = new EntryKey(this, key);
+            Entry previous = mHeapCache.remove(entryKey);
+            if (previous == null && mIsGraphics != null) {
+                previous = mGraphicsCache.remove(entryKey);
+            }
+            return previous != null ? (V) previous.mValue : null;
+        }
+
+        /**
+         * Removes the least recently used heap values of this cache until they use at most
+         * maxSize.
+         */
+        public void trimToSize(int maxSize) {
+            trim(mHeapCache, mSize, maxSize);
+        }
+
+        /**
+         * Removes the least recently used graphics values of this cache until they use at most
+         * maxSize.
+         */
+        public void trimGraphicsToSize(int maxSize) {
+            trim(mGraphicsCache, mGraphicsSize, maxSize);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void trim(LruCache<EntryKey, Entry> lru, AtomicInteger size, int maxSize) {
+            if (size.get() <= maxSize) {
+                return;
+            }
+            // snapshot() is ordered from least to most recently used.
+            for (Map.Entry<EntryKey, Entry> item : lru.snapshot().entrySet()) {
+                if (size.get() <= maxSize) {
+                    break;
+                }
+                EntryKey key = item.getKey();
+                if (key.mCache == this) {
+                    Entry removed = lru.remove(key);
+                    if (removed != null && mOnEvicted != null) {
+                        mOnEvicted.accept((K) key.mKey, (V) removed.mValue);
+                    }
+                }
+            }
+        }
+
+        public void evictAll() {
+            trimToSize(-1);
+            trimGraphicsToSize(-1);
+        }
+
+        /** Heap bytes used by this cache. */
+        public int size() {
+            return mSize.get();
+        }
+
+        /** The shared heap budget, this cache can use all of it. */
+        public int maxSize() {
+            return mHeapCache.maxSize();
+        }
+
+        /** Graphics memory bytes used by this cache. */
+        public int graphicsSize() {
+            return mGraphicsSize.get();
+        }
+
+        /** The shared graphics memory budget, this cache can use all of it. */
+        public int graphicsMaxSize() {
+            return mGraphicsCache.maxSize();
+        }
+
+        public int hitCount() {
+            return mHitCount.get();
+        }
+
+        public int missCount() {
+            return mMissCount.get();
+        }
+
+        /** The bitmap held by the value if this cache charges by bitmap, else the value. */
+        private Object storageOf(V value) {
+            Bitmap bitmap = mStorageOf != null ? mStorageOf.apply(value) : null;
+            return bitmap != null ? bitmap : value;
+        }
+
+        /**
+         * Counts a new entry for the storage of the value, returns the size to charge for it:
+         * the size of the value for the first entry, nothing for the others. Called with
+         * mValueRefs held.
+         */
+        private int addValueRef(Object storage, V value) {
+            Integer refs = mValueRefs.get(storage);
+            mValueRefs.put(storage, refs == null ? 1 : refs + 1);
+            return refs == null ? mSizeOf.applyAsInt(value) : 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void onEntryRemoved(boolean evicted, Object key, Entry entry) {
+            synchronized (mValueRefs) {
+                Integer refs = mValueRefs.get(entry.mStorage);
+                if (refs == null || refs <= 1) {
+                    mValueRefs.remove(entry.mStorage);
+                } else {
+                    mValueRefs.put(entry.mStorage, refs - 1);
+                }
+            }
+            (entry.mGraphics ? mGraphicsSize : mSize).addAndGet(-entry.mSize);
+            if (evicted && mOnEvicted != null) {
+                mOnEvicted.accept((K) key, (V) entry.mValue);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Cache{" + mName + " size=" + size() + " graphicsSize=" + graphicsSize()
+                    + " hits=" + hitCount() + " misses=" + missCount() + '}';
+        }
+    }
+}
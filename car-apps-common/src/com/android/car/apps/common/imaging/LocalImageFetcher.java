@@ -16,37 +16,41 @@
 
 package com.android.car.apps.common.imaging;
 
+import android.annotation.Nullable;
 import android.annotation.UiThread;
 import android.content.ContentResolver;
 import android.content.Context;
-import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.ImageDecoder;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
-import android.util.LruCache;
+import android.util.Size;
+
+import androidx.annotation.VisibleForTesting;
 
 import com.android.car.apps.common.BitmapUtils;
 import com.android.car.apps.common.CommonFlags;
+import com.android.car.apps.common.ImageMemoryTrimmer;
 import com.android.car.apps.common.R;
+import com.android.car.apps.common.RemoteImageFetcher;
 import com.android.car.apps.common.UriUtils;
+import com.android.car.apps.common.imaging.ImageBinder.Priority;
 import com.android.car.apps.common.util.CarAppsIOUtils;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.net.URL;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.concurrent.CancellationException;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.function.BiConsumer;
 
 
@@ -54,13 +58,15 @@ import java.util.function.BiConsumer;
  * A singleton that fetches images and offers a simple memory cache. The requests and the replies
  * all happen on the UI thread.
  */
-public class LocalImageFetcher {
+public class LocalImageFetcher implements ImageMemoryTrimmer.Trimmable {
 
     private static final String TAG = "LocalImageFetcher";
     private static final boolean L_WARN = Log.isLoggable(TAG, Log.WARN);
 
     private static final int KB = 1024;
-    private static final int MB = KB * KB;
+
+    /** Receives the images of {@link #prefetch} requests, which only need to reach the cache. */
+    private static final BiConsumer<ImageKey, Drawable> PREFETCH_CONSUMER = (key, drawable) -> { };
 
     /** Should not be reset to null once created. */
     private static LocalImageFetcher sInstance;
@@ -73,84 +79,257 @@ public class LocalImageFetcher {
         return sInstance;
     }
 
-    private final Executor mThreadPool;
+    private final Context mAppContext;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final PriorityExecutor mThreadPool;
 
-    private final Map<ImageKey, HashSet<BiConsumer<ImageKey, Drawable>>> mConsumers =
+    /** The consumers waiting for each key, with the priority of their request. */
+    private final Map<ImageKey, HashMap<BiConsumer<ImageKey, Drawable>, Priority>> mConsumers =
             new HashMap<>(20);
     private final Map<ImageKey, ImageLoadingTask> mTasks = new HashMap<>(20);
 
-    private final LruCache<ImageKey, Drawable> mMemoryCache;
+    private final ImageEngine.Cache<ImageKey, Drawable> mMemoryCache;
 
     private final boolean mFlagRemoteImages;
+    @Nullable
+    private final ContentDedupeCache mDedupeCache;
 
     @UiThread
     private LocalImageFetcher(Context context) {
-        Resources res = context.getResources();
-        int poolSize = res.getInteger(R.integer.image_fetcher_thread_pool_size);
-        mThreadPool = Executors.newFixedThreadPool(poolSize);
+        this(context, ImageEngine.getInstance(context).getPriorityExecutor());
+    }
 
-        int cacheSizeMB = res.getInteger(R.integer.bitmap_memory_cache_max_size_mb);
-        int drawableDefaultWeightKB = res.getInteger(R.integer.drawable_default_weight_kb);
-        mMemoryCache = new LruCache<ImageKey, Drawable>(cacheSizeMB * MB) {
-            @Override
-            protected int sizeOf(ImageKey key, Drawable drawable) {
-                if (drawable instanceof BitmapDrawable) {
-                    return ((BitmapDrawable) drawable).getBitmap().getAllocationByteCount();
-                } else {
-                    // For now
-                    // TODO(b/139386940): consider a more accurate sizing / caching strategy.
-                    return drawableDefaultWeightKB * KB;
-                }
+    @VisibleForTesting
+    @UiThread
+    LocalImageFetcher(Context context, PriorityExecutor threadPool) {
+        mAppContext = context.getApplicationContext();
+        ImageEngine engine = ImageEngine.getInstance(context);
+        mThreadPool = threadPool;
+
+        int drawableDefaultWeightKB =
+                context.getResources().getInteger(R.integer.drawable_default_weight_kb);
+        mMemoryCache = engine.createCache(TAG, drawable -> {
+            if (drawable instanceof BitmapDrawable) {
+                return ((BitmapDrawable) drawable).getBitmap().getAllocationByteCount();
+            } else {
+                // For now
+                // TODO(b/139386940): consider a more accurate sizing / caching strategy.
+                return drawableDefaultWeightKB * KB;
             }
-        };
+        }, drawable -> drawable instanceof BitmapDrawable
+                ? ((BitmapDrawable) drawable).getBitmap() : null,
+                LocalImageFetcher::isHardwareBitmap, null);
 
         mFlagRemoteImages = CommonFlags.getInstance(context).shouldFlagImproperImageRefs();
+        mDedupeCache = context.getResources().getBoolean(R.bool.image_fetcher_content_dedupe)
+                ? new ContentDedupeCache() : null;
+    }
+
+    /** Hardware bitmaps live in graphics memory and are accounted separately. */
+    private static boolean isHardwareBitmap(Drawable drawable) {
+        if (drawable instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) drawable).getBitmap();
+            return bitmap != null && bitmap.getConfig() == Bitmap.Config.HARDWARE;
+        }
+        return false;
     }
 
-    /** Fetches an image. The resulting drawable may be null. */
+    /**
+     * Trims the images of this fetcher in the shared memory caches to 0~1 * their maxSize,
+     * pending requests are not affected. Memory pressure is handled by {@link ImageEngine}.
+     */
+    @Override
+    public void trimTo(float amount) {
+        if (amount == 0f) {
+            mMemoryCache.evictAll();
+        } else {
+            mMemoryCache.trimToSize((int) (amount * mMemoryCache.maxSize()));
+            mMemoryCache.trimGraphicsToSize((int) (amount * mMemoryCache.graphicsMaxSize()));
+        }
+    }
+
+    /** Bytes of Java heap used by the images cached by this fetcher. */
+    public int getHeapCacheSize() {
+        return mMemoryCache.size();
+    }
+
+    /** Bytes of graphics memory used by the hardware bitmaps cached by this fetcher. */
+    public int getGraphicsCacheSize() {
+        return mMemoryCache.graphicsSize();
+    }
+
+    /** Returns the image if it is in the memory cache, without requesting it otherwise. */
+    @UiThread
+    @Nullable
+    Drawable getCachedImage(ImageKey key) {
+        return mMemoryCache.get(key);
+    }
+
+    /** Fetches an image for a visible element. The resulting drawable may be null. */
     @UiThread
     public void getImage(Context context, ImageKey key, BiConsumer<ImageKey, Drawable> consumer) {
+        getImage(context, key, consumer, Priority.VISIBLE);
+    }
+
+    /**
+     * Fetches an image. The resulting drawable may be null. Pending requests are served by
+     * priority, see {@link #setPriority}. When too many images are pending, off-screen requests
+     * may be put on hold until their priority becomes {@link Priority#VISIBLE}.
+     */
+    @UiThread
+    public void getImage(Context context, ImageKey key, BiConsumer<ImageKey, Drawable> consumer,
+            Priority priority) {
         Drawable cached = mMemoryCache.get(key);
         if (cached != null) {
             consumer.accept(key, cached);
             return;
         }
 
-        ImageLoadingTask task = mTasks.get(key);
+        ImageLoadingTask task = getQueuedTask(key);
 
-        HashSet<BiConsumer<ImageKey, Drawable>> consumers = mConsumers.get(key);
+        HashMap<BiConsumer<ImageKey, Drawable>, Priority> consumers = mConsumers.get(key);
         if (consumers == null) {
-            consumers = new HashSet<>(3);
+            consumers = new HashMap<>(3);
             if (task != null && L_WARN) {
                 Log.w(TAG, "Expected no task here for " + key);
             }
             mConsumers.put(key, consumers);
         }
-        consumers.add(consumer);
+        consumers.put(consumer, priority);
 
         if (task == null) {
-            task = new ImageLoadingTask(context, key, mFlagRemoteImages);
-            mTasks.put(key, task);
-            task.executeOnExecutor(mThreadPool);
+            startTask(key, getHighestPriority(consumers));
+        } else {
+            updateTaskPriority(task, consumers);
+        }
+    }
+
+    private void startTask(ImageKey key, Priority priority) {
+        final ImageLoadingTask newTask = new ImageLoadingTask(mAppContext, key, mFlagRemoteImages,
+                mDedupeCache);
+        mTasks.put(key, newTask);
+        newTask.executeOnExecutor(runnable -> newTask.mEntry = mThreadPool.execute(runnable,
+                () -> {
+                    // Run by the execute() call that drops the task, which may be made by another
+                    // loader on another thread: the flag lets requests made on the UI thread
+                    // before onTaskDropped see the task as dropped and start a new one.
+                    newTask.mDropped = true;
+                    mMainHandler.post(() -> onTaskDropped(newTask));
+                }, priority));
+    }
+
+    /** Returns the task loading the given image, unless it was dropped from the queue. */
+    @Nullable
+    private ImageLoadingTask getQueuedTask(ImageKey key) {
+        ImageLoadingTask task = mTasks.get(key);
+        return (task != null && !task.mDropped) ? task : null;
+    }
+
+    /**
+     * The queue was full and an off-screen task was dropped before it started. Its consumers
+     * keep waiting, a new task starts when one of them raises its priority or when another
+     * request for the image comes in. Prefetches are simply forgotten.
+     */
+    @UiThread
+    private void onTaskDropped(ImageLoadingTask task) {
+        ImageKey key = task.mImageKey;
+        if (mTasks.get(key) != task) {
+            return;
+        }
+        mTasks.remove(key);
+        HashMap<BiConsumer<ImageKey, Drawable>, Priority> consumers = mConsumers.get(key);
+        if (consumers != null) {
+            consumers.remove(PREFETCH_CONSUMER);
+            if (consumers.isEmpty()) {
+                mConsumers.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Changes the priority of a request made via {@link #getImage}. If the image isn't being
+     * decoded yet, it moves in the queue accordingly.
+     */
+    @UiThread
+    public void setPriority(ImageKey key, BiConsumer<ImageKey, Drawable> consumer,
+            Priority priority) {
+        HashMap<BiConsumer<ImageKey, Drawable>, Priority> consumers = mConsumers.get(key);
+        if (consumers != null && consumers.containsKey(consumer)) {
+            consumers.put(consumer, priority);
+            ImageLoadingTask task = getQueuedTask(key);
+            if (task != null) {
+                updateTaskPriority(task, consumers);
+            } else if (priority.compareTo(getHighestPriority(consumers)) <= 0) {
+                // The task was dropped, see onTaskDropped.
+                startTask(key, priority);
+            }
+        }
+    }
+
+    /**
+     * Loads an image into the memory cache, so that a later {@link ImageBinder} request with the
+     * same uri and max size is served right away. Prefetching an image that is already pending
+     * only changes the priority of the prefetch.
+     */
+    @UiThread
+    public void prefetch(Context context, Uri imageUri, Size maxImageSize, Priority priority) {
+        getImage(context, new ImageKey(imageUri, maxImageSize), PREFETCH_CONSUMER, priority);
+    }
+
+    /** Cancels a pending {@link #prefetch}, requests from binders for the image are kept. */
+    @UiThread
+    public void cancelPrefetch(Uri imageUri, Size maxImageSize) {
+        ImageKey key = new ImageKey(imageUri, maxImageSize);
+        HashMap<BiConsumer<ImageKey, Drawable>, Priority> consumers = mConsumers.get(key);
+        if (consumers != null && consumers.containsKey(PREFETCH_CONSUMER)) {
+            cancelRequest(key, PREFETCH_CONSUMER);
+        }
+    }
+
+    /** A task shared by several consumers runs at the most urgent of their priorities. */
+    private void updateTaskPriority(ImageLoadingTask task,
+            HashMap<BiConsumer<ImageKey, Drawable>, Priority> consumers) {
+        if (task.mEntry == null) {
+            return;
         }
+        mThreadPool.setPriority(task.mEntry, getHighestPriority(consumers));
+    }
+
+    private static Priority getHighestPriority(
+            HashMap<BiConsumer<ImageKey, Drawable>, Priority> consumers) {
+        Priority highest = Priority.BACKGROUND;
+        for (Priority priority : consumers.values()) {
+            if (priority.compareTo(highest) < 0) {
+                highest = priority;
+            }
+        }
+        return highest;
     }
 
     /** Cancels a request made via {@link #getImage}. */
     @UiThread
     public void cancelRequest(ImageKey key, BiConsumer<ImageKey, Drawable> consumer) {
-        HashSet<BiConsumer<ImageKey, Drawable>> consumers = mConsumers.get(key);
+        HashMap<BiConsumer<ImageKey, Drawable>, Priority> consumers = mConsumers.get(key);
         if (consumers != null) {
-            boolean removed = consumers.remove(consumer);
+            boolean removed = consumers.remove(consumer) != null;
             if (consumers.isEmpty()) {
                 // Nobody else wants this image, remove the set and cancel the task.
                 mConsumers.remove(key);
                 ImageLoadingTask task = mTasks.remove(key);
                 if (task != null) {
                     task.cancel(true);
-                }
-                if (L_WARN) {
+                    // Drop it from the queue if it hasn't started decoding yet.
+                    if (task.mEntry != null) {
+                        mThreadPool.remove(task.mEntry);
+                    }
+                } else if (L_WARN) {
                     Log.w(TAG, "cancelRequest missing task for: " + key);
                 }
+            } else {
+                ImageLoadingTask task = getQueuedTask(key);
+                if (task != null) {
+                    updateTaskPriority(task, consumers);
+                }
             }
 
             if (!removed && L_WARN) {
@@ -171,10 +350,10 @@ public class LocalImageFetcher {
                 mMemoryCache.put(key, drawable);
             }
 
-            HashSet<BiConsumer<ImageKey, Drawable>> consumers = mConsumers.remove(key);
+            HashMap<BiConsumer<ImageKey, Drawable>, Priority> consumers = mConsumers.remove(key);
             mTasks.remove(key);
             if (consumers != null) {
-                for (BiConsumer<ImageKey, Drawable> consumer : consumers) {
+                for (BiConsumer<ImageKey, Drawable> consumer : consumers.keySet()) {
                     consumer.accept(key, drawable);
                 }
             }
@@ -192,13 +371,26 @@ public class LocalImageFetcher {
         private final WeakReference<Context> mWeakContext;
         private final ImageKey mImageKey;
         private final boolean mFlagRemoteImages;
+        @Nullable
+        private final ContentDedupeCache mDedupeCache;
+        /** Set by the header listener, in the background. */
+        private Size mSourceSize;
+        /** Set when the task is queued, used to re-prioritize or dequeue it. */
+        private PriorityExecutor.Entry mEntry;
+        /**
+         * Set as soon as the queue drops the task, by whichever thread queued the work that
+         * pushed it out. Read on the UI thread.
+         */
+        private volatile boolean mDropped;
 
 
         @UiThread
-        ImageLoadingTask(Context context, ImageKey request, boolean flagRemoteImages) {
+        ImageLoadingTask(Context context, ImageKey request, boolean flagRemoteImages,
+                @Nullable ContentDedupeCache dedupeCache) {
             mWeakContext = new WeakReference<>(context.getApplicationContext());
             mImageKey = request;
             mFlagRemoteImages = flagRemoteImages;
+            mDedupeCache = dedupeCache;
         }
 
         /** Runs in the background. */
@@ -209,6 +401,7 @@ public class LocalImageFetcher {
                     ImageDecoder.Source source) {
                 if (isCancelled()) throw new CancellationException();
                 decoder.setAllocator(mAllocatorMode);
+                mSourceSize = info.getSize();
                 int maxW = mImageKey.mMaxImageSize.getWidth();
                 int maxH = mImageKey.mMaxImageSize.getHeight();
                 int imgW = info.getSize().getWidth();
@@ -235,25 +428,25 @@ public class LocalImageFetcher {
                     // ImageDecoder doesn't support all resources via the content provider...
                     return UriUtils.getDrawable(context, UriUtils.getIconResource(imageUri));
                 } else if (UriUtils.isContentUri(imageUri)) {
-
-                    ContentResolver resolver = context.getContentResolver();
-                    ImageDecoder.Source src = ImageDecoder.createSource(resolver, imageUri);
-                    return ImageDecoder.decodeDrawable(src, mOnHeaderDecodedListener);
-
+                    return decodeContent(context, imageUri);
                 } else if (mFlagRemoteImages) {
                     mAllocatorMode = ImageDecoder.ALLOCATOR_SOFTWARE; // Needed for canvas drawing.
                     URL url = new URL(imageUri.toString());
 
-                    try (InputStream is = new BufferedInputStream(url.openStream());
-                         ByteArrayOutputStream bytes = new ByteArrayOutputStream()) {
-
-                        CarAppsIOUtils.copy(is, bytes);
-                        ImageDecoder.Source src = ImageDecoder.createSource(bytes.toByteArray());
-                        Bitmap decoded = ImageDecoder.decodeBitmap(src, mOnHeaderDecodedListener);
-                        Bitmap tinted = BitmapUtils.createTintedBitmap(decoded,
-                                context.getColor(R.color.improper_image_refs_tint_color));
-                        return new BitmapDrawable(context.getResources(), tinted);
+                    // Stream the download to disk rather than buffering it in memory.
+                    RemoteImageFetcher fetcher = RemoteImageFetcher.getInstance(context);
+                    File file = fetcher.fetchToDiskCache(imageUri.toString(), url);
+                    ImageDecoder.Source src;
+                    if (file != null) {
+                        src = ImageDecoder.createSource(file);
+                    } else {
+                        Log.w(TAG, "Disk cache unavailable for " + url + ", buffering it");
+                        src = ImageDecoder.createSource(readBytes(fetcher.openStream(url)));
                     }
+                    Bitmap decoded = ImageDecoder.decodeBitmap(src, mOnHeaderDecodedListener);
+                    Bitmap tinted = BitmapUtils.createTintedBitmap(decoded,
+                            context.getColor(R.color.improper_image_refs_tint_color));
+                    return new BitmapDrawable(context.getResources(), tinted);
                 }
             } catch (IOException ioe) {
                 Log.e(TAG, "ImageLoadingTask#doInBackground: " + ioe);
@@ -263,6 +456,70 @@ public class LocalImageFetcher {
             return null;
         }
 
+        /**
+         * Decodes a content uri, unless another loader has a decode of it that can be shared,
+         * see {@link DecodeTable}. Shares the bitmaps it decodes in turn.
+         */
+        private Drawable decodeContent(Context context, Uri imageUri) throws IOException {
+            DecodeTable decodes = ImageEngine.getInstance(context).getDecodeTable();
+            Size maxImageSize = mImageKey.mMaxImageSize;
+            try (DecodeTable.Decode decode = decodes.open(imageUri, null,
+                    sourceSize -> DecodeTable.fitSize(sourceSize, maxImageSize), true)) {
+                Bitmap shared = decode.getBitmap();
+                if (shared != null) {
+                    return new BitmapDrawable(context.getResources(), shared);
+                }
+                ContentResolver resolver = context.getContentResolver();
+                Drawable drawable;
+                if (mDedupeCache != null) {
+                    drawable = decodeDeduped(resolver, imageUri);
+                } else {
+                    ImageDecoder.Source src = ImageDecoder.createSource(resolver, imageUri);
+                    drawable = ImageDecoder.decodeDrawable(src, mOnHeaderDecodedListener);
+                }
+                // Only bitmaps are shared, other drawables (eg: animated ones) have their own
+                // state.
+                if (drawable instanceof BitmapDrawable && mSourceSize != null) {
+                    decode.publish(((BitmapDrawable) drawable).getBitmap(), mSourceSize);
+                }
+                return drawable;
+            }
+        }
+
+        /**
+         * Reads the whole image to fingerprint it, and only decodes it if no decode of the same
+         * bytes can be shared.
+         */
+        private Drawable decodeDeduped(ContentResolver resolver, Uri imageUri) throws IOException {
+            InputStream is = resolver.openInputStream(imageUri);
+            if (is == null) {
+                throw new IOException("Couldn't open " + imageUri);
+            }
+            byte[] bytes = readBytes(is);
+            if (isCancelled()) throw new CancellationException();
+
+            String fingerprint = ContentDedupeCache.fingerprint(bytes);
+            Drawable shared = mDedupeCache.get(fingerprint, mImageKey.mMaxImageSize);
+            if (shared != null) {
+                return shared;
+            }
+            ImageDecoder.Source src = ImageDecoder.createSource(bytes);
+            Drawable drawable = ImageDecoder.decodeDrawable(src, mOnHeaderDecodedListener);
+            if (mSourceSize != null) {
+                mDedupeCache.put(fingerprint, mSourceSize, drawable);
+            }
+            return drawable;
+        }
+
+        /** Reads the whole stream and closes it. */
+        private static byte[] readBytes(InputStream in) throws IOException {
+            try (InputStream is = in;
+                 ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+                CarAppsIOUtils.copy(is, out);
+                return out.toByteArray();
+            }
+        }
+
         @UiThread
         @Override
         protected void onPostExecute(Drawable drawable) {
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common.imaging;
+
+import android.annotation.Nullable;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed size thread pool running pending work by {@link ImageBinder.Priority}, then in
+ * submission order. Pending work can be re-prioritized, or removed before it starts.
+ * <p>
+ * The queue is bounded: when it is full, the oldest pending work of the lowest priority is
+ * dropped, unless it is {@link ImageBinder.Priority#VISIBLE} (which is never dropped). The owner
+ * of the dropped work is told via the runnable given to {@link #execute}.
+ * <p>
+ * The executor also measures how long work waits in the queue and how long it runs.
+ */
+class PriorityExecutor {
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /** Pending work, as queued in the executor. */
+    static final class Entry implements Runnable, Comparable<Entry> {
+        private final PriorityExecutor mOwner;
+        private final Runnable mRunnable;
+        @Nullable
+        private final Runnable mOnDropped;
+        private final long mSequence;
+        private final long mEnqueueTime;
+        // Only modified while the entry is out of the queue.
+        private volatile ImageBinder.Priority mPriority;
+
+        private Entry(PriorityExecutor owner, Runnable runnable, @Nullable Runnable onDropped,
+                ImageBinder.Priority priority, long sequence) {
+            mOwner = owner;
+            mRunnable = runnable;
+            mOnDropped = onDropped;
+            mPriority = priority;
+            mSequence = sequence;
+            mEnqueueTime = SystemClock.uptimeMillis();
+        }
+
+        ImageBinder.Priority getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public void run() {
+            long start = SystemClock.uptimeMillis();
+            try {
+                mRunnable.run();
+            } finally {
+                mOwner.recordRun(start - mEnqueueTime, SystemClock.uptimeMillis() - start);
+            }
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int result = mPriority.compareTo(other.mPriority);
+            return (result != 0) ? result : Long.compare(mSequence, other.mSequence);
+        }
+
+        /** Whether this entry should be dropped before the other when the queue is full. */
+        private boolean isDroppedBefore(Entry other) {
+            int result = mPriority.compareTo(other.mPriority);
+            return (result != 0) ? result > 0 : mSequence < other.mSequence;
+        }
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final int mMaxQueueSize;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    // metrics, guarded by this
+    private long mRunCount;
+    private long mTotalWaitMillis;
+    private long mMaxWaitMillis;
+    private long mTotalRunMillis;
+    private long mMaxRunMillis;
+    private long mDroppedCount;
+
+    PriorityExecutor(int poolSize, int maxQueueSize) {
+        mExecutor = new ThreadPoolExecutor(poolSize, poolSize, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<>());
+        mExecutor.allowCoreThreadTimeOut(true);
+        mMaxQueueSize = maxQueueSize;
+    }
+
+    /** Queues the given runnable, and returns a handle to change its priority or remove it. */
+    Entry execute(Runnable runnable, ImageBinder.Priority priority) {
+        return execute(runnable, null, priority);
+    }
+
+    /**
+     * Queues the given runnable, and returns a handle to change its priority or remove it.
+     * @param onDropped run (on the calling thread) if the work is dropped because the queue is
+     *                  full, possibly from within this call.
+     */
+    Entry execute(Runnable runnable, @Nullable Runnable onDropped,
+            ImageBinder.Priority priority) {
+        Entry entry = new Entry(this, runnable, onDropped, priority,
+                mSequence.getAndIncrement());
+        Entry dropped = null;
+        synchronized (this) {
+            if (mExecutor.getQueue().size() >= mMaxQueueSize) {
+                dropped = findDroppable(entry);
+                if (dropped != null && dropped != entry && !mExecutor.remove(dropped)) {
+                    // It just started running, queue one over the limit.
+                    dropped = null;
+                }
+            }
+            if (dropped != entry) {
+                mExecutor.execute(entry);
+            }
+            if (dropped != null) {
+                mDroppedCount++;
+            }
+        }
+        if (dropped != null && dropped.mOnDropped != null) {
+            dropped.mOnDropped.run();
+        }
+        return entry;
+    }
+
+    /** Returns the oldest lowest priority entry among the queue and the new one, if not visible. */
+    @Nullable
+    private Entry findDroppable(Entry newEntry) {
+        Entry candidate = newEntry;
+        for (Runnable runnable : mExecutor.getQueue()) {
+            Entry queued = (Entry) runnable;
+            if (queued.isDroppedBefore(candidate)) {
+                candidate = queued;
+            }
+        }
+        return candidate.mPriority == ImageBinder.Priority.VISIBLE ? null : candidate;
+    }
+
+    /** Moves the entry in the queue if it hasn't started yet. */
+    void setPriority(Entry entry, ImageBinder.Priority priority) {
+        if (entry.mPriority == priority) {
+            return;
+        }
+        synchronized (this) {
+            if (mExecutor.remove(entry)) {
+                entry.mPriority = priority;
+                mExecutor.execute(entry);
+            } else {
+                // Already running, done or dropped, nothing to reorder.
+                entry.mPriority = priority;
+            }
+        }
+    }
+
+    /** Removes the entry if it hasn't started yet, returns whether it was removed. */
+    boolean remove(Entry entry) {
+        return mExecutor.remove(entry);
+    }
+
+    /** Number of entries waiting for a thread. */
+    int getQueueSize() {
+        return mExecutor.getQueue().size();
+    }
+
+    int getMaxQueueSize() {
+        return mMaxQueueSize;
+    }
+
+    private synchronized void recordRun(long waitMillis, long runMillis) {
+        mRunCount++;
+        mTotalWaitMillis += waitMillis;
+        mMaxWaitMillis = Math.max(mMaxWaitMillis, waitMillis);
+        mTotalRunMillis += runMillis;
+        mMaxRunMillis = Math.max(mMaxRunMillis, runMillis);
+    }
+
+    synchronized long getRunCount() {
+        return mRunCount;
+    }
+
+    /** Average time spent in the queue by the work that ran. */
+    synchronized long getAverageWaitMillis() {
+        return mRunCount == 0 ? 0 : mTotalWaitMillis / mRunCount;
+    }
+
+    synchronized long getMaxWaitMillis() {
+        return mMaxWaitMillis;
+    }
+
+    /** Average time spent running (fetching and decoding). */
+    synchronized long getAverageRunMillis() {
+        return mRunCount == 0 ? 0 : mTotalRunMillis / mRunCount;
+    }
+
+    synchronized long getMaxRunMillis() {
+        return mMaxRunMillis;
+    }
+
+    /** Number of entries dropped because the queue was full. */
+    synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    synchronized void dump(PrintWriter writer) {
+        writer.println("PriorityExecutor queued=" + getQueueSize() + "/" + mMaxQueueSize
+                + " ran=" + mRunCount
+                + " wait(avg/max)=" + getAverageWaitMillis() + "/" + mMaxWaitMillis + "ms"
+                + " run(avg/max)=" + getAverageRunMillis() + "/" + mMaxRunMillis + "ms"
+                + " dropped=" + mDroppedCount);
+    }
+}
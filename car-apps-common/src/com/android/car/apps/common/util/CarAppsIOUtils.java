@@ -16,6 +16,8 @@
 
 package com.android.car.apps.common.util;
 
+import com.android.car.apps.common.ByteArrayPool;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -23,15 +25,17 @@ import java.io.OutputStream;
 /** Misc IO utilities. */
 public class CarAppsIOUtils {
 
-    /** The default buffer size used in this class. */
-    private static final int DEFAULT_BUFFER_SIZE = 1024 * 4;
-
     /** Copies the data from one stream to the other. */
     public static void copy(InputStream input, OutputStream output) throws IOException {
-        byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-        int n;
-        while (-1 != (n = input.read(buffer))) {
-            output.write(buffer, 0, n);
+        ByteArrayPool pool = ByteArrayPool.get4KBPool();
+        byte[] buffer = pool.allocateChunk();
+        try {
+            int n;
+            while (-1 != (n = input.read(buffer))) {
+                output.write(buffer, 0, n);
+            }
+        } finally {
+            pool.releaseChunk(buffer);
         }
     }
 }
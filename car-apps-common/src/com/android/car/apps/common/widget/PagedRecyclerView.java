@@ -21,10 +21,12 @@ import static java.lang.annotation.RetentionPolicy.SOURCE;
 import android.car.drivingstate.CarUxRestrictions;
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.Size;
 import android.util.SparseArray;
 import android.view.View;
 import android.view.ViewTreeObserver.OnGlobalLayoutListener;
@@ -33,14 +35,20 @@ import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
+import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.android.car.apps.common.CarUxRestrictionsUtil;
 import com.android.car.apps.common.R;
+import com.android.car.apps.common.UriUtils;
+import com.android.car.apps.common.imaging.ImageBinder;
+import com.android.car.apps.common.imaging.LocalImageFetcher;
 import com.android.car.apps.common.util.ScrollBarUI;
 
 import java.lang.annotation.Retention;
+import java.util.HashSet;
+import java.util.List;
 
 /**
  * View that extends a {@link RecyclerView} and creates a nested {@code RecyclerView} with an option
@@ -52,6 +60,12 @@ public final class PagedRecyclerView extends RecyclerView {
     private static final boolean DEBUG = false;
     private static final String TAG = "PagedRecyclerView";
 
+    /**
+     * Number of pages of images prefetched ahead of the scroll, the first one at
+     * {@link ImageBinder.Priority#PREFETCH}, the others at {@link ImageBinder.Priority#BACKGROUND}.
+     */
+    private static final int IMAGE_PREFETCH_PAGES = 2;
+
     private final CarUxRestrictionsUtil mCarUxRestrictionsUtil;
     private final CarUxRestrictionsUtil.OnUxRestrictionsChangedListener mListener;
 
@@ -71,6 +85,12 @@ public final class PagedRecyclerView extends RecyclerView {
     private Adapter mAdapter;
     private ScrollBarUI mScrollBarUI;
 
+    // Images requested by the last prefetch, and the adapter positions they were requested for.
+    private HashSet<Uri> mPrefetchedUris = new HashSet<>();
+    private Size mPrefetchedSize;
+    private int mPrefetchStart = NO_POSITION;
+    private int mPrefetchEnd = NO_POSITION;
+
     /**
      * The possible values for @{link #setGutter}. The default value is actually
      * {@link PagedRecyclerView.Gutter#BOTH}.
@@ -156,6 +176,29 @@ public final class PagedRecyclerView extends RecyclerView {
         void setMaxItems(int maxItems);
     }
 
+    /**
+     * Interface for a {@link RecyclerView.Adapter} whose items display images bound with an
+     * {@link ImageBinder}. While the list scrolls, the images of the next pages in the scroll
+     * direction are loaded into the {@link LocalImageFetcher} memory cache, so that they are
+     * ready when the items are bound.
+     *
+     * <p>Prefetching is only done with a {@link LinearLayoutManager} (or a subclass).
+     */
+    public interface ImagePrefetchAdapter {
+        /**
+         * Returns the images displayed by the item at the given adapter position, may be empty.
+         */
+        @NonNull
+        List<? extends ImageBinder.ImageRef> getImageRefs(int position);
+
+        /**
+         * Returns the max size of the images. It must match the size given to the
+         * {@link ImageBinder}s displaying them, otherwise the prefetched images won't be used.
+         */
+        @NonNull
+        Size getMaxImageSize();
+    }
+
     /**
      * Custom layout manager for the outer recyclerview. Since paddings should be applied by the
      * inner recycler view within its bounds, this layout manager should always have 0 padding.
@@ -225,11 +268,13 @@ public final class PagedRecyclerView extends RecyclerView {
         if (!mScrollBarEnabled) {
             a.recycle();
             mFullyInitialized = true;
+            super.addOnScrollListener(mImagePrefetchListener);
             return;
         }
 
         mNestedRecyclerView = new RecyclerView(context, attrs,
                 R.style.PagedRecyclerView_NestedRecyclerView);
+        mNestedRecyclerView.addOnScrollListener(mImagePrefetchListener);
 
         super.setLayoutManager(new PagedRecyclerViewLayoutManager(context));
         super.setAdapter(new PagedRecyclerViewAdapter());
@@ -299,6 +344,7 @@ public final class PagedRecyclerView extends RecyclerView {
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
         mCarUxRestrictionsUtil.unregister(mListener);
+        cancelImagePrefetch();
     }
 
     private void updateCarUxRestrictions(CarUxRestrictions carUxRestrictions) {
@@ -341,6 +387,7 @@ public final class PagedRecyclerView extends RecyclerView {
 
     @Override
     public void setAdapter(@Nullable Adapter adapter) {
+        cancelImagePrefetch();
         mAdapter = adapter;
         if (mScrollBarEnabled) {
             mNestedRecyclerView.setAdapter(adapter);
@@ -544,6 +591,92 @@ public final class PagedRecyclerView extends RecyclerView {
         }
     }
 
+    private final OnScrollListener mImagePrefetchListener = new OnScrollListener() {
+        @Override
+        public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+            if (dy != 0) {
+                prefetchImages(recyclerView, dy > 0);
+            }
+        }
+    };
+
+    /**
+     * Prefetches the images of the {@link #IMAGE_PREFETCH_PAGES} pages following the visible items
+     * in the scroll direction, and cancels the previous prefetches that fell out of that range.
+     */
+    private void prefetchImages(RecyclerView recyclerView, boolean scrollingDown) {
+        if (!(mAdapter instanceof ImagePrefetchAdapter)
+                || !(recyclerView.getLayoutManager() instanceof LinearLayoutManager)) {
+            return;
+        }
+        LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+        int edge = scrollingDown
+                ? layoutManager.findLastVisibleItemPosition()
+                : layoutManager.findFirstVisibleItemPosition();
+        if (edge == NO_POSITION) {
+            return;
+        }
+
+        int itemsPerPage = getItemsPerPage(recyclerView, layoutManager);
+        int count = itemsPerPage * IMAGE_PREFETCH_PAGES;
+        int start = scrollingDown ? edge + 1 : Math.max(0, edge - count);
+        int end = scrollingDown ? Math.min(mAdapter.getItemCount(), edge + 1 + count) : edge;
+        if (start == mPrefetchStart && end == mPrefetchEnd) {
+            return;
+        }
+        mPrefetchStart = start;
+        mPrefetchEnd = end;
+
+        ImagePrefetchAdapter adapter = (ImagePrefetchAdapter) mAdapter;
+        Size size = adapter.getMaxImageSize();
+        LocalImageFetcher fetcher = LocalImageFetcher.getInstance(getContext());
+        HashSet<Uri> uris = new HashSet<>();
+        // Request the closest items first, they are queued in that order within a priority.
+        for (int i = 0; i < end - start; i++) {
+            int position = scrollingDown ? start + i : end - 1 - i;
+            ImageBinder.Priority priority = (i < itemsPerPage)
+                    ? ImageBinder.Priority.PREFETCH : ImageBinder.Priority.BACKGROUND;
+            for (ImageBinder.ImageRef ref : adapter.getImageRefs(position)) {
+                Uri uri = ref.getImageURI();
+                if (!UriUtils.isEmpty(uri) && uris.add(uri)) {
+                    fetcher.prefetch(getContext(), uri, size, priority);
+                }
+            }
+        }
+
+        // Cancel after requesting the new range so that images in both are not restarted.
+        for (Uri uri : mPrefetchedUris) {
+            if (!uris.contains(uri) || !size.equals(mPrefetchedSize)) {
+                fetcher.cancelPrefetch(uri, mPrefetchedSize);
+            }
+        }
+        mPrefetchedUris = uris;
+        mPrefetchedSize = size;
+    }
+
+    /** Same estimate as the scroll bar: the list height divided by the height of a row. */
+    private int getItemsPerPage(RecyclerView recyclerView, LinearLayoutManager layoutManager) {
+        View firstChild = layoutManager.getChildAt(0);
+        int rowsPerPage = (firstChild == null || firstChild.getHeight() == 0)
+                ? 1 : Math.max(1, recyclerView.getHeight() / firstChild.getHeight());
+        if (layoutManager instanceof GridLayoutManager) {
+            return rowsPerPage * ((GridLayoutManager) layoutManager).getSpanCount();
+        }
+        return rowsPerPage;
+    }
+
+    private void cancelImagePrefetch() {
+        if (!mPrefetchedUris.isEmpty()) {
+            LocalImageFetcher fetcher = LocalImageFetcher.getInstance(getContext());
+            for (Uri uri : mPrefetchedUris) {
+                fetcher.cancelPrefetch(uri, mPrefetchedSize);
+            }
+            mPrefetchedUris = new HashSet<>();
+        }
+        mPrefetchStart = NO_POSITION;
+        mPrefetchEnd = NO_POSITION;
+    }
+
     private void initNestedRecyclerView() {
         PagedRecyclerViewAdapter.NestedRowViewHolder vh =
                 (PagedRecyclerViewAdapter.NestedRowViewHolder)
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class BitmapDownloaderTest {
+
+    private static final Uri IMAGE_URI = Uri.parse("http://localhost/image.png");
+
+    private Context mContext;
+    private BitmapDownloader mDownloader;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+        mDownloader = new BitmapDownloader(mContext);
+    }
+
+    @Test
+    public void testScaledBitmap_otherAspectRatio_isFoundAgain() {
+        // A square image requested in a wide box is scaled to 100x100, which falls in a smaller
+        // bucket than the requested one.
+        BitmapWorkerOptions options = options(2048, 100);
+        Bitmap bitmap = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+
+        mDownloader.addBitmapToMemoryCache(options, bitmap, true);
+
+        assertThat(mDownloader.getBitmapFromMemCache(options(2048, 100))).isSameAs(bitmap);
+    }
+
+    @Test
+    public void testScaledBitmap_smallerRequestInBucket_isFound() {
+        Bitmap bitmap = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        mDownloader.addBitmapToMemoryCache(options(2048, 100), bitmap, true);
+
+        assertThat(mDownloader.getBitmapFromMemCache(options(1024, 50))).isSameAs(bitmap);
+    }
+
+    @Test
+    public void testScaledBitmap_largerRequestInBucket_isNotFound() {
+        Bitmap bitmap = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        mDownloader.addBitmapToMemoryCache(options(2048, 100), bitmap, true);
+
+        // The source may be larger than 100x100, it must be loaded again for a 120 high box.
+        assertThat(mDownloader.getBitmapFromMemCache(options(2048, 120))).isNull();
+    }
+
+    @Test
+    public void testUnscaledBitmap_isFoundForAnyLargerRequest() {
+        Bitmap bitmap = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        mDownloader.addBitmapToMemoryCache(options(100, 100), bitmap, false);
+
+        assertThat(mDownloader.getBitmapFromMemCache(options(120, 120))).isSameAs(bitmap);
+    }
+
+    private BitmapWorkerOptions options(int width, int height) {
+        return new BitmapWorkerOptions.Builder(mContext)
+                .resource(IMAGE_URI)
+                .width(width)
+                .height(height)
+                .build();
+    }
+}
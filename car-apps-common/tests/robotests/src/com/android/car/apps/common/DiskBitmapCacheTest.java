@@ -0,0 +1,176 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class DiskBitmapCacheTest {
+
+    private static final long MAX_SIZE = 10;
+
+    private File mCacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mCacheDir = Files.createTempDirectory("DiskBitmapCacheTest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mCacheDir.listFiles()) {
+            file.delete();
+        }
+        mCacheDir.delete();
+    }
+
+    @Test
+    public void testPut_thenGet_returnsBytes() throws IOException {
+        DiskBitmapCache cache = new DiskBitmapCache(mCacheDir, MAX_SIZE);
+
+        cache.put("a", stream("abc"));
+
+        assertThat(read(cache.get("a"))).isEqualTo("abc");
+        assertThat(cache.get("b")).isNull();
+        assertThat(cache.size()).isEqualTo(3);
+    }
+
+    @Test
+    public void testPut_overBudget_evictsLeastRecentlyUsed() throws IOException {
+        DiskBitmapCache cache = new DiskBitmapCache(mCacheDir, MAX_SIZE);
+        cache.put("a", stream("aaaa"));
+        cache.put("b", stream("bbbb"));
+        read(cache.get("a"));
+
+        cache.put("c", stream("cccc"));
+
+        assertThat(cache.contains("a")).isTrue();
+        assertThat(cache.contains("b")).isFalse();
+        assertThat(cache.contains("c")).isTrue();
+        assertThat(cache.size()).isEqualTo(8);
+    }
+
+    @Test
+    public void testReplay_restoresEntriesAndLruOrder() throws IOException {
+        DiskBitmapCache cache = new DiskBitmapCache(mCacheDir, MAX_SIZE);
+        cache.put("a", stream("aaaa"));
+        cache.put("b", stream("bbbb"));
+        cache.put("c", stream("cc"));
+        cache.remove("c");
+        read(cache.get("a"));
+
+        DiskBitmapCache replayed = new DiskBitmapCache(mCacheDir, MAX_SIZE);
+
+        assertThat(replayed.size()).isEqualTo(8);
+        assertThat(replayed.contains("c")).isFalse();
+        // "b" is now the least recently used entry.
+        replayed.trimToSize(4);
+        assertThat(replayed.contains("a")).isTrue();
+        assertThat(replayed.contains("b")).isFalse();
+    }
+
+    @Test
+    public void testReplay_restoresMetadata() throws IOException {
+        DiskBitmapCache cache = new DiskBitmapCache(mCacheDir, MAX_SIZE);
+        cache.put("a", stream("aaaa"),
+                new DiskBitmapCache.Metadata("\"v 1\"", null, 42));
+
+        DiskBitmapCache.Metadata metadata =
+                new DiskBitmapCache(mCacheDir, MAX_SIZE).getMetadata("a");
+
+        assertThat(metadata.getETag()).isEqualTo("\"v 1\"");
+        assertThat(metadata.getLastModified()).isNull();
+        assertThat(metadata.getValidatedTime()).isEqualTo(42);
+    }
+
+    @Test
+    public void testReplay_missingFile_dropsEntryAndCountsItsLines() throws IOException {
+        DiskBitmapCache cache = new DiskBitmapCache(mCacheDir, MAX_SIZE);
+        cache.put("a", stream("aaaa"));
+        cache.put("b", stream("bbbb"));
+        File fileA = cache.getFile("a");
+        assertThat(fileA.delete()).isTrue();
+
+        DiskBitmapCache replayed = new DiskBitmapCache(mCacheDir, MAX_SIZE);
+
+        assertThat(replayed.contains("a")).isFalse();
+        assertThat(replayed.contains("b")).isTrue();
+        assertThat(replayed.size()).isEqualTo(4);
+        // CLEAN a, CLEAN b and READ a describe a single live entry.
+        assertThat(replayed.getRedundantOpCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testReplay_corruptJournal_wipesCache() throws IOException {
+        DiskBitmapCache cache = new DiskBitmapCache(mCacheDir, MAX_SIZE);
+        cache.put("a", stream("aaaa"));
+        Files.write(new File(mCacheDir, DiskBitmapCache.JOURNAL_FILE).toPath(),
+                "garbage\n".getBytes(StandardCharsets.UTF_8));
+
+        DiskBitmapCache replayed = new DiskBitmapCache(mCacheDir, MAX_SIZE);
+
+        assertThat(replayed.contains("a")).isFalse();
+        assertThat(replayed.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testRedundantReads_compactJournal() throws IOException {
+        DiskBitmapCache cache = new DiskBitmapCache(mCacheDir, MAX_SIZE);
+        cache.put("a", stream("aaaa"));
+
+        for (int i = 0; i < 2000; i++) {
+            read(cache.get("a"));
+        }
+
+        assertThat(cache.getRedundantOpCount()).isEqualTo(0);
+        List<String> lines = Files.readAllLines(
+                new File(mCacheDir, DiskBitmapCache.JOURNAL_FILE).toPath());
+        // header, then a single CLEAN line
+        assertThat(lines).hasSize(3);
+        assertThat(lines.get(2)).startsWith("CLEAN ");
+        assertThat(read(new DiskBitmapCache(mCacheDir, MAX_SIZE).get("a"))).isEqualTo("aaaa");
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(InputStream in) throws IOException {
+        assertThat(in).isNotNull();
+        try (InputStream stream = in) {
+            byte[] buffer = new byte[64];
+            int length = stream.read(buffer);
+            return new String(buffer, 0, Math.max(length, 0), StandardCharsets.UTF_8);
+        }
+    }
+}
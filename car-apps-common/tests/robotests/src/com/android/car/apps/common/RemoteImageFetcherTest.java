@@ -0,0 +1,213 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class RemoteImageFetcherTest {
+
+    private static final long REVALIDATE_AFTER = 1000;
+    private static final String KEY = "image";
+
+    private ServerSocket mServer;
+    private Thread mServerThread;
+    private final BlockingQueue<String> mResponses = new ArrayBlockingQueue<>(10);
+    private final List<String> mRequests = new ArrayList<>();
+    private File mCacheDir;
+    private long mNow;
+    private RemoteImageFetcher mFetcher;
+    private URL mUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new ServerSocket(0);
+        mServerThread = new Thread(this::serve);
+        mServerThread.start();
+        mUrl = new URL("http://localhost:" + mServer.getLocalPort() + "/image.png");
+        mCacheDir = Files.createTempDirectory("RemoteImageFetcherTest").toFile();
+        DiskBitmapCache diskCache = new DiskBitmapCache(mCacheDir, 1024 * 1024);
+        mFetcher = new RemoteImageFetcher(diskCache, REVALIDATE_AFTER, () -> mNow);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+        mServerThread.join();
+        for (File file : mCacheDir.listFiles()) {
+            file.delete();
+        }
+        mCacheDir.delete();
+    }
+
+    @Test
+    public void testFetch_storesBodyAndValidators() throws IOException {
+        mResponses.add(response("200 OK", "ETag: \"v1\"", "abc"));
+
+        File file = mFetcher.fetchToDiskCache(KEY, mUrl);
+
+        assertThat(readFile(file)).isEqualTo("abc");
+        assertThat(getRequests()).hasSize(1);
+    }
+
+    @Test
+    public void testFetch_freshEntry_doesNotContactServer() throws IOException {
+        mResponses.add(response("200 OK", "ETag: \"v1\"", "abc"));
+        mFetcher.fetchToDiskCache(KEY, mUrl);
+
+        mNow += REVALIDATE_AFTER - 1;
+        File file = mFetcher.fetchToDiskCache(KEY, mUrl);
+
+        assertThat(readFile(file)).isEqualTo("abc");
+        assertThat(getRequests()).hasSize(1);
+    }
+
+    @Test
+    public void testFetch_staleEntry_revalidatesWithETag() throws IOException {
+        mResponses.add(response("200 OK", "ETag: \"v1\"", "abc"));
+        mResponses.add(response("304 Not Modified", "ETag: \"v1\"", ""));
+        mFetcher.fetchToDiskCache(KEY, mUrl);
+
+        mNow += REVALIDATE_AFTER;
+        File file = mFetcher.fetchToDiskCache(KEY, mUrl);
+
+        assertThat(readFile(file)).isEqualTo("abc");
+        List<String> requests = getRequests();
+        assertThat(requests).hasSize(2);
+        assertThat(requests.get(1)).contains("If-None-Match: \"v1\"");
+    }
+
+    @Test
+    public void testFetch_staleEntry_modified_replacesBody() throws IOException {
+        mResponses.add(response("200 OK", "ETag: \"v1\"", "abc"));
+        mResponses.add(response("200 OK", "ETag: \"v2\"", "defg"));
+        mFetcher.fetchToDiskCache(KEY, mUrl);
+
+        mNow += REVALIDATE_AFTER;
+        File file = mFetcher.fetchToDiskCache(KEY, mUrl);
+
+        assertThat(readFile(file)).isEqualTo("defg");
+    }
+
+    @Test
+    public void testFetch_staleEntry_serverError_usesCachedCopy() throws IOException {
+        mResponses.add(response("200 OK", "ETag: \"v1\"", "abc"));
+        mResponses.add(response("500 Internal Server Error", "X-Unused: 0", "oops"));
+        mFetcher.fetchToDiskCache(KEY, mUrl);
+
+        mNow += REVALIDATE_AFTER;
+        File file = mFetcher.fetchToDiskCache(KEY, mUrl);
+
+        assertThat(readFile(file)).isEqualTo("abc");
+    }
+
+    @Test(expected = IOException.class)
+    public void testFetch_serverError_noCachedCopy_throws() throws IOException {
+        mResponses.add(response("404 Not Found", "X-Unused: 0", "missing"));
+
+        mFetcher.fetchToDiskCache(KEY, mUrl);
+    }
+
+    @Test
+    public void testFetch_diskCacheUnavailable_returnsNullWithoutRequest() throws IOException {
+        // The cache directory can't be created under a regular file.
+        File blocker = new File(mCacheDir, "blocker");
+        assertThat(blocker.createNewFile()).isTrue();
+        DiskBitmapCache diskCache = new DiskBitmapCache(new File(blocker, "cache"), 1024 * 1024);
+        RemoteImageFetcher fetcher = new RemoteImageFetcher(diskCache, REVALIDATE_AFTER,
+                () -> mNow);
+        mResponses.add(response("200 OK", "ETag: \"v1\"", "abc"));
+
+        assertThat(fetcher.fetchToDiskCache(KEY, mUrl)).isNull();
+        assertThat(getRequests()).isEmpty();
+
+        try (InputStream in = fetcher.openStream(mUrl)) {
+            byte[] body = new byte[3];
+            assertThat(in.read(body)).isEqualTo(3);
+            assertThat(new String(body, StandardCharsets.UTF_8)).isEqualTo("abc");
+        }
+    }
+
+    private static String response(String status, String header, String body) {
+        return "HTTP/1.1 " + status + "\r\n" + header + "\r\n"
+                + "Content-Length: " + body.length() + "\r\n\r\n" + body;
+    }
+
+    private synchronized List<String> getRequests() {
+        return new ArrayList<>(mRequests);
+    }
+
+    /** Answers each request, on kept-alive connections, with the next canned response. */
+    private void serve() {
+        while (!mServer.isClosed()) {
+            try (Socket socket = mServer.accept()) {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                OutputStream out = socket.getOutputStream();
+                StringBuilder request = new StringBuilder();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        request.append(line).append('\n');
+                        continue;
+                    }
+                    synchronized (this) {
+                        mRequests.add(request.toString());
+                    }
+                    request.setLength(0);
+                    String response = mResponses.poll();
+                    if (response == null) {
+                        break;
+                    }
+                    out.write(response.getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // server closed, or the client dropped the connection
+            }
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        assertThat(file).isNotNull();
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common.imaging;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Size;
+
+import com.android.car.apps.common.TestConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class DecodeTableTest {
+
+    private static final Uri IMAGE_URI = Uri.parse("content://test/1");
+    private static final Size SOURCE_SIZE = new Size(400, 200);
+    private static final UnaryOperator<Size> FIT_100 =
+            sourceSize -> DecodeTable.fitSize(sourceSize, new Size(100, 100));
+
+    private DecodeTable mDecodeTable;
+    private Bitmap mBitmap;
+
+    @Before
+    public void setUp() {
+        mDecodeTable = new DecodeTable();
+        mBitmap = Bitmap.createBitmap(100, 50, Bitmap.Config.ARGB_8888);
+    }
+
+    @Test
+    public void testOpen_afterPublish_sharesTheBitmap() {
+        publish(mBitmap);
+
+        try (DecodeTable.Decode decode = mDecodeTable.open(IMAGE_URI, null, FIT_100, true)) {
+            assertThat(decode.getBitmap()).isSameAs(mBitmap);
+            assertThat(decode.getSourceSize()).isEqualTo(SOURCE_SIZE);
+        }
+        assertThat(mDecodeTable.getHitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testOpen_otherConfig_isNotShared() {
+        publish(mBitmap);
+
+        try (DecodeTable.Decode decode =
+                     mDecodeTable.open(IMAGE_URI, Bitmap.Config.RGB_565, FIT_100, true)) {
+            assertThat(decode.getBitmap()).isNull();
+        }
+    }
+
+    @Test
+    public void testOpen_sizeNotNearby_isNotShared() {
+        publish(mBitmap);
+
+        UnaryOperator<Size> fit200 = sourceSize -> DecodeTable.fitSize(sourceSize,
+                new Size(200, 200));
+        UnaryOperator<Size> fit50 = sourceSize -> DecodeTable.fitSize(sourceSize,
+                new Size(50, 50));
+        try (DecodeTable.Decode decode = mDecodeTable.open(IMAGE_URI, null, fit200, true)) {
+            assertThat(decode.getBitmap()).isNull();
+        }
+        try (DecodeTable.Decode decode = mDecodeTable.open(IMAGE_URI, null, fit50, true)) {
+            assertThat(decode.getBitmap()).isNull();
+        }
+    }
+
+    @Test
+    public void testOpen_decodeInFlight_waitsForIt() throws Exception {
+        CountDownLatch opened = new CountDownLatch(1);
+        Bitmap[] shared = new Bitmap[1];
+        try (DecodeTable.Decode decode = mDecodeTable.open(IMAGE_URI, null, FIT_100, true)) {
+            assertThat(decode.getBitmap()).isNull();
+
+            Thread other = new Thread(() -> {
+                opened.countDown();
+                try (DecodeTable.Decode otherDecode =
+                             mDecodeTable.open(IMAGE_URI, null, FIT_100, true)) {
+                    shared[0] = otherDecode.getBitmap();
+                }
+            });
+            other.start();
+            assertThat(opened.await(5, TimeUnit.SECONDS)).isTrue();
+            decode.publish(mBitmap, SOURCE_SIZE);
+            decode.close();
+            other.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        assertThat(shared[0]).isSameAs(mBitmap);
+    }
+
+    private void publish(Bitmap bitmap) {
+        try (DecodeTable.Decode decode = mDecodeTable.open(IMAGE_URI, null, FIT_100, true)) {
+            decode.publish(bitmap, SOURCE_SIZE);
+        }
+    }
+}
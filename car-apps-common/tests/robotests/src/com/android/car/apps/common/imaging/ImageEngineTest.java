@@ -0,0 +1,104 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common.imaging;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.graphics.Bitmap;
+
+import com.android.car.apps.common.TestConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class ImageEngineTest {
+
+    private static final int VALUE_SIZE = 10;
+
+    private ImageEngine.Cache<String, Object> mCache;
+
+    @Before
+    public void setUp() {
+        mCache = ImageEngine.getInstance(RuntimeEnvironment.application)
+                .createCache("test", value -> VALUE_SIZE, null);
+    }
+
+    @Test
+    public void testPut_sameValueUnderTwoKeys_isChargedOnce() {
+        Object value = new Object();
+
+        mCache.put("a", value);
+        mCache.put("b", value);
+
+        assertThat(mCache.get("a")).isSameAs(value);
+        assertThat(mCache.get("b")).isSameAs(value);
+        assertThat(mCache.size()).isEqualTo(VALUE_SIZE);
+    }
+
+    @Test
+    public void testPut_differentValues_areChargedEach() {
+        mCache.put("a", new Object());
+        mCache.put("b", new Object());
+
+        assertThat(mCache.size()).isEqualTo(2 * VALUE_SIZE);
+    }
+
+    @Test
+    public void testRemove_lastEntryOfValue_chargesItAgainWhenPutBack() {
+        Object value = new Object();
+        mCache.put("a", value);
+        mCache.put("b", value);
+
+        mCache.remove("a");
+        mCache.remove("b");
+        assertThat(mCache.size()).isEqualTo(0);
+
+        mCache.put("c", value);
+        assertThat(mCache.size()).isEqualTo(VALUE_SIZE);
+    }
+
+    @Test
+    public void testPut_valuesHoldingTheSameBitmap_areChargedOnce() {
+        ImageEngine engine = ImageEngine.getInstance(RuntimeEnvironment.application);
+        ImageEngine.Cache<String, Object[]> first = engine.createCache("first",
+                value -> VALUE_SIZE, value -> (Bitmap) value[0], null, null);
+        ImageEngine.Cache<String, Object[]> second = engine.createCache("second",
+                value -> VALUE_SIZE, value -> (Bitmap) value[0], null, null);
+        Bitmap bitmap = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+
+        first.put("a", new Object[] {bitmap});
+        second.put("a", new Object[] {bitmap});
+
+        assertThat(first.size() + second.size()).isEqualTo(VALUE_SIZE);
+    }
+
+    @Test
+    public void testPut_sameKeyAndValue_staysChargedOnce() {
+        Object value = new Object();
+        mCache.put("a", value);
+
+        mCache.put("a", value);
+
+        assertThat(mCache.size()).isEqualTo(VALUE_SIZE);
+    }
+}
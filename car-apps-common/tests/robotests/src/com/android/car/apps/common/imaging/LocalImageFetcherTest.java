@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.apps.common.imaging;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.util.Size;
+
+import com.android.car.apps.common.TestConfig;
+import com.android.car.apps.common.imaging.ImageBinder.Priority;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BiConsumer;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = TestConfig.MANIFEST_PATH, sdk = TestConfig.SDK_VERSION)
+public class LocalImageFetcherTest {
+
+    private static final Size MAX_SIZE = new Size(100, 100);
+
+    private final ImageKey mOffscreenKey = new ImageKey(Uri.parse("content://test/1"), MAX_SIZE);
+    private final ImageKey mVisibleKey = new ImageKey(Uri.parse("content://test/2"), MAX_SIZE);
+    private final BiConsumer<ImageKey, Drawable> mOffscreenConsumer = (key, drawable) -> { };
+    private final BiConsumer<ImageKey, Drawable> mVisibleConsumer = (key, drawable) -> { };
+    private final BiConsumer<ImageKey, Drawable> mLateConsumer = (key, drawable) -> { };
+
+    private final CountDownLatch mBlockerStarted = new CountDownLatch(1);
+    private final CountDownLatch mReleaseBlocker = new CountDownLatch(1);
+    private PriorityExecutor mThreadPool;
+    private LocalImageFetcher mFetcher;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        // A single thread, kept busy, and room for a single pending task.
+        mThreadPool = new PriorityExecutor(1, 1);
+        mThreadPool.execute(() -> {
+            mBlockerStarted.countDown();
+            try {
+                mReleaseBlocker.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, Priority.VISIBLE);
+        mBlockerStarted.await();
+        mFetcher = new LocalImageFetcher(RuntimeEnvironment.application, mThreadPool);
+
+        mFetcher.getImage(RuntimeEnvironment.application, mOffscreenKey, mOffscreenConsumer,
+                Priority.BACKGROUND);
+        assertThat(mThreadPool.getQueueSize()).isEqualTo(1);
+        // Keep onTaskDropped pending, as when the drop happens in the middle of a frame.
+        ShadowLooper.pauseMainLooper();
+        mFetcher.getImage(RuntimeEnvironment.application, mVisibleKey, mVisibleConsumer);
+        assertThat(mThreadPool.getQueueSize()).isEqualTo(1);
+        assertThat(mThreadPool.getDroppedCount()).isEqualTo(1);
+    }
+
+    @After
+    public void tearDown() {
+        ShadowLooper.unPauseMainLooper();
+        mFetcher.cancelRequest(mOffscreenKey, mOffscreenConsumer);
+        mFetcher.cancelRequest(mOffscreenKey, mLateConsumer);
+        mFetcher.cancelRequest(mVisibleKey, mVisibleConsumer);
+        mReleaseBlocker.countDown();
+    }
+
+    @Test
+    public void testVisibleRequest_beforeDropIsHandled_startsNewTask() {
+        mFetcher.getImage(RuntimeEnvironment.application, mOffscreenKey, mLateConsumer);
+
+        assertThat(mThreadPool.getQueueSize()).isEqualTo(2);
+        ShadowLooper.idleMainLooper();
+        assertThat(mThreadPool.getQueueSize()).isEqualTo(2);
+    }
+
+    @Test
+    public void testRaisedPriority_beforeDropIsHandled_startsNewTask() {
+        mFetcher.setPriority(mOffscreenKey, mOffscreenConsumer, Priority.VISIBLE);
+
+        assertThat(mThreadPool.getQueueSize()).isEqualTo(2);
+        ShadowLooper.idleMainLooper();
+        assertThat(mThreadPool.getQueueSize()).isEqualTo(2);
+    }
+
+    @Test
+    public void testDroppedTask_keepsOffscreenConsumerWaiting() {
+        ShadowLooper.idleMainLooper();
+        assertThat(mThreadPool.getQueueSize()).isEqualTo(1);
+
+        mFetcher.setPriority(mOffscreenKey, mOffscreenConsumer, Priority.VISIBLE);
+
+        assertThat(mThreadPool.getQueueSize()).isEqualTo(2);
+    }
+}
@@ -81,7 +81,7 @@ public class AppSelectionFragment extends DialogFragment {
 
 
     private class AppGridAdapter extends RecyclerView.Adapter<AppItemViewHolder> {
-        private List<MediaSource> mMediaSources;
+        private List<MediaSource> mMediaSources = new ArrayList<>();
 
         /**
          * Triggers a refresh of media sources
@@ -195,7 +195,9 @@ public class AppSelectionFragment extends DialogFragment {
 
         int columnNumber = getResources().getInteger(R.integer.num_app_selector_columns);
         AppGridAdapter gridAdapter = new AppGridAdapter();
-        gridAdapter.updateSources(MediaSourcesLiveData.getInstance(getContext()).getList());
+        // The sources are loaded in the background, most often before the selector is opened.
+        MediaSourcesLiveData.getInstance(getContext()).observe(getViewLifecycleOwner(),
+                gridAdapter::updateSources);
         mDisplayWidget = view.findViewById(R.id.app_switch_container);
         mDisplayWidget.setFragmentOwner(this);
         mDisplayWidget.setFragmentActivity(getActivity());
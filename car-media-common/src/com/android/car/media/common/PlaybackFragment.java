@@ -99,6 +99,11 @@ public class PlaybackFragment extends Fragment {
                             ? BitmapUtils.fromDrawable(drawable, maxArtSize) : null;
                     albumBackground.setImageBitmap(bitmap, true);
                 });
+        // Full-bleed art: show a cheap preview while the full size image is decoded, the
+        // CrossfadeImageView animates to the full image when it arrives.
+        int preview = activity.getResources().getInteger(
+                R.integer.playback_widget_bitmap_preview_size_px);
+        mAlbumArtBinder.setPreviewSize(new Size(preview, preview));
 
         playbackViewModel.getMetadata().observe(getViewLifecycleOwner(),
                 item -> mAlbumArtBinder.setImage(PlaybackFragment.this.getContext(),
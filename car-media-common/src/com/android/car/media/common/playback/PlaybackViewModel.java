@@ -49,6 +49,7 @@ import com.android.car.media.common.MediaItemMetadata;
 import com.android.car.media.common.R;
 import com.android.car.media.common.source.MediaSourceColors;
 import com.android.car.media.common.source.MediaSourceViewModel;
+import com.android.car.media.common.source.MediaSourcesLiveData;
 import com.android.internal.annotations.VisibleForTesting;
 
 import java.lang.annotation.Retention;
@@ -149,12 +150,26 @@ public class PlaybackViewModel extends AndroidViewModel {
     }
 
     /**
-     * Returns a LiveData that emits the colors for the currently set media source.
+     * Returns a LiveData that emits the colors for the currently set media source. The value is
+     * null when there is no media source, and also while the colors of a new source are being
+     * extracted in the background (unless they were cached): observers must then use their
+     * default colors.
      */
     public LiveData<MediaSourceColors> getMediaSourceColors() {
         return mColors;
     }
 
+    /**
+     * Returns the colors pre-computed by {@link MediaSourcesLiveData} or cached by the factory,
+     * or null if they need to be extracted.
+     */
+    @Nullable
+    private MediaSourceColors getCachedColors(String packageName) {
+        MediaSourceColors colors =
+                MediaSourcesLiveData.getInstance(getApplication()).getColors(packageName);
+        return colors != null ? colors : mColorsFactory.getCachedColors(packageName);
+    }
+
     /**
      * Returns a LiveData that emits a MediaItemMetadata of the current media item in the session
      * managed by the provided {@link MediaControllerCompat}.
@@ -243,7 +258,20 @@ public class PlaybackViewModel extends AndroidViewModel {
             if (mMediaController != null) {
                 mMediaController.registerCallback(this);
 
-                mColors.setValue(mColorsFactory.extractColors(controller.getPackageName()));
+                String packageName = controller.getPackageName();
+                MediaSourceColors colors = getCachedColors(packageName);
+                // Null until the colors are extracted, rather than the colors of the previous
+                // source.
+                mColors.setValue(colors);
+                if (colors == null) {
+                    // Extracting the colors inflates the theme of the source, keep it off the
+                    // main thread.
+                    mColorsFactory.extractColorsAsync(packageName, extractedColors -> {
+                        if (mMediaController == controller) {
+                            mColors.setValue(extractedColors);
+                        }
+                    });
+                }
 
                 // The apps don't always send updates so make sure we fetch the most recent values.
                 onMetadataChanged(mMediaController.getMetadata());
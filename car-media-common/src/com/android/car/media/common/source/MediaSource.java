@@ -65,6 +65,9 @@ public class MediaSource {
     private final CharSequence mDisplayName;
     @NonNull
     private final Drawable mIcon;
+    /** Computed on first use, see {@link #getRoundPackageIcon}. */
+    @Nullable
+    private volatile Bitmap mRoundIcon;
 
     /**
      * Creates a {@link MediaSource} for the given {@link ComponentName}
@@ -195,10 +198,17 @@ public class MediaSource {
     }
 
     /**
-     * Returns this media source's icon cropped to a circle.
+     * Returns this media source's icon cropped to a circle. The bitmap is computed on first use
+     * and then shared, so it must not be modified.
      */
     public Bitmap getRoundPackageIcon() {
-        return getRoundCroppedBitmap(BitmapUtils.fromDrawable(mIcon, null));
+        Bitmap roundIcon = mRoundIcon;
+        if (roundIcon == null) {
+            // Concurrent first calls may compute it twice, either result is fine.
+            roundIcon = getRoundCroppedBitmap(BitmapUtils.fromDrawable(mIcon, null));
+            mRoundIcon = roundIcon;
+        }
+        return roundIcon;
     }
 
     /**
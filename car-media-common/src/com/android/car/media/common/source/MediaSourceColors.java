@@ -17,14 +17,24 @@
 package com.android.car.media.common.source;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.util.Log;
 
+import androidx.annotation.GuardedBy;
+import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+import androidx.arch.core.executor.ArchTaskExecutor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Contains the colors for a {@link MediaSource}
@@ -73,7 +83,13 @@ public class MediaSourceColors {
         return mPrimaryColorDark == FLAG_USE_DEFAULT_COLOR ? defaultColor : mPrimaryColorDark;
     }
 
-    /** Extracts colors needed for a given package name to create a MediaSourceColors object */
+    /**
+     * Extracts colors needed for a given package name to create a MediaSourceColors object.
+     * <p>
+     * Extracting the colors requires inflating the theme of the package, so the results are kept
+     * in memory (shared by all the factories) and on disk, keyed by the version code and last
+     * update time of the package so that an updated package gets its colors extracted again.
+     */
     public static class Factory {
         private static final String TAG = "MediaSourceColors.Factory";
 
@@ -81,6 +97,13 @@ public class MediaSourceColors {
         private static final String THEME_META_DATA_NAME =
                 "com.google.android.gms.car.application.theme";
 
+        /** Name of the {@link SharedPreferences} file storing the extracted colors. */
+        private static final String PREFERENCES_NAME = "media_source_colors";
+
+        private static final Object sLock = new Object();
+        @GuardedBy("sLock")
+        private static final Map<String, CachedColors> sMemoryCache = new HashMap<>();
+
         private final Context mContext;
 
         public Factory(@NonNull Context context) {
@@ -96,12 +119,95 @@ public class MediaSourceColors {
             return extractColors(mediaSource.getPackageName());
         }
 
-        /** Extract colors for {@code packageName} and create a MediaSourceColors for it */
+        /**
+         * Returns the colors of {@code packageName} if they are in the memory cache, or null. This
+         * doesn't do any IO and can be called from the main thread.
+         */
+        @Nullable
+        public MediaSourceColors getCachedColors(@Nullable String packageName) {
+            if (packageName == null) {
+                return EMPTY;
+            }
+            synchronized (sLock) {
+                CachedColors cached = sMemoryCache.get(packageName);
+                return cached != null ? cached.mColors : null;
+            }
+        }
+
+        /**
+         * Extracts the colors of {@code packageName} on a background thread, unless they are in
+         * the memory cache, and delivers them to {@code callback} on the main thread.
+         */
+        @MainThread
+        public void extractColorsAsync(@Nullable String packageName,
+                @NonNull Consumer<MediaSourceColors> callback) {
+            MediaSourceColors cached = getCachedColors(packageName);
+            if (cached != null) {
+                callback.accept(cached);
+                return;
+            }
+            ArchTaskExecutor executor = ArchTaskExecutor.getInstance();
+            executor.executeOnDiskIO(() -> {
+                MediaSourceColors colors = extractColors(packageName);
+                executor.postToMainThread(() -> callback.accept(colors));
+            });
+        }
+
+        /**
+         * Drops the cached colors of {@code packageName}, eg: when the package is updated or
+         * removed.
+         */
+        public void invalidate(@NonNull String packageName) {
+            synchronized (sLock) {
+                sMemoryCache.remove(packageName);
+            }
+            getPreferences().edit().remove(packageName).apply();
+        }
+
+        /**
+         * Extract colors for {@code packageName} and create a MediaSourceColors for it. The
+         * result comes from the cache when the package hasn't changed since it was extracted.
+         */
+        @WorkerThread
         @NonNull
         public MediaSourceColors extractColors(@Nullable String packageName) {
             if (packageName == null) {
                 return EMPTY;
             }
+            PackageInfo packageInfo;
+            try {
+                packageInfo = mContext.getPackageManager().getPackageInfo(packageName, 0);
+            } catch (PackageManager.NameNotFoundException e) {
+                Log.w(TAG, "Unable to update media client package attributes.", e);
+                return EMPTY;
+            }
+            long versionCode = packageInfo.getLongVersionCode();
+            long lastUpdateTime = packageInfo.lastUpdateTime;
+
+            CachedColors cached;
+            synchronized (sLock) {
+                cached = sMemoryCache.get(packageName);
+            }
+            if (cached == null || !cached.matches(versionCode, lastUpdateTime)) {
+                cached = CachedColors.parse(getPreferences().getString(packageName, null));
+                if (cached == null || !cached.matches(versionCode, lastUpdateTime)) {
+                    cached = new CachedColors(versionCode, lastUpdateTime,
+                            extractColorsFromTheme(packageName));
+                    getPreferences().edit().putString(packageName, cached.serialize()).apply();
+                }
+                synchronized (sLock) {
+                    sMemoryCache.put(packageName, cached);
+                }
+            }
+            return cached.mColors;
+        }
+
+        private SharedPreferences getPreferences() {
+            return mContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        }
+
+        @NonNull
+        private MediaSourceColors extractColorsFromTheme(@NonNull String packageName) {
             TypedArray ta = null;
             try {
                 ApplicationInfo applicationInfo =
@@ -137,4 +243,49 @@ public class MediaSourceColors {
             }
         }
     }
+
+    /** The colors extracted from a given version of a package. */
+    private static class CachedColors {
+        private static final String SEPARATOR = ",";
+
+        private final long mVersionCode;
+        private final long mLastUpdateTime;
+        private final MediaSourceColors mColors;
+
+        CachedColors(long versionCode, long lastUpdateTime, @NonNull MediaSourceColors colors) {
+            mVersionCode = versionCode;
+            mLastUpdateTime = lastUpdateTime;
+            mColors = colors;
+        }
+
+        boolean matches(long versionCode, long lastUpdateTime) {
+            return mVersionCode == versionCode && mLastUpdateTime == lastUpdateTime;
+        }
+
+        String serialize() {
+            return mVersionCode + SEPARATOR + mLastUpdateTime
+                    + SEPARATOR + mColors.mPrimaryColor
+                    + SEPARATOR + mColors.mAccentColor
+                    + SEPARATOR + mColors.mPrimaryColorDark;
+        }
+
+        /** Returns the colors stored by {@link #serialize}, or null if they can't be read. */
+        @Nullable
+        static CachedColors parse(@Nullable String value) {
+            if (value == null) {
+                return null;
+            }
+            String[] parts = value.split(SEPARATOR);
+            if (parts.length != 5) {
+                return null;
+            }
+            try {
+                return new CachedColors(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                        new MediaSourceColors(Integer.parseInt(parts[2]),
+                                Integer.parseInt(parts[3]), Integer.parseInt(parts[4])));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
 }
@@ -24,37 +24,71 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
+import android.net.Uri;
 import android.service.media.MediaBrowserService;
 import android.util.Log;
 
+import androidx.annotation.GuardedBy;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+import androidx.arch.core.executor.ArchTaskExecutor;
+import androidx.lifecycle.LiveData;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * Singleton that provides access to the list of all possible media sources that can be selected
  * to be played.
+ * <p>
+ * The list is built on a background thread when the LiveData becomes active, together with the
+ * round icon and the {@link MediaSourceColors} of each source, so that observers (eg: the app
+ * selector) don't hit the {@link PackageManager} on the UI thread. When a package is added or
+ * removed, only the sources of that package are reloaded.
  */
 // TODO(arnaudberry) rename to MediaSourcesProvider
-public class MediaSourcesLiveData {
+public class MediaSourcesLiveData extends LiveData<List<MediaSource>> {
 
     private static final String TAG = "MediaSources";
 
+    private static final Comparator<MediaSource> DISPLAY_NAME_COMPARATOR =
+            Comparator.comparing(mediaSource -> mediaSource.getDisplayName().toString());
+
     private static MediaSourcesLiveData sInstance;
     private final Context mAppContext;
+    private final MediaSourceColors.Factory mColorsFactory;
+
+    private final Object mLock = new Object();
+    /** Null until loaded, or after {@link #reset}. */
+    @GuardedBy("mLock")
+    @Nullable
+    private Map<ComponentName, MediaSource> mMediaSources;
+    @GuardedBy("mLock")
+    private final Map<String, MediaSourceColors> mColors = new HashMap<>();
+    @GuardedBy("mLock")
     @Nullable
-    private List<MediaSource> mMediaSources;
+    private List<MediaSource> mSortedList;
+    /** Bumped when the sources change, so that loads started before don't publish them. */
+    @GuardedBy("mLock")
+    private int mGeneration;
 
     private final BroadcastReceiver mAppInstallUninstallReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            reset();
+            Uri data = intent.getData();
+            String packageName = data != null ? data.getSchemeSpecificPart() : null;
+            if (packageName == null) {
+                reset();
+            } else {
+                ArchTaskExecutor.getInstance().executeOnDiskIO(() -> updatePackage(packageName));
+            }
         }
     };
 
@@ -72,13 +106,23 @@ public class MediaSourcesLiveData {
         return new MediaSourcesLiveData(context);
     }
 
+    /** Drops everything, the list is reloaded by the next {@link #getList} or activation. */
     @VisibleForTesting
     void reset() {
-        mMediaSources = null;
+        synchronized (mLock) {
+            mMediaSources = null;
+            mColors.clear();
+            mSortedList = null;
+            mGeneration++;
+        }
+        if (hasActiveObservers()) {
+            ArchTaskExecutor.getInstance().executeOnDiskIO(this::loadIfNeeded);
+        }
     }
 
     private MediaSourcesLiveData(@NonNull Context context) {
         mAppContext = context.getApplicationContext();
+        mColorsFactory = new MediaSourceColors.Factory(mAppContext);
         IntentFilter filter = new IntentFilter();
         filter.addAction(Intent.ACTION_PACKAGE_ADDED);
         filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
@@ -86,33 +130,163 @@ public class MediaSourcesLiveData {
         mAppContext.registerReceiver(mAppInstallUninstallReceiver, filter);
     }
 
-    /** Returns the alphabetically sorted list of available media sources. */
+    @Override
+    protected void onActive() {
+        super.onActive();
+        ArchTaskExecutor.getInstance().executeOnDiskIO(this::loadIfNeeded);
+    }
+
+    /**
+     * Returns the alphabetically sorted list of available media sources, or an empty list if it
+     * hasn't been loaded yet. The load then starts in the background: observe this LiveData to
+     * get the list once it is loaded.
+     */
     public List<MediaSource> getList() {
-        if (mMediaSources == null) {
-            mMediaSources = getComponentNames().stream()
-                    .filter(Objects::nonNull)
-                    .map(componentName -> MediaSource.create(mAppContext, componentName))
-                    .filter(mediaSource -> {
-                        if (mediaSource == null) {
-                            Log.w(TAG, "Media source is null");
-                            return false;
-                        }
-                        return true;
-                    })
-                    .sorted(Comparator.comparing(
-                            mediaSource -> mediaSource.getDisplayName().toString()))
-                    .collect(Collectors.toList());
-        }
-        return mMediaSources;
+        synchronized (mLock) {
+            if (mSortedList != null) {
+                return mSortedList;
+            }
+        }
+        ArchTaskExecutor.getInstance().executeOnDiskIO(this::loadIfNeeded);
+        synchronized (mLock) {
+            // The disk IO executor may have run the load right away.
+            return mSortedList != null ? mSortedList : Collections.emptyList();
+        }
     }
 
     /**
-     * Generates a set of all possible media services to choose from.
+     * Returns the colors of the given media source package, if it is one of the loaded media
+     * sources, or null.
      */
-    private Set<ComponentName> getComponentNames() {
+    @Nullable
+    public MediaSourceColors getColors(@Nullable String packageName) {
+        synchronized (mLock) {
+            return mColors.get(packageName);
+        }
+    }
+
+    /**
+     * Loads the sources if needed. The package manager queries, icons and colors are loaded
+     * without holding {@link #mLock}, which is only taken to publish them, so that the UI thread
+     * never waits for them in {@link #getColors}.
+     */
+    @WorkerThread
+    private List<MediaSource> loadIfNeeded() {
+        while (true) {
+            int generation;
+            synchronized (mLock) {
+                if (mSortedList != null) {
+                    return mSortedList;
+                }
+                generation = mGeneration;
+            }
+            Map<ComponentName, MediaSource> sources = new HashMap<>();
+            Map<String, MediaSourceColors> colors = new HashMap<>();
+            for (ComponentName componentName : getComponentNames(null)) {
+                loadSource(componentName, sources, colors);
+            }
+            List<MediaSource> list = publishIfCurrent(generation, sources, colors);
+            if (list != null) {
+                return list;
+            }
+        }
+    }
+
+    /**
+     * Publishes the sources loaded from the given generation, returns their sorted list. Returns
+     * null if another load published first, or if a package changed since the load started and
+     * the load may have missed it.
+     */
+    @VisibleForTesting
+    @Nullable
+    List<MediaSource> publishIfCurrent(int generation, Map<ComponentName, MediaSource> sources,
+            Map<String, MediaSourceColors> colors) {
+        synchronized (mLock) {
+            if (mGeneration != generation || mSortedList != null) {
+                return null;
+            }
+            mMediaSources = sources;
+            mColors.clear();
+            mColors.putAll(colors);
+            return publishLocked();
+        }
+    }
+
+    @VisibleForTesting
+    int getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    /** Reloads the sources of the given package, if the list was loaded. */
+    @WorkerThread
+    private void updatePackage(@NonNull String packageName) {
+        mColorsFactory.invalidate(packageName);
+        synchronized (mLock) {
+            // A load in progress may have missed the change, it starts over.
+            mGeneration++;
+            if (mMediaSources == null) {
+                // Not loaded yet, it will be up to date when it is.
+                return;
+            }
+        }
+        Map<ComponentName, MediaSource> sources = new HashMap<>();
+        Map<String, MediaSourceColors> colors = new HashMap<>();
+        for (ComponentName componentName : getComponentNames(packageName)) {
+            loadSource(componentName, sources, colors);
+        }
+        synchronized (mLock) {
+            if (mMediaSources == null) {
+                // Reset meanwhile.
+                return;
+            }
+            mMediaSources.keySet().removeIf(
+                    componentName -> packageName.equals(componentName.getPackageName()));
+            mMediaSources.putAll(sources);
+            mColors.remove(packageName);
+            mColors.putAll(colors);
+            publishLocked();
+        }
+    }
+
+    /** Creates the source and pre-computes what the UI needs to display it. */
+    @WorkerThread
+    private void loadSource(ComponentName componentName, Map<ComponentName, MediaSource> sources,
+            Map<String, MediaSourceColors> colors) {
+        MediaSource mediaSource = MediaSource.create(mAppContext, componentName);
+        if (mediaSource == null) {
+            Log.w(TAG, "Media source is null");
+            return;
+        }
+        mediaSource.getRoundPackageIcon();
+        String packageName = mediaSource.getPackageName();
+        if (!colors.containsKey(packageName)) {
+            colors.put(packageName, mColorsFactory.extractColors(packageName));
+        }
+        sources.put(componentName, mediaSource);
+    }
+
+    @GuardedBy("mLock")
+    private List<MediaSource> publishLocked() {
+        List<MediaSource> list = new ArrayList<>(mMediaSources.values());
+        list.sort(DISPLAY_NAME_COMPARATOR);
+        mSortedList = list;
+        postValue(list);
+        return list;
+    }
+
+    /**
+     * Generates a set of all possible media services to choose from, optionally restricted to
+     * the given package.
+     */
+    private Set<ComponentName> getComponentNames(@Nullable String packageName) {
         PackageManager packageManager = mAppContext.getPackageManager();
         Intent mediaIntent = new Intent();
         mediaIntent.setAction(MediaBrowserService.SERVICE_INTERFACE);
+        if (packageName != null) {
+            mediaIntent.setPackage(packageName);
+        }
         List<ResolveInfo> mediaServices = packageManager.queryIntentServices(mediaIntent,
                 PackageManager.GET_RESOLVED_FILTER);
 
@@ -22,12 +22,14 @@ import static org.robolectric.RuntimeEnvironment.application;
 import static org.robolectric.Shadows.shadowOf;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
+import android.net.Uri;
 import android.os.Bundle;
 import android.service.media.MediaBrowserService;
 
@@ -47,6 +49,7 @@ import org.robolectric.shadows.ShadowApplication;
 import org.robolectric.shadows.ShadowPackageManager;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -160,6 +163,77 @@ public class MediaSourcesLiveDataTest {
                 .containsExactly(TEST_SERVICE_PACKAGE_WITH_METADATA);
     }
 
+    @Test
+    public void testUpdatePackage_added_addsItsSources() {
+        mMediaSources.getList();
+        List<ResolveInfo> serviceResolveInfo = buildServiceResolveInfo();
+        serviceResolveInfo.add(newServiceResolveInfo(TEST_SERVICE_PACKAGE_2));
+        setResolveInfos(buildActivityResolveInfo(), serviceResolveInfo);
+
+        sendPackageBroadcast(Intent.ACTION_PACKAGE_ADDED, TEST_SERVICE_PACKAGE_2);
+
+        assertThat(getPackageNames(mMediaSources.getValue()))
+                .containsExactly(TEST_SERVICE_PACKAGE_1, TEST_SERVICE_PACKAGE_2,
+                        TEST_SERVICE_PACKAGE_WITH_METADATA);
+        assertThat(mMediaSources.getColors(TEST_SERVICE_PACKAGE_2)).isNotNull();
+    }
+
+    @Test
+    public void testUpdatePackage_removed_removesItsSources() {
+        mMediaSources.getList();
+        List<ResolveInfo> serviceResolveInfo = buildServiceResolveInfo();
+        serviceResolveInfo.remove(0);
+        setResolveInfos(buildActivityResolveInfo(), serviceResolveInfo);
+
+        sendPackageBroadcast(Intent.ACTION_PACKAGE_REMOVED, TEST_SERVICE_PACKAGE_1);
+
+        assertThat(getPackageNames(mMediaSources.getValue()))
+                .containsExactly(TEST_SERVICE_PACKAGE_WITH_METADATA);
+        assertThat(mMediaSources.getColors(TEST_SERVICE_PACKAGE_1)).isNull();
+    }
+
+    @Test
+    public void testUpdatePackage_noPackage_reloadsEverything() {
+        mMediaSources.getList();
+        List<ResolveInfo> serviceResolveInfo = buildServiceResolveInfo();
+        serviceResolveInfo.add(newServiceResolveInfo(TEST_SERVICE_PACKAGE_2));
+        setResolveInfos(buildActivityResolveInfo(), serviceResolveInfo);
+
+        sendPackageBroadcast(Intent.ACTION_PACKAGE_ADDED, null);
+
+        assertThat(getPackageNames(mMediaSources.getList()))
+                .containsExactly(TEST_SERVICE_PACKAGE_1, TEST_SERVICE_PACKAGE_2,
+                        TEST_SERVICE_PACKAGE_WITH_METADATA);
+    }
+
+    @Test
+    public void testLoad_packageChangedMeanwhile_isDiscarded() {
+        int generation = mMediaSources.getGeneration();
+
+        sendPackageBroadcast(Intent.ACTION_PACKAGE_ADDED, TEST_SERVICE_PACKAGE_2);
+
+        assertThat(mMediaSources.publishIfCurrent(generation, new HashMap<>(), new HashMap<>()))
+                .isNull();
+        assertThat(mMediaSources.getValue()).isNull();
+        assertThat(mMediaSources.publishIfCurrent(mMediaSources.getGeneration(),
+                new HashMap<>(), new HashMap<>())).isEmpty();
+    }
+
+    private void sendPackageBroadcast(String action, @Nullable String packageName) {
+        Intent intent = packageName != null
+                ? new Intent(action, Uri.fromParts("package", packageName, null))
+                : new Intent(action);
+        ShadowApplication.getInstance().getRegisteredReceivers().stream()
+                .filter(wrapper -> wrapper.intentFilter.hasAction(action))
+                .map(wrapper -> wrapper.broadcastReceiver)
+                .forEach(broadcastReceiver -> broadcastReceiver.onReceive(application, intent));
+    }
+
+    private static List<String> getPackageNames(List<MediaSource> sources) {
+        assertThat(sources).isNotNull();
+        return sources.stream().map(MediaSource::getPackageName).collect(Collectors.toList());
+    }
+
     @NonNull
     private List<ResolveInfo> buildActivityResolveInfo() {
         List<ResolveInfo> activityResolveInfo = new ArrayList<>();
@@ -179,6 +253,13 @@ public class MediaSourcesLiveDataTest {
 
     private void setPackageManagerResolveInfos(List<ResolveInfo> activityResolveInfo,
             List<ResolveInfo> serviceResolveInfo) {
+        setResolveInfos(activityResolveInfo, serviceResolveInfo);
+        mMediaSources.reset();
+    }
+
+    /** Changes the installed packages without telling mMediaSources. */
+    private void setResolveInfos(List<ResolveInfo> activityResolveInfo,
+            List<ResolveInfo> serviceResolveInfo) {
         ShadowPackageManager packageManager = shadowOf(application.getPackageManager());
         packageManager.removeResolveInfosForIntent(mActivityIntent, TEST_ACTIVITY_PACKAGE_1);
         packageManager.removeResolveInfosForIntent(mActivityIntent, TEST_ACTIVITY_PACKAGE_2);
@@ -186,6 +267,12 @@ public class MediaSourcesLiveDataTest {
         packageManager.removeResolveInfosForIntent(mServiceIntent, TEST_SERVICE_PACKAGE_2);
         packageManager.removeResolveInfosForIntent(mServiceIntent,
                 TEST_SERVICE_PACKAGE_WITH_METADATA);
+        for (String packageName : new String[] {TEST_SERVICE_PACKAGE_1, TEST_SERVICE_PACKAGE_2,
+                TEST_SERVICE_PACKAGE_WITH_METADATA}) {
+            Intent intent = new Intent(mServiceIntent);
+            intent.setPackage(packageName);
+            packageManager.removeResolveInfosForIntent(intent, packageName);
+        }
 
         packageManager.addResolveInfoForIntent(mActivityIntent, activityResolveInfo);
 
@@ -195,7 +282,6 @@ public class MediaSourcesLiveDataTest {
             intent.setPackage(info.serviceInfo.packageName);
             packageManager.addResolveInfoForIntent(intent, info);
         }
-        mMediaSources.reset();
     }
 
 
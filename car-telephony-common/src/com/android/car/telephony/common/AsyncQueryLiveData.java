@@ -48,7 +48,18 @@ public abstract class AsyncQueryLiveData<T> extends LiveData<T> {
 
     public AsyncQueryLiveData(Context context, QueryParam.Provider provider) {
         mObservableAsyncQuery = new ObservableAsyncQuery(provider, context.getContentResolver(),
-                this::onCursorLoaded);
+                new ObservableAsyncQuery.OnQueryFinishedListener() {
+                    @Override
+                    public void onQueryFinished(@Nullable Cursor cursor) {
+                        onCursorLoaded(cursor, null);
+                    }
+
+                    @Override
+                    public void onQueryFinished(@Nullable Cursor cursor,
+                            @Nullable QueryParam queryParam) {
+                        onCursorLoaded(cursor, queryParam);
+                    }
+                });
     }
 
     @Override
@@ -72,21 +83,33 @@ public abstract class AsyncQueryLiveData<T> extends LiveData<T> {
     @WorkerThread
     protected abstract T convertToEntity(@NonNull Cursor cursor);
 
-    private void onCursorLoaded(Cursor cursor) {
+    /**
+     * Override this function to convert the loaded data depending on the {@link QueryParam} it
+     * was loaded with. Defaults to {@link #convertToEntity(Cursor)}. This function is called on
+     * non-UI thread.
+     */
+    @WorkerThread
+    protected T convertToEntity(@NonNull Cursor cursor, @Nullable QueryParam queryParam) {
+        return convertToEntity(cursor);
+    }
+
+    private void onCursorLoaded(Cursor cursor, @Nullable QueryParam queryParam) {
         Log.d(TAG, "onCursorLoaded: " + this);
         if (mCurrentCursorRunnable != null) {
             mCurrentCursorRunnable.closeCursorIfNecessary();
         }
-        mCurrentCursorRunnable = new CursorRunnable(cursor);
+        mCurrentCursorRunnable = new CursorRunnable(cursor, queryParam);
         sHandlerThread.getThreadHandler().post(mCurrentCursorRunnable);
     }
 
     private class CursorRunnable implements Runnable {
         private final Cursor mCursor;
+        private final QueryParam mQueryParam;
         private boolean mIsActive;
 
-        private CursorRunnable(@Nullable Cursor cursor) {
+        private CursorRunnable(@Nullable Cursor cursor, @Nullable QueryParam queryParam) {
             mCursor = cursor;
+            mQueryParam = queryParam;
             mIsActive = true;
         }
 
@@ -95,7 +118,7 @@ public abstract class AsyncQueryLiveData<T> extends LiveData<T> {
             // Bypass the workload to convert to entity and UI change triggered by post value if
             // cursor is not current.
             if (mIsActive) {
-                T entity = mCursor == null ? null : convertToEntity(mCursor);
+                T entity = mCursor == null ? null : convertToEntity(mCursor, mQueryParam);
                 if (mIsActive) {
                     postValue(entity);
                 }
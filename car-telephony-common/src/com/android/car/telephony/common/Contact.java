@@ -18,6 +18,7 @@ package com.android.car.telephony.common;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.icu.text.CollationKey;
 import android.icu.text.Collator;
 import android.net.Uri;
 import android.os.Parcel;
@@ -31,7 +32,9 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * Encapsulates data about a phone Contact entry. Typically loaded from the local Contact store.
@@ -57,6 +60,9 @@ public class Contact implements Parcelable, Comparable<Contact> {
      */
     private static final int TYPE_OTHER = 3;
 
+    /** Collator shared by the contacts, recreated when the default locale changes. */
+    private static Collator sCollator;
+    private static Locale sCollatorLocale;
 
     /**
      * A reference to the {@link ContactsContract.Contacts#_ID} that this data belongs to. See
@@ -147,6 +153,12 @@ public class Contact implements Parcelable, Comparable<Contact> {
 
     private PhoneNumber mPrimaryPhoneNumber;
 
+    /**
+     * The collation keys and name types of the names, computed once so that comparisons don't
+     * collate the names over and over again.
+     */
+    private SortKeys mSortKeys;
+
     /**
      * Parses a Contact entry for a Cursor loaded from the Contact Database.
      */
@@ -199,6 +211,8 @@ public class Contact implements Parcelable, Comparable<Contact> {
             Log.w(TAG, "Look up key is null. Fallback to use display name");
             contact.mLookupKey = contact.mDisplayName;
         }
+        // Contacts are loaded in the background, compute the sort keys there.
+        contact.getSortKeys(getCollator());
         return contact;
     }
 
@@ -397,8 +411,7 @@ public class Contact implements Parcelable, Comparable<Contact> {
      * letters, numbers, then special characters.
      */
     public int compareByDisplayName(@NonNull Contact otherContact) {
-        return compareNames(mDisplayName, otherContact.getDisplayName(),
-                mPhoneBookLabel, otherContact.getPhonebookLabel());
+        return compareDisplayNames(getCollator(), this, otherContact);
     }
 
     /**
@@ -406,21 +419,94 @@ public class Contact implements Parcelable, Comparable<Contact> {
      * letters, numbers, then special characters.
      */
     public int compareByAltDisplayName(@NonNull Contact otherContact) {
-        return compareNames(mAltDisplayName, otherContact.getAltDisplayName(),
-                mPhoneBookLabelAlt, otherContact.getPhonebookLabelAlt());
+        return compareAltDisplayNames(getCollator(), this, otherContact);
+    }
+
+    /**
+     * Returns a comparator ordering contacts like {@link #compareByDisplayName}, with the collator
+     * of the current locale. The collator is taken once, so a locale change can't make a sort
+     * mix the keys of two collators, and comparisons don't take any lock.
+     */
+    @NonNull
+    public static Comparator<Contact> displayNameComparator() {
+        Collator collator = getCollator();
+        return (contact, otherContact) -> compareDisplayNames(collator, contact, otherContact);
+    }
+
+    /**
+     * Returns a comparator ordering contacts like {@link #compareByAltDisplayName}, with the
+     * collator of the current locale. See {@link #displayNameComparator}.
+     */
+    @NonNull
+    public static Comparator<Contact> altDisplayNameComparator() {
+        Collator collator = getCollator();
+        return (contact, otherContact) -> compareAltDisplayNames(collator, contact, otherContact);
+    }
+
+    private static int compareDisplayNames(Collator collator, Contact contact,
+            Contact otherContact) {
+        SortKeys sortKeys = contact.getSortKeys(collator);
+        SortKeys otherSortKeys = otherContact.getSortKeys(collator);
+        return compareNames(sortKeys.mNameType, sortKeys.mNameKey,
+                otherSortKeys.mNameType, otherSortKeys.mNameKey);
+    }
+
+    private static int compareAltDisplayNames(Collator collator, Contact contact,
+            Contact otherContact) {
+        SortKeys sortKeys = contact.getSortKeys(collator);
+        SortKeys otherSortKeys = otherContact.getSortKeys(collator);
+        return compareNames(sortKeys.mAltNameType, sortKeys.mAltNameKey,
+                otherSortKeys.mAltNameType, otherSortKeys.mAltNameKey);
     }
 
     /**
-     * Compares two strings in an order of letters, numbers, then special characters.
+     * Compares two names in an order of letters, numbers, then special characters.
      */
-    private int compareNames(String name, String otherName, String label, String otherLabel) {
-        int type = getNameType(label);
-        int otherType = getNameType(otherLabel);
+    private static int compareNames(int type, CollationKey key, int otherType,
+            CollationKey otherKey) {
         if (type != otherType) {
             return Integer.compare(type, otherType);
         }
-        Collator collator = Collator.getInstance();
-        return collator.compare(name == null ? "" : name, otherName == null ? "" : otherName);
+        return key.compareTo(otherKey);
+    }
+
+    /** Returns the sort keys of this contact for {@code collator}, computing them if needed. */
+    private SortKeys getSortKeys(Collator collator) {
+        SortKeys sortKeys = mSortKeys;
+        if (sortKeys == null || sortKeys.mCollator != collator) {
+            sortKeys = new SortKeys(collator, this);
+            mSortKeys = sortKeys;
+        }
+        return sortKeys;
+    }
+
+    private static synchronized Collator getCollator() {
+        Locale locale = Locale.getDefault();
+        if (sCollator == null || !locale.equals(sCollatorLocale)) {
+            // A frozen collator is immutable and can be shared across threads.
+            sCollator = Collator.getInstance(locale).freeze();
+            sCollatorLocale = locale;
+        }
+        return sCollator;
+    }
+
+    /** The collation keys of the names of a contact, only valid for {@link #mCollator}. */
+    private static class SortKeys {
+        private final Collator mCollator;
+        private final int mNameType;
+        private final CollationKey mNameKey;
+        private final int mAltNameType;
+        private final CollationKey mAltNameKey;
+
+        SortKeys(Collator collator, Contact contact) {
+            mCollator = collator;
+            mNameType = getNameType(contact.mPhoneBookLabel);
+            mNameKey = collator.getCollationKey(
+                    contact.mDisplayName == null ? "" : contact.mDisplayName);
+            mAltNameType = getNameType(contact.mPhoneBookLabelAlt);
+            mAltNameKey = collator.getCollationKey(
+                    contact.mAltDisplayName == null ? "" : contact.mAltDisplayName);
+        }
     }
 
     /**
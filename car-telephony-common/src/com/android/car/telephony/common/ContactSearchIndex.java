@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.telephony.common;
+
+import android.text.TextUtils;
+import android.util.SparseIntArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable prefix index over a list of {@link Contact}s. Every word of the display name and
+ * the alternative display name is indexed, both as text and as the digits typed on a phone keypad
+ * (T9). Phone numbers are indexed by their digits.
+ *
+ * <p>Lookups are a binary search in sorted arrays followed by a scan of the matching entries, and
+ * only allocate for the matches, so their cost depends on the number of matches rather than on
+ * the number of contacts. Building the index sorts every word of every contact; as the index is
+ * immutable, it is built again for each change of the contact list.
+ */
+public class ContactSearchIndex {
+    /** An index without any contact. */
+    public static final ContactSearchIndex EMPTY =
+            new ContactSearchIndex(Collections.emptyList());
+
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{Mn}+");
+    private static final Pattern WORD_SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern NON_DIGITS = Pattern.compile("[^0-9]+");
+
+    /** Keypad digit of each letter from 'a' to 'z'. */
+    private static final char[] T9_DIGITS = "22233344455566677778889999".toCharArray();
+
+    /** Matches of phone numbers rank after the names. */
+    private static final int NUMBER_WORD_POSITION = Byte.MAX_VALUE;
+
+    private final List<Contact> mContacts;
+    private final Entries mNameEntries;
+    private final Entries mDigitEntries;
+    /** The normalized words of each contact, to match the words of a query after the first. */
+    private final String[][] mContactWords;
+    /** The T9 digits of each word of {@link #mContactWords}. */
+    private final String[][] mContactDigitWords;
+
+    /**
+     * Builds the index of the given contacts. The order of the list is used to rank the contacts
+     * which match equally well.
+     */
+    @WorkerThread
+    public ContactSearchIndex(@NonNull List<Contact> contacts) {
+        mContacts = contacts;
+        mContactWords = new String[contacts.size()][];
+        mContactDigitWords = new String[contacts.size()][];
+        EntriesBuilder nameEntries = new EntriesBuilder();
+        EntriesBuilder digitEntries = new EntriesBuilder();
+
+        for (int ordinal = 0; ordinal < contacts.size(); ordinal++) {
+            Contact contact = contacts.get(ordinal);
+            List<String> words = new ArrayList<>();
+            addWords(words, contact.getDisplayName());
+            addWords(words, contact.getAltDisplayName());
+
+            String[] digitWords = new String[words.size()];
+            for (int position = 0; position < words.size(); position++) {
+                String word = words.get(position);
+                nameEntries.add(word, ordinal, position);
+                digitWords[position] = toT9Digits(word);
+                if (digitWords[position] != null) {
+                    digitEntries.add(digitWords[position], ordinal, position);
+                }
+            }
+            for (PhoneNumber phoneNumber : contact.getNumbers()) {
+                String rawNumber = phoneNumber.getRawNumber();
+                String digits = rawNumber == null ? ""
+                        : NON_DIGITS.matcher(rawNumber).replaceAll("");
+                if (!digits.isEmpty()) {
+                    digitEntries.add(digits, ordinal, NUMBER_WORD_POSITION);
+                }
+            }
+            mContactWords[ordinal] = words.toArray(new String[0]);
+            mContactDigitWords[ordinal] = digitWords;
+        }
+        mNameEntries = nameEntries.build();
+        mDigitEntries = digitEntries.build();
+    }
+
+    /**
+     * Returns the contacts with a name word starting with each word of {@code query}, best
+     * matches first: contacts matching on the first word of their name, then on a complete word.
+     */
+    @NonNull
+    public List<Contact> searchByName(@Nullable String query, int maxResults) {
+        List<String> queryWords = new ArrayList<>();
+        addWords(queryWords, query);
+        if (queryWords.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return search(mNameEntries, mContactWords, queryWords, maxResults);
+    }
+
+    /**
+     * Returns the contacts with a name word whose keypad digits start with {@code digits}, or
+     * a phone number starting with {@code digits}, best matches first.
+     */
+    @NonNull
+    public List<Contact> searchByDigits(@Nullable String digits, int maxResults) {
+        if (TextUtils.isEmpty(digits)) {
+            return Collections.emptyList();
+        }
+        String query = NON_DIGITS.matcher(digits).replaceAll("");
+        if (query.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return search(mDigitEntries, mContactDigitWords, Collections.singletonList(query),
+                maxResults);
+    }
+
+    private List<Contact> search(Entries entries, String[][] contactWords,
+            List<String> queryWords, int maxResults) {
+        String firstWord = queryWords.get(0);
+        int from = entries.lowerBound(firstWord);
+        // Best score of each matched contact, lower is better.
+        SparseIntArray scores = new SparseIntArray();
+        List<Integer> matches = new ArrayList<>();
+        for (int i = from; i < entries.mKeys.length && entries.mKeys[i].startsWith(firstWord);
+                i++) {
+            int ordinal = entries.mOrdinals[i];
+            if (!matchesOtherWords(contactWords[ordinal], queryWords)) {
+                continue;
+            }
+            // Matching the first word ranks higher, then matching a whole word.
+            int score = 1 + entries.mPositions[i] * 2
+                    + (entries.mKeys[i].length() == firstWord.length() ? 0 : 1);
+            int previousScore = scores.get(ordinal);
+            if (previousScore == 0) {
+                matches.add(ordinal);
+                scores.put(ordinal, score);
+            } else if (score < previousScore) {
+                scores.put(ordinal, score);
+            }
+        }
+        matches.sort((ordinal, other) -> scores.get(ordinal) != scores.get(other)
+                ? Integer.compare(scores.get(ordinal), scores.get(other))
+                : Integer.compare(ordinal, other));
+
+        int size = Math.min(maxResults, matches.size());
+        List<Contact> result = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(mContacts.get(matches.get(i)));
+        }
+        return result;
+    }
+
+    /** Returns true if every query word after the first prefixes one of the contact's words. */
+    private static boolean matchesOtherWords(String[] words, List<String> queryWords) {
+        for (int i = 1; i < queryWords.size(); i++) {
+            boolean found = false;
+            for (String word : words) {
+                if (word != null && word.startsWith(queryWords.get(i))) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Adds the lower case words of {@code text} without diacritics to {@code words}. */
+    private static void addWords(List<String> words, @Nullable String text) {
+        if (TextUtils.isEmpty(text)) {
+            return;
+        }
+        String normalized = DIACRITICS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD))
+                .replaceAll("").toLowerCase(Locale.ROOT);
+        for (String word : WORD_SEPARATORS.split(normalized)) {
+            if (!word.isEmpty() && !words.contains(word)) {
+                words.add(word);
+            }
+        }
+    }
+
+    /** Returns the keypad digits of a normalized word, or null if it can't be typed. */
+    @Nullable
+    private static String toT9Digits(String word) {
+        char[] digits = new char[word.length()];
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                digits[i] = T9_DIGITS[c - 'a'];
+            } else if (c >= '0' && c <= '9') {
+                digits[i] = c;
+            } else {
+                return null;
+            }
+        }
+        return new String(digits);
+    }
+
+    /** Index entries sorted by key. */
+    private static class Entries {
+        private final String[] mKeys;
+        private final int[] mOrdinals;
+        private final byte[] mPositions;
+
+        Entries(String[] keys, int[] ordinals, byte[] positions) {
+            mKeys = keys;
+            mOrdinals = ordinals;
+            mPositions = positions;
+        }
+
+        /** Returns the index of the first key greater than or equal to {@code key}. */
+        int lowerBound(String key) {
+            int index = Arrays.binarySearch(mKeys, key);
+            if (index < 0) {
+                return -index - 1;
+            }
+            // Go back to the first of the equal keys.
+            while (index > 0 && mKeys[index - 1].equals(key)) {
+                index--;
+            }
+            return index;
+        }
+    }
+
+    private static class EntriesBuilder {
+        private final List<String> mKeys = new ArrayList<>();
+        private final List<Integer> mOrdinals = new ArrayList<>();
+        private final List<Integer> mPositions = new ArrayList<>();
+
+        void add(String key, int ordinal, int position) {
+            mKeys.add(key);
+            mOrdinals.add(ordinal);
+            mPositions.add(Math.min(position, NUMBER_WORD_POSITION));
+        }
+
+        Entries build() {
+            Integer[] order = new Integer[mKeys.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (index, other) -> mKeys.get(index).compareTo(mKeys.get(other)));
+
+            String[] keys = new String[order.length];
+            int[] ordinals = new int[order.length];
+            byte[] positions = new byte[order.length];
+            for (int i = 0; i < order.length; i++) {
+                keys[i] = mKeys.get(order[i]);
+                ordinals[i] = mOrdinals.get(order[i]);
+                positions[i] = (byte) (int) mPositions.get(order[i]);
+            }
+            return new Entries(keys, ordinals, positions);
+        }
+    }
+}
@@ -16,23 +16,25 @@
 
 package com.android.car.telephony.common;
 
-import static com.google.i18n.phonenumbers.PhoneNumberUtil.MatchType.EXACT_MATCH;
-import static com.google.i18n.phonenumbers.PhoneNumberUtil.MatchType.NSN_MATCH;
+import static com.google.i18n.phonenumbers.PhoneNumberUtil.PhoneNumberFormat.E164;
 import static com.google.i18n.phonenumbers.PhoneNumberUtil.PhoneNumberFormat.INTERNATIONAL;
 
 import android.content.Context;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.util.LruCache;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import com.google.i18n.phonenumbers.PhoneNumberUtil;
 import com.google.i18n.phonenumbers.Phonenumber;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.Map;
-import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 
 
@@ -40,11 +42,19 @@ import java.util.concurrent.ConcurrentHashMap;
  * Wraps the i18n {@link Phonenumber.PhoneNumber} with a raw phone number that creates it. It
  * facilitates the invalid phone number comparison where a raw phone number can't be converted into
  * an i18n phone number.
+ *
+ * <p>Two wrappers are equal if they have the same {@link #getNormalizedKey() normalized key},
+ * that is if they have the same country code, national significant number and extension.
  */
 public class I18nPhoneNumberWrapper implements Parcelable {
+    /** Prefix of the normalized key of the numbers which can't be parsed. */
+    private static final String RAW_NUMBER_KEY_PREFIX = "raw:";
+    private static final String EXTENSION_KEY_SEPARATOR = ";ext=";
+
     private final Phonenumber.PhoneNumber mI18nPhoneNumber;
     private final String mRawNumber;
     private final String mNumber;
+    private final String mNormalizedKey;
 
     private I18nPhoneNumberWrapper(String rawNumber,
             @Nullable Phonenumber.PhoneNumber i18nPhoneNumber) {
@@ -53,32 +63,53 @@ public class I18nPhoneNumberWrapper implements Parcelable {
         mNumber = (i18nPhoneNumber == null)
                 ? rawNumber
                 : PhoneNumberUtil.getInstance().format(i18nPhoneNumber, INTERNATIONAL);
+        mNormalizedKey = createNormalizedKey(rawNumber, i18nPhoneNumber);
+    }
+
+    /**
+     * Returns the E.164 number, or the national significant number if the country code is
+     * unknown, followed by the extension. Numbers which can't be parsed are keyed by their raw
+     * number.
+     *
+     * <p>A number without country code doesn't have the same key as the same national number with
+     * a country code, although {@link PhoneNumberUtil#isNumberMatch} reports them as an NSN
+     * match: that relation isn't transitive, so it can't be hashed. Numbers are parsed with the
+     * SIM or locale country as the default region, so it only happens for numbers created
+     * elsewhere. Callers needing such matches compare trailing digits, as {@link
+     * InMemoryPhoneBook#lookupContactEntry} does.
+     */
+    private static String createNormalizedKey(String rawNumber,
+            @Nullable Phonenumber.PhoneNumber i18nPhoneNumber) {
+        if (i18nPhoneNumber == null) {
+            return RAW_NUMBER_KEY_PREFIX + rawNumber;
+        }
+        PhoneNumberUtil phoneNumberUtil = PhoneNumberUtil.getInstance();
+        String key = i18nPhoneNumber.getCountryCode() == 0
+                ? phoneNumberUtil.getNationalSignificantNumber(i18nPhoneNumber)
+                : phoneNumberUtil.format(i18nPhoneNumber, E164);
+        return i18nPhoneNumber.hasExtension()
+                ? key + EXTENSION_KEY_SEPARATOR + i18nPhoneNumber.getExtension()
+                : key;
     }
 
     @Override
     public boolean equals(Object obj) {
-        if (obj instanceof I18nPhoneNumberWrapper) {
-            I18nPhoneNumberWrapper other = (I18nPhoneNumberWrapper) obj;
-            if (mI18nPhoneNumber != null && other.mI18nPhoneNumber != null) {
-                PhoneNumberUtil.MatchType matchType = PhoneNumberUtil.getInstance().isNumberMatch(
-                        mI18nPhoneNumber, other.mI18nPhoneNumber);
-                return matchType == EXACT_MATCH || matchType == NSN_MATCH;
-            } else if (mI18nPhoneNumber == null && other.mI18nPhoneNumber == null) {
-                // compare the raw number directly.
-                return mRawNumber.equals(other.mRawNumber);
-            } else {
-                return false;
-            }
-        }
-        return false;
+        return obj instanceof I18nPhoneNumberWrapper
+                && mNormalizedKey.equals(((I18nPhoneNumberWrapper) obj).mNormalizedKey);
     }
 
     @Override
     public int hashCode() {
-        if (mI18nPhoneNumber == null) {
-            return Objects.hashCode(mRawNumber);
-        }
-        return Objects.hash(mI18nPhoneNumber);
+        return mNormalizedKey.hashCode();
+    }
+
+    /**
+     * Returns a canonical representation of this number, suitable as a hash key. Two wrappers
+     * are {@link #equals equal} if and only if their keys are equal.
+     */
+    @NonNull
+    public String getNormalizedKey() {
+        return mNormalizedKey;
     }
 
     /**
@@ -128,12 +159,23 @@ public class I18nPhoneNumberWrapper implements Parcelable {
     /**
      * Caches {@link WeakReference} of {@link I18nPhoneNumberWrapper}s to avoid creating same object
      * over and over again. It will avoid too many instances getting created during contact sync.
+     * The most recently used wrappers are also strongly held by a bounded LRU cache, so that a
+     * number which is not referenced anymore is not parsed again right away.
      */
     public enum Factory {
         INSTANCE;
 
-        private final Map<String, WeakReference<I18nPhoneNumberWrapper>> mRecycledPool =
-                new ConcurrentHashMap<>();
+        /** Maximum number of wrappers strongly held by {@link #mRecentlyUsed}. */
+        @VisibleForTesting
+        static final int MAX_RECENTLY_USED = 500;
+
+        private final Map<String, KeyedWeakReference> mRecycledPool = new ConcurrentHashMap<>();
+        /** Receives the references of {@link #mRecycledPool} which have been cleared. */
+        private final ReferenceQueue<I18nPhoneNumberWrapper> mReferenceQueue =
+                new ReferenceQueue<>();
+        private final LruCache<String, I18nPhoneNumberWrapper> mRecentlyUsed =
+                new LruCache<>(MAX_RECENTLY_USED);
+
         /**
          * Returns cached {@link I18nPhoneNumberWrapper} for the given {@code rawNumber}. It will
          * create a new instance if not present.
@@ -142,22 +184,50 @@ public class I18nPhoneNumberWrapper implements Parcelable {
          *                  {@link #getNumber()} will return a formatted number.
          */
         public I18nPhoneNumberWrapper get(@NonNull Context context, @NonNull String rawNumber) {
-            for (String key : mRecycledPool.keySet()) {
-                if (mRecycledPool.get(key).get() == null) {
-                    mRecycledPool.remove(key);
-                }
+            purgeClearedReferences();
+            return getOrCreate(context, rawNumber);
+        }
+
+        private I18nPhoneNumberWrapper getOrCreate(@NonNull Context context,
+                @NonNull String rawNumber) {
+            I18nPhoneNumberWrapper i18nPhoneNumberWrapper = mRecentlyUsed.get(rawNumber);
+            if (i18nPhoneNumberWrapper != null) {
+                return i18nPhoneNumberWrapper;
             }
-            WeakReference<I18nPhoneNumberWrapper> existingReference = mRecycledPool.get(rawNumber);
-            I18nPhoneNumberWrapper i18nPhoneNumberWrapper =
-                    existingReference == null ? null : existingReference.get();
+            KeyedWeakReference existingReference = mRecycledPool.get(rawNumber);
+            i18nPhoneNumberWrapper = existingReference == null ? null : existingReference.get();
             if (i18nPhoneNumberWrapper == null) {
                 i18nPhoneNumberWrapper = create(context, rawNumber);
-                mRecycledPool.put(rawNumber, new WeakReference<>(i18nPhoneNumberWrapper));
-                return i18nPhoneNumberWrapper;
+                mRecycledPool.put(rawNumber,
+                        new KeyedWeakReference(rawNumber, i18nPhoneNumberWrapper, mReferenceQueue));
             }
+            mRecentlyUsed.put(rawNumber, i18nPhoneNumberWrapper);
             return i18nPhoneNumberWrapper;
         }
 
+        /** Removes the entries of the pool whose wrapper has been garbage collected. */
+        private void purgeClearedReferences() {
+            Reference<? extends I18nPhoneNumberWrapper> reference;
+            while ((reference = mReferenceQueue.poll()) != null) {
+                KeyedWeakReference keyedReference = (KeyedWeakReference) reference;
+                // The entry may have been replaced by a live wrapper in the meantime.
+                mRecycledPool.remove(keyedReference.mRawNumber, keyedReference);
+            }
+        }
+
+        /** Returns the reference to the wrapper of the given raw number in the pool, or null. */
+        @VisibleForTesting
+        @Nullable
+        Reference<I18nPhoneNumberWrapper> getPooledReference(@NonNull String rawNumber) {
+            return mRecycledPool.get(rawNumber);
+        }
+
+        /** Returns the number of wrappers strongly held as recently used. */
+        @VisibleForTesting
+        int getRecentlyUsedCount() {
+            return mRecentlyUsed.size();
+        }
+
         /** Create a new instance. */
         private I18nPhoneNumberWrapper create(@NonNull Context context, @NonNull String rawNumber) {
             Phonenumber.PhoneNumber i18nPhoneNumber = TelecomUtils.createI18nPhoneNumber(context,
@@ -165,4 +235,15 @@ public class I18nPhoneNumberWrapper implements Parcelable {
             return new I18nPhoneNumberWrapper(rawNumber, i18nPhoneNumber);
         }
     }
+
+    /** A {@link WeakReference} which remembers the key of its entry in the pool. */
+    private static class KeyedWeakReference extends WeakReference<I18nPhoneNumberWrapper> {
+        private final String mRawNumber;
+
+        KeyedWeakReference(String rawNumber, I18nPhoneNumberWrapper wrapper,
+                ReferenceQueue<I18nPhoneNumberWrapper> queue) {
+            super(wrapper, queue);
+            mRawNumber = rawNumber;
+        }
+    }
 }
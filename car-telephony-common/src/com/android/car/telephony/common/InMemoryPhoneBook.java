@@ -22,32 +22,143 @@ import android.provider.ContactsContract;
 import android.text.TextUtils;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
 import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.Observer;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A singleton statically accessible helper class which pre-loads contacts list into memory so
  * that they can be accessed more easily and quickly.
+ *
+ * <p>Contacts are fully loaded once. After that, every change of the contacts database only
+ * queries the contacts updated or deleted since the previous query and patches them into the
+ * loaded ones, see {@link #getContactsDiffLiveData()}.
  */
 public class InMemoryPhoneBook implements Observer<List<Contact>> {
     private static final String TAG = "CD.InMemoryPhoneBook";
     private static InMemoryPhoneBook sInMemoryPhoneBook;
 
+    /** Value of {@link #mSyncedUntil} when contacts haven't been loaded yet. */
+    private static final long NOT_SYNCED = -1;
+    /**
+     * How far back before the previous query a delta query looks, so that contacts written
+     * while that query was running are not missed. Contacts queried twice are simply replaced.
+     */
+    private static final long SYNC_OVERLAP_MS = 2000;
+    private static final String ACCOUNT_TYPE_GOOGLE = "com.google";
+
     private final Context mContext;
     private final AsyncQueryLiveData<List<Contact>> mContactListAsyncQueryLiveData;
-    /** A map to speed up phone number searching. */
-    private final Map<I18nPhoneNumberWrapper, Contact> mPhoneNumberContactMap = new HashMap<>();
+    private final MutableLiveData<ContactsDiff> mContactsDiffLiveData = new MutableLiveData<>();
+    /**
+     * A map to speed up phone number searching, keyed by
+     * {@link I18nPhoneNumberWrapper#getNormalizedKey()}. Patched on the query thread while looked
+     * up on the main thread.
+     */
+    private final Map<String, Contact> mPhoneNumberContactMap = new ConcurrentHashMap<>();
     /** A map to look up contact by lookup key. */
-    private final Map<String, Contact> mLookupKeyContactMap = new HashMap<>();
+    private final Map<String, Contact> mLookupKeyContactMap = new ConcurrentHashMap<>();
+    /** Lookup keys by contact id, as deleted contacts are only known by their id. */
+    private final Map<Long, String> mContactIdLookupKeyMap = new HashMap<>();
+    /**
+     * The list emitted by the last query, sorted with {@link Contact#compareByDisplayName}. Only
+     * accessed on the query thread.
+     */
+    private List<Contact> mContactList = Collections.emptyList();
+    /** Time of the last query whose results have been loaded, or {@link #NOT_SYNCED}. */
+    private volatile long mSyncedUntil = NOT_SYNCED;
+    /** Rebuilt on the query thread every time the contact list changes. */
+    private volatile ContactSearchIndex mSearchIndex = ContactSearchIndex.EMPTY;
+    /** Matches numbers by their trailing digits, rebuilt along with {@link #mSearchIndex}. */
+    private volatile PhoneNumberSuffixIndex mSuffixIndex = PhoneNumberSuffixIndex.EMPTY;
+    /** The contacts sorted by display name, rebuilt along with {@link #mSearchIndex}. */
+    private volatile List<Contact> mContactsByDisplayName = Collections.emptyList();
+    /** The contacts sorted by alternative display name. */
+    private volatile List<Contact> mContactsByAltDisplayName = Collections.emptyList();
     private boolean mIsLoaded = false;
 
+    /** The contacts changed by a query of the {@link InMemoryPhoneBook}. */
+    public static class ContactsDiff {
+        private final boolean mIsFullReload;
+        private final List<Contact> mAdded;
+        private final List<Contact> mUpdated;
+        private final List<Contact> mRemoved;
+
+        ContactsDiff(boolean isFullReload, @NonNull List<Contact> added,
+                @NonNull List<Contact> updated, @NonNull List<Contact> removed) {
+            mIsFullReload = isFullReload;
+            mAdded = added;
+            mUpdated = updated;
+            mRemoved = removed;
+        }
+
+        /**
+         * Returns true if all the contacts were reloaded, in which case they are all reported as
+         * added and the previous ones as removed.
+         */
+        public boolean isFullReload() {
+            return mIsFullReload;
+        }
+
+        /** Returns the contacts which weren't in the phone book before. */
+        @NonNull
+        public List<Contact> getAdded() {
+            return mAdded;
+        }
+
+        /** Returns the new version of the contacts which have changed. */
+        @NonNull
+        public List<Contact> getUpdated() {
+            return mUpdated;
+        }
+
+        /** Returns the previous version of the contacts which aren't in the phone book anymore. */
+        @NonNull
+        public List<Contact> getRemoved() {
+            return mRemoved;
+        }
+
+        /** Returns true if no contact has changed. */
+        public boolean isEmpty() {
+            return mAdded.isEmpty() && mUpdated.isEmpty() && mRemoved.isEmpty();
+        }
+    }
+
+    /** A {@link QueryParam} loading the contacts updated since {@link #mSince}. */
+    private static class ContactsQueryParam extends QueryParam {
+        /** {@link #NOT_SYNCED} for a full query. */
+        private final long mSince;
+        /** When the query was created, the next delta query starts from there. */
+        private final long mQueryTime;
+
+        ContactsQueryParam(String selection, String[] selectionArgs, long since,
+                long queryTime) {
+            super(ContactsContract.Data.CONTENT_URI, null, selection, selectionArgs,
+                    ContactsContract.Contacts.DISPLAY_NAME + " ASC ");
+            mSince = since;
+            mQueryTime = queryTime;
+        }
+
+        boolean isFullQuery() {
+            return mSince == NOT_SYNCED;
+        }
+    }
+
     /**
      * Initialize the globally accessible {@link InMemoryPhoneBook}.
      * Returns the existing {@link InMemoryPhoneBook} if already initialized.
@@ -87,27 +198,61 @@ public class InMemoryPhoneBook implements Observer<List<Contact>> {
         sInMemoryPhoneBook = null;
     }
 
-    private InMemoryPhoneBook(Context context) {
+    @VisibleForTesting
+    InMemoryPhoneBook(Context context) {
         mContext = context;
 
-        // TODO(b/138749585): clean up filtering once contact cloud sync is disabled.
-        QueryParam contactListQueryParam = new QueryParam(
-                ContactsContract.Data.CONTENT_URI,
-                null,
-                ContactsContract.Data.MIMETYPE + " = ? and "
-                        + ContactsContract.RawContacts.ACCOUNT_TYPE + " != ?",
-                new String[]{
-                        ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE, "com.google"},
-                ContactsContract.Contacts.DISPLAY_NAME + " ASC ");
         mContactListAsyncQueryLiveData = new AsyncQueryLiveData<List<Contact>>(mContext,
-                QueryParam.of(contactListQueryParam)) {
+                this::createQueryParam) {
             @Override
             protected List<Contact> convertToEntity(Cursor cursor) {
                 return onCursorLoaded(cursor);
             }
+
+            @Override
+            protected List<Contact> convertToEntity(Cursor cursor, QueryParam queryParam) {
+                if (queryParam instanceof ContactsQueryParam
+                        && !((ContactsQueryParam) queryParam).isFullQuery()) {
+                    ContactsQueryParam contactsQueryParam = (ContactsQueryParam) queryParam;
+                    return onDeltaCursorLoaded(cursor, contactsQueryParam.mSince,
+                            contactsQueryParam.mQueryTime);
+                }
+                List<Contact> contacts = onCursorLoaded(cursor);
+                if (queryParam instanceof ContactsQueryParam) {
+                    mSyncedUntil = ((ContactsQueryParam) queryParam).mQueryTime;
+                }
+                return contacts;
+            }
         };
     }
 
+    /**
+     * Returns the full contact query until contacts are loaded, then a query of the contacts
+     * updated since the previous query.
+     */
+    private QueryParam createQueryParam() {
+        long queryTime = System.currentTimeMillis();
+        long syncedUntil = mSyncedUntil;
+        // TODO(b/138749585): clean up filtering once contact cloud sync is disabled.
+        if (syncedUntil == NOT_SYNCED) {
+            return new ContactsQueryParam(
+                    ContactsContract.Data.MIMETYPE + " = ? and "
+                            + ContactsContract.RawContacts.ACCOUNT_TYPE + " != ?",
+                    new String[]{
+                            ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE,
+                            ACCOUNT_TYPE_GOOGLE},
+                    NOT_SYNCED, queryTime);
+        }
+        long since = Math.max(0, syncedUntil - SYNC_OVERLAP_MS);
+        // All the data kinds are queried: a contact whose rows are all returned without a phone
+        // number has lost its last one.
+        return new ContactsQueryParam(
+                ContactsContract.Data.CONTACT_LAST_UPDATED_TIMESTAMP + " > ? and "
+                        + ContactsContract.RawContacts.ACCOUNT_TYPE + " != ?",
+                new String[]{String.valueOf(since), ACCOUNT_TYPE_GOOGLE},
+                since, queryTime);
+    }
+
     private void onInit() {
         mContactListAsyncQueryLiveData.observeForever(this);
     }
@@ -128,8 +273,43 @@ public class InMemoryPhoneBook implements Observer<List<Contact>> {
     }
 
     /**
-     * Looks up a {@link Contact} by the given phone number. Returns null if can't find a Contact or
-     * the {@link InMemoryPhoneBook} is still loading.
+     * Returns a {@link LiveData} which emits which contacts have changed every time the contact
+     * list is updated.
+     */
+    public LiveData<ContactsDiff> getContactsDiffLiveData() {
+        return mContactsDiffLiveData;
+    }
+
+    /**
+     * Returns the current contacts sorted with {@link Contact#compareByDisplayName}, or an empty
+     * list while they are loading. The list is sorted in the background when contacts change.
+     */
+    public List<Contact> getContactsSortedByDisplayName() {
+        return mContactsByDisplayName;
+    }
+
+    /**
+     * Returns the current contacts sorted with {@link Contact#compareByAltDisplayName}, or an
+     * empty list while they are loading. The list is sorted in the background when contacts
+     * change.
+     */
+    public List<Contact> getContactsSortedByAltDisplayName() {
+        return mContactsByAltDisplayName;
+    }
+
+    /**
+     * Returns the search index of the current contacts, which is empty while they are loading.
+     * The returned index is not updated when contacts change.
+     */
+    public ContactSearchIndex getSearchIndex() {
+        return mSearchIndex;
+    }
+
+    /**
+     * Looks up a {@link Contact} by the given phone number. If no number is equal to it, falls
+     * back to the number sharing the most trailing digits with it, if it belongs to a single
+     * contact. Returns null if can't find a Contact or the {@link InMemoryPhoneBook} is still
+     * loading.
      */
     @Nullable
     public Contact lookupContactEntry(String phoneNumber) {
@@ -145,7 +325,8 @@ public class InMemoryPhoneBook implements Observer<List<Contact>> {
 
         I18nPhoneNumberWrapper i18nPhoneNumber = I18nPhoneNumberWrapper.Factory.INSTANCE.get(
                 mContext, phoneNumber);
-        return mPhoneNumberContactMap.get(i18nPhoneNumber);
+        Contact contact = mPhoneNumberContactMap.get(i18nPhoneNumber.getNormalizedKey());
+        return contact != null ? contact : mSuffixIndex.lookup(phoneNumber);
     }
 
     /**
@@ -165,7 +346,9 @@ public class InMemoryPhoneBook implements Observer<List<Contact>> {
         return mLookupKeyContactMap.get(lookupKey);
     }
 
-    private List<Contact> onCursorLoaded(Cursor cursor) {
+    @VisibleForTesting
+    @WorkerThread
+    List<Contact> onCursorLoaded(Cursor cursor) {
         Map<String, Contact> result = new LinkedHashMap<>();
         List<Contact> contacts = new ArrayList<>();
 
@@ -181,19 +364,159 @@ public class InMemoryPhoneBook implements Observer<List<Contact>> {
         }
 
         contacts.addAll(result.values());
+        // The query sorts by display name too, but not with the collator of Contact: sort again
+        // so that delta queries can keep the order.
+        contacts.sort(Contact.displayNameComparator());
 
         mLookupKeyContactMap.clear();
         mLookupKeyContactMap.putAll(result);
 
+        mContactIdLookupKeyMap.clear();
         mPhoneNumberContactMap.clear();
         for (Contact contact : contacts) {
+            mContactIdLookupKeyMap.put(contact.getId(), contact.getLookupKey());
             for (PhoneNumber phoneNumber : contact.getNumbers()) {
-                mPhoneNumberContactMap.put(phoneNumber.getI18nPhoneNumberWrapper(), contact);
+                mPhoneNumberContactMap.put(getKey(phoneNumber), contact);
             }
         }
+
+        List<Contact> removed = mContactList;
+        mContactList = contacts;
+        mSearchIndex = new ContactSearchIndex(contacts);
+        mSuffixIndex = new PhoneNumberSuffixIndex(contacts);
+        mContactsByDisplayName = Collections.unmodifiableList(new ArrayList<>(contacts));
+        mContactsByAltDisplayName = sortContacts(contacts, Contact.altDisplayNameComparator());
+        mContactsDiffLiveData.postValue(
+                new ContactsDiff(true, contacts, Collections.emptyList(), removed));
         return contacts;
     }
 
+    /**
+     * Replaces the contacts returned by a delta query, and removes the ones deleted since
+     * {@code since}.
+     */
+    @VisibleForTesting
+    @WorkerThread
+    List<Contact> onDeltaCursorLoaded(Cursor cursor, long since, long queryTime) {
+        Set<Long> changedContactIds = new HashSet<>();
+        Map<String, Contact> changedContacts = new LinkedHashMap<>();
+        int contactIdColumn = cursor.getColumnIndex(ContactsContract.Data.CONTACT_ID);
+        int mimeTypeColumn = cursor.getColumnIndex(ContactsContract.Data.MIMETYPE);
+
+        while (cursor.moveToNext()) {
+            changedContactIds.add(cursor.getLong(contactIdColumn));
+            if (!ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE.equals(
+                    cursor.getString(mimeTypeColumn))) {
+                continue;
+            }
+            Contact contact = Contact.fromCursor(mContext, cursor);
+            Contact existingContact = changedContacts.get(contact.getLookupKey());
+            if (existingContact != null) {
+                existingContact.merge(contact);
+            } else {
+                changedContacts.put(contact.getLookupKey(), contact);
+            }
+        }
+        changedContactIds.addAll(queryDeletedContactIds(since));
+
+        // Drop the previous version of every changed contact.
+        Map<String, Contact> previousContacts = new HashMap<>();
+        for (long contactId : changedContactIds) {
+            String lookupKey = mContactIdLookupKeyMap.remove(contactId);
+            Contact previousContact = lookupKey == null ? null
+                    : mLookupKeyContactMap.remove(lookupKey);
+            if (previousContact == null) {
+                continue;
+            }
+            previousContacts.put(lookupKey, previousContact);
+            for (PhoneNumber phoneNumber : previousContact.getNumbers()) {
+                mPhoneNumberContactMap.remove(getKey(phoneNumber), previousContact);
+            }
+        }
+
+        List<Contact> added = new ArrayList<>();
+        List<Contact> updated = new ArrayList<>();
+        for (Contact contact : changedContacts.values()) {
+            Contact replacedContact = mLookupKeyContactMap.put(contact.getLookupKey(), contact);
+            if (replacedContact != null) {
+                // Same lookup key under another contact id, eg: after contacts were joined.
+                previousContacts.put(contact.getLookupKey(), replacedContact);
+                mContactIdLookupKeyMap.remove(replacedContact.getId());
+                for (PhoneNumber phoneNumber : replacedContact.getNumbers()) {
+                    mPhoneNumberContactMap.remove(getKey(phoneNumber), replacedContact);
+                }
+            }
+            mContactIdLookupKeyMap.put(contact.getId(), contact.getLookupKey());
+            for (PhoneNumber phoneNumber : contact.getNumbers()) {
+                mPhoneNumberContactMap.put(getKey(phoneNumber), contact);
+            }
+            if (previousContacts.remove(contact.getLookupKey()) != null) {
+                updated.add(contact);
+            } else {
+                added.add(contact);
+            }
+        }
+        List<Contact> removed = new ArrayList<>(previousContacts.values());
+
+        mSyncedUntil = queryTime;
+        if (added.isEmpty() && updated.isEmpty() && removed.isEmpty()) {
+            return mContactList;
+        }
+
+        // Changed contacts are appended to the unchanged ones, which are still sorted, so the
+        // merge sort of List.sort only has a short run to sort and merge.
+        List<Contact> contacts = new ArrayList<>(mContactList.size() + added.size());
+        for (Contact contact : mContactList) {
+            if (!changedContacts.containsKey(contact.getLookupKey())
+                    && mLookupKeyContactMap.containsKey(contact.getLookupKey())) {
+                contacts.add(contact);
+            }
+        }
+        contacts.addAll(changedContacts.values());
+        contacts.sort(Contact.displayNameComparator());
+        mContactList = contacts;
+        // The indexes are immutable, so they are built again from all the contacts, even if a
+        // single one changed. This costs O(n log n) on this worker thread, like the sorts.
+        mSearchIndex = new ContactSearchIndex(contacts);
+        mSuffixIndex = new PhoneNumberSuffixIndex(contacts);
+        mContactsByDisplayName = Collections.unmodifiableList(new ArrayList<>(contacts));
+        mContactsByAltDisplayName = sortContacts(contacts, Contact.altDisplayNameComparator());
+        mContactsDiffLiveData.postValue(new ContactsDiff(false, added, updated, removed));
+        return contacts;
+    }
+
+    private static List<Contact> sortContacts(List<Contact> contacts,
+            Comparator<Contact> comparator) {
+        List<Contact> sortedContacts = new ArrayList<>(contacts);
+        sortedContacts.sort(comparator);
+        return Collections.unmodifiableList(sortedContacts);
+    }
+
+    /** Returns the key of the given number in {@link #mPhoneNumberContactMap}. */
+    private static String getKey(PhoneNumber phoneNumber) {
+        return phoneNumber.getI18nPhoneNumberWrapper().getNormalizedKey();
+    }
+
+    /** Returns the ids of the contacts deleted after the given time. */
+    @WorkerThread
+    private Set<Long> queryDeletedContactIds(long since) {
+        Set<Long> contactIds = new HashSet<>();
+        try (Cursor cursor = mContext.getContentResolver().query(
+                ContactsContract.DeletedContacts.CONTENT_URI,
+                new String[]{ContactsContract.DeletedContacts.CONTACT_ID},
+                ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP + " > ?",
+                new String[]{String.valueOf(since)},
+                null)) {
+            if (cursor == null) {
+                return contactIds;
+            }
+            while (cursor.moveToNext()) {
+                contactIds.add(cursor.getLong(0));
+            }
+        }
+        return contactIds;
+    }
+
     @Override
     public void onChanged(List<Contact> contacts) {
         Log.d(TAG, "Contacts loaded:" + (contacts == null ? 0 : contacts.size()));
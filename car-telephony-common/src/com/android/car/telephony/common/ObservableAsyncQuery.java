@@ -45,6 +45,18 @@ public class ObservableAsyncQuery {
          */
         @MainThread
         void onQueryFinished(@Nullable Cursor cursor);
+
+        /**
+         * Same as {@link #onQueryFinished(Cursor)}, with the {@link QueryParam} the cursor was
+         * loaded with, which is useful when the {@link QueryParam.Provider} doesn't always return
+         * the same instance.
+         *
+         * <p>Called on main thread.
+         */
+        @MainThread
+        default void onQueryFinished(@Nullable Cursor cursor, @Nullable QueryParam queryParam) {
+            onQueryFinished(cursor);
+        }
     }
 
     private AsyncQueryHandler mAsyncQueryHandler;
@@ -88,14 +100,14 @@ public class ObservableAsyncQuery {
         if (queryParam != null) {
             mAsyncQueryHandler.startQuery(
                     mToken,
-                    null,
+                    queryParam,
                     queryParam.mUri,
                     queryParam.mProjection,
                     queryParam.mSelection,
                     queryParam.mSelectionArgs,
                     queryParam.mOrderBy);
         } else {
-            mOnQueryFinishedListener.onQueryFinished(null);
+            mOnQueryFinishedListener.onQueryFinished(null, null);
         }
         mIsActive = true;
 
@@ -123,7 +135,7 @@ public class ObservableAsyncQuery {
             mCurrentCursor = cursor;
         }
         if (mOnQueryFinishedListener != null) {
-            mOnQueryFinishedListener.onQueryFinished(cursor);
+            mOnQueryFinishedListener.onQueryFinished(cursor, (QueryParam) cookie);
         }
     }
 
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.telephony.common;
+
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable index of the phone numbers of a list of {@link Contact}s by their trailing digits,
+ * to match numbers which don't parse the same way, like
+ * {@link android.telephony.PhoneNumberUtils#compare} does.
+ *
+ * <p>The reversed digits of every number are kept in a sorted array, which is a flattened trie:
+ * the numbers sharing a suffix are contiguous and found by binary search.
+ */
+class PhoneNumberSuffixIndex {
+    /** An index without any number. */
+    static final PhoneNumberSuffixIndex EMPTY = new PhoneNumberSuffixIndex(Collections.emptyList());
+
+    /** Minimum number of trailing digits two numbers must share to match. */
+    private static final int MIN_MATCH = 7;
+
+    private final String[] mReversedDigits;
+    private final Contact[] mContacts;
+
+    @WorkerThread
+    PhoneNumberSuffixIndex(@NonNull List<Contact> contacts) {
+        List<String> reversedDigits = new ArrayList<>();
+        List<Contact> numberContacts = new ArrayList<>();
+        for (Contact contact : contacts) {
+            for (PhoneNumber phoneNumber : contact.getNumbers()) {
+                String digits = reverseDigits(phoneNumber.getRawNumber());
+                if (!digits.isEmpty()) {
+                    reversedDigits.add(digits);
+                    numberContacts.add(contact);
+                }
+            }
+        }
+
+        Integer[] order = new Integer[reversedDigits.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order,
+                (index, other) -> reversedDigits.get(index).compareTo(reversedDigits.get(other)));
+        mReversedDigits = new String[order.length];
+        mContacts = new Contact[order.length];
+        for (int i = 0; i < order.length; i++) {
+            mReversedDigits[i] = reversedDigits.get(order[i]);
+            mContacts[i] = numberContacts.get(order[i]);
+        }
+    }
+
+    /**
+     * Returns the contact owning the number sharing the most trailing digits with {@code number},
+     * at least {@link #MIN_MATCH} of them, or exactly the same digits for shorter numbers. Returns
+     * null if there is no such number or if it is owned by several contacts.
+     */
+    @Nullable
+    Contact lookup(@Nullable String number) {
+        String query = reverseDigits(number);
+        if (query.isEmpty()) {
+            return null;
+        }
+        boolean isShortNumber = query.length() < MIN_MATCH;
+        String prefix = isShortNumber ? query : query.substring(0, MIN_MATCH);
+        int index = Arrays.binarySearch(mReversedDigits, prefix);
+        int from = index < 0 ? -index - 1 : index;
+
+        Contact bestContact = null;
+        int bestLength = 0;
+        boolean isAmbiguous = false;
+        for (int i = from; i < mReversedDigits.length && mReversedDigits[i].startsWith(prefix);
+                i++) {
+            String candidate = mReversedDigits[i];
+            if (isShortNumber && !candidate.equals(query)) {
+                continue;
+            }
+            int length = commonPrefixLength(candidate, query);
+            if (length > bestLength) {
+                bestContact = mContacts[i];
+                bestLength = length;
+                isAmbiguous = false;
+            } else if (length == bestLength && !mContacts[i].equals(bestContact)) {
+                isAmbiguous = true;
+            }
+        }
+        return isAmbiguous ? null : bestContact;
+    }
+
+    private static int commonPrefixLength(String first, String second) {
+        int length = Math.min(first.length(), second.length());
+        for (int i = 0; i < length; i++) {
+            if (first.charAt(i) != second.charAt(i)) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    /** Returns the digits of {@code number} from the last to the first. */
+    @NonNull
+    private static String reverseDigits(@Nullable String number) {
+        if (TextUtils.isEmpty(number)) {
+            return "";
+        }
+        StringBuilder digits = new StringBuilder(number.length());
+        for (int i = number.length() - 1; i >= 0; i--) {
+            char c = number.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            }
+        }
+        return digits.toString();
+    }
+}
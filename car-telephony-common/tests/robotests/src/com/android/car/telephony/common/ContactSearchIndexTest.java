@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.telephony.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.telephony.TelephonyManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+
+@RunWith(RobolectricTestRunner.class)
+public class ContactSearchIndexTest {
+
+    private static final int DISPLAY_NAME_COLUMN = 1;
+    private static final int ALT_DISPLAY_NAME_COLUMN = 2;
+    private static final int NUMBER_COLUMN = 3;
+    private static final int LOOKUP_KEY_COLUMN = 4;
+
+    private static final int MAX_RESULTS = 10;
+
+    @Mock
+    private Context mMockContext;
+    @Mock
+    private Cursor mMockCursor;
+    @Mock
+    private TelephonyManager mMockTelephonyManager;
+
+    private Contact mJohnSmith;
+    private Contact mJoanArc;
+    private Contact mAnnaJones;
+    private ContactSearchIndex mSearchIndex;
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+
+        when(mMockCursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME))
+                .thenReturn(DISPLAY_NAME_COLUMN);
+        when(mMockCursor.getColumnIndex(
+                ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME_ALTERNATIVE))
+                .thenReturn(ALT_DISPLAY_NAME_COLUMN);
+        when(mMockCursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.NUMBER))
+                .thenReturn(NUMBER_COLUMN);
+        when(mMockCursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.LOOKUP_KEY))
+                .thenReturn(LOOKUP_KEY_COLUMN);
+        when(mMockContext.getSystemService(Context.TELEPHONY_SERVICE)).thenReturn(
+                mMockTelephonyManager);
+        when(mMockTelephonyManager.getSimCountryIso()).thenReturn("");
+
+        mJohnSmith = createContact("John Smith", "Smith, John", "650-555-0101", "1");
+        mJoanArc = createContact("Joan Arc", "Arc, Joan", "650-555-0102", "2");
+        mAnnaJones = createContact("Anna Jones", "Jones, Anna", "415-555-0103", "3");
+        mSearchIndex = new ContactSearchIndex(Arrays.asList(mAnnaJones, mJoanArc, mJohnSmith));
+    }
+
+    @Test
+    public void searchByName_prefix_matchesAllWords() {
+        assertThat(mSearchIndex.searchByName("jo", MAX_RESULTS))
+                .containsExactly(mJoanArc, mJohnSmith, mAnnaJones).inOrder();
+    }
+
+    @Test
+    public void searchByName_severalWords_matchesEveryWord() {
+        assertThat(mSearchIndex.searchByName("smi jo", MAX_RESULTS)).containsExactly(mJohnSmith);
+    }
+
+    @Test
+    public void searchByName_ignoresCaseAndDiacritics() {
+        assertThat(mSearchIndex.searchByName("ÁNN", MAX_RESULTS)).containsExactly(mAnnaJones);
+    }
+
+    @Test
+    public void searchByName_noMatch_returnsEmpty() {
+        assertThat(mSearchIndex.searchByName("bob", MAX_RESULTS)).isEmpty();
+    }
+
+    @Test
+    public void searchByName_limitsResults() {
+        assertThat(mSearchIndex.searchByName("jo", 1)).containsExactly(mJoanArc);
+    }
+
+    @Test
+    public void searchByDigits_matchesT9Names() {
+        // 5646 is "john" on the keypad.
+        assertThat(mSearchIndex.searchByDigits("5646", MAX_RESULTS)).containsExactly(mJohnSmith);
+    }
+
+    @Test
+    public void searchByDigits_matchesPhoneNumbers() {
+        assertThat(mSearchIndex.searchByDigits("415", MAX_RESULTS)).containsExactly(mAnnaJones);
+    }
+
+    private Contact createContact(String displayName, String altDisplayName, String number,
+            String lookupKey) {
+        when(mMockCursor.getString(DISPLAY_NAME_COLUMN)).thenReturn(displayName);
+        when(mMockCursor.getString(ALT_DISPLAY_NAME_COLUMN)).thenReturn(altDisplayName);
+        when(mMockCursor.getString(NUMBER_COLUMN)).thenReturn(number);
+        when(mMockCursor.getString(LOOKUP_KEY_COLUMN)).thenReturn(lookupKey);
+        return Contact.fromCursor(mMockContext, mMockCursor);
+    }
+}
@@ -36,7 +36,9 @@ import org.robolectric.RobolectricTestRunner;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
 
 
 @RunWith(RobolectricTestRunner.class)
@@ -51,6 +53,9 @@ public class ContactTest {
     private static final String DIGIT_NAME_1 = "123";
     private static final String DIGIT_NAME_2 = "321";
     private static final String SPEC_CHAR_NAME = "-";
+    private static final String SWEDISH_ORDER_NAME_1 = "Zed";
+    private static final String SWEDISH_ORDER_NAME_2 = "\u00d6sten";
+    private static final Locale SWEDISH = new Locale("sv", "SE");
 
     private static final int COMPARE_RESULT_EQUAL = 0;
     private static final int COMPARE_RESULT_SMALLER = -1;
@@ -201,4 +206,34 @@ public class ContactTest {
         Collections.sort(contactList);
         assertArrayEquals(sortResultList.toArray(), contactList.toArray());
     }
+
+    @Test
+    public void sortContactTest_localeChangedDuringSort_usesOneCollator() {
+        Locale locale = Locale.getDefault();
+        try {
+            Locale.setDefault(Locale.US);
+            // "Ö" sorts with "O" in English, but after "Z" in Swedish.
+            Contact zed = createContact(SWEDISH_ORDER_NAME_1);
+            Contact osten = createContact(SWEDISH_ORDER_NAME_2);
+            Comparator<Contact> comparator = Contact.displayNameComparator();
+            assertThat(comparator.compare(osten, zed)).isLessThan(0);
+
+            Locale.setDefault(SWEDISH);
+            assertThat(Contact.displayNameComparator().compare(osten, zed)).isGreaterThan(0);
+            List<Contact> contactList = new ArrayList<>();
+            contactList.add(zed);
+            contactList.add(osten);
+            contactList.sort(comparator);
+
+            assertThat(contactList).containsExactly(osten, zed).inOrder();
+            assertThat(comparator.compare(osten, zed)).isLessThan(0);
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    private Contact createContact(String displayName) {
+        when(mMockCursor.getString(DISPLAY_NAME_COLUMN)).thenReturn(displayName);
+        return Contact.fromCursor(mMockContext, mMockCursor);
+    }
 }
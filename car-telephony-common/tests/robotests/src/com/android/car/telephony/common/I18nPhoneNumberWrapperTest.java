@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.telephony.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.os.Parcel;
+import android.telephony.TelephonyManager;
+
+import com.google.i18n.phonenumbers.Phonenumber;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+
+import java.lang.ref.Reference;
+
+@RunWith(RobolectricTestRunner.class)
+public class I18nPhoneNumberWrapperTest {
+
+    private static final String E164_NUMBER = "+16505550101";
+
+    @Mock
+    private Context mMockContext;
+    @Mock
+    private TelephonyManager mMockTelephonyManager;
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+
+        when(mMockContext.getSystemService(Context.TELEPHONY_SERVICE)).thenReturn(
+                mMockTelephonyManager);
+        when(mMockTelephonyManager.getSimCountryIso()).thenReturn("");
+    }
+
+    @Test
+    public void sameNumber_differentFormats_areEqual() {
+        I18nPhoneNumberWrapper e164 = get(E164_NUMBER);
+        I18nPhoneNumberWrapper formatted = get("+1 (650) 555-0101");
+
+        assertThat(e164.getNormalizedKey()).isEqualTo(E164_NUMBER);
+        assertThat(formatted.getNormalizedKey()).isEqualTo(E164_NUMBER);
+        assertThat(formatted).isEqualTo(e164);
+        assertThat(formatted.hashCode()).isEqualTo(e164.hashCode());
+    }
+
+    @Test
+    public void sameNationalNumber_differentCountries_areNotEqual() {
+        assertThat(get("+44 650 555 0101")).isNotEqualTo(get(E164_NUMBER));
+    }
+
+    @Test
+    public void extension_isPartOfTheKey() {
+        I18nPhoneNumberWrapper extension = get("+1 650-555-0101 ext. 12");
+
+        assertThat(extension.getNormalizedKey()).isEqualTo(E164_NUMBER + ";ext=12");
+        assertThat(extension).isNotEqualTo(get(E164_NUMBER));
+        assertThat(extension).isEqualTo(get("+16505550101;ext=12"));
+    }
+
+    @Test
+    public void unparseableNumber_isKeyedByRawNumber() {
+        I18nPhoneNumberWrapper unparseable = get("Unknown");
+
+        assertThat(unparseable.getNormalizedKey()).isEqualTo("raw:Unknown");
+        assertThat(unparseable).isEqualTo(get("Unknown"));
+        assertThat(unparseable).isNotEqualTo(get("Private"));
+    }
+
+    @Test
+    public void numberWithoutCountryCode_isNotEqualToNsnMatch() {
+        Parcel parcel = Parcel.obtain();
+        parcel.writeString("6505550101");
+        parcel.writeSerializable(new Phonenumber.PhoneNumber().setNationalNumber(6505550101L));
+        parcel.setDataPosition(0);
+        I18nPhoneNumberWrapper withoutCountryCode =
+                I18nPhoneNumberWrapper.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        assertThat(withoutCountryCode.getNormalizedKey()).isEqualTo("6505550101");
+        assertThat(withoutCountryCode).isNotEqualTo(get(E164_NUMBER));
+    }
+
+    @Test
+    public void factory_sameRawNumber_returnsCachedWrapper() {
+        I18nPhoneNumberWrapper wrapper = get("650-555-0123");
+
+        assertThat(get("650-555-0123")).isSameAs(wrapper);
+    }
+
+    @Test
+    public void factory_evictedFromRecentlyUsed_returnsWrapperStillReferenced() {
+        I18nPhoneNumberWrapper wrapper = get("650-555-0124");
+        fillRecentlyUsed();
+
+        assertThat(get("650-555-0124")).isSameAs(wrapper);
+    }
+
+    @Test
+    public void factory_clearedReference_isPurgedFromPool() {
+        get("650-555-0125");
+        Reference<I18nPhoneNumberWrapper> reference =
+                I18nPhoneNumberWrapper.Factory.INSTANCE.getPooledReference("650-555-0125");
+        assertThat(reference).isNotNull();
+
+        // What the garbage collector does once the wrapper is unreachable.
+        reference.clear();
+        reference.enqueue();
+        get("650-555-0126");
+
+        assertThat(I18nPhoneNumberWrapper.Factory.INSTANCE.getPooledReference("650-555-0125"))
+                .isNull();
+    }
+
+    @Test
+    public void factory_recentlyUsed_staysWithinMaximum() {
+        fillRecentlyUsed();
+        get("650-555-0127");
+
+        assertThat(I18nPhoneNumberWrapper.Factory.INSTANCE.getRecentlyUsedCount())
+                .isEqualTo(I18nPhoneNumberWrapper.Factory.MAX_RECENTLY_USED);
+    }
+
+    /** Gets more distinct numbers than the recently used wrappers can hold. */
+    private void fillRecentlyUsed() {
+        for (int i = 0; i <= I18nPhoneNumberWrapper.Factory.MAX_RECENTLY_USED; i++) {
+            get("+1 408 555 " + (1000 + i));
+        }
+    }
+
+    private I18nPhoneNumberWrapper get(String number) {
+        return I18nPhoneNumberWrapper.Factory.INSTANCE.get(mMockContext, number);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.telephony.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.when;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.MatrixCursor;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.telephony.TelephonyManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class InMemoryPhoneBookTest {
+
+    private static final String[] DATA_COLUMNS = new String[]{
+            ContactsContract.Data.CONTACT_ID,
+            Phone.DISPLAY_NAME,
+            Phone.DISPLAY_NAME_ALTERNATIVE,
+            "phonebook_label",
+            "phonebook_label_alt",
+            Phone.PHOTO_URI,
+            Phone.PHOTO_THUMBNAIL_URI,
+            Phone.LOOKUP_KEY,
+            Phone.STARRED,
+            Phone.PINNED,
+            Phone.TYPE,
+            Phone.LABEL,
+            Phone.NUMBER,
+            Phone._ID,
+            Phone.DATA_VERSION,
+            Phone.IS_SUPER_PRIMARY,
+            ContactsContract.RawContacts.ACCOUNT_NAME,
+            ContactsContract.RawContacts.ACCOUNT_TYPE,
+            ContactsContract.Data.MIMETYPE};
+
+    private static final long SYNC_TIME = 1000;
+
+    private static final String ALICE_NUMBER = "650-555-0101";
+    private static final String BOB_NUMBER = "650-555-0102";
+    private static final String CARL_NUMBER = "650-555-0103";
+    private static final String DAVE_NUMBER = "650-555-0104";
+
+    @Mock
+    private Context mMockContext;
+    @Mock
+    private ContentResolver mMockContentResolver;
+    @Mock
+    private TelephonyManager mMockTelephonyManager;
+
+    private final List<Long> mDeletedContactIds = new ArrayList<>();
+    private long mNextDataId;
+    private InMemoryPhoneBook mPhoneBook;
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+
+        when(mMockContext.getSystemService(Context.TELEPHONY_SERVICE)).thenReturn(
+                mMockTelephonyManager);
+        when(mMockTelephonyManager.getSimCountryIso()).thenReturn("");
+        when(mMockContext.getContentResolver()).thenReturn(mMockContentResolver);
+        when(mMockContentResolver.query(eq(ContactsContract.DeletedContacts.CONTENT_URI), any(),
+                any(), any(), any())).thenAnswer(invocation -> {
+                    MatrixCursor cursor = new MatrixCursor(
+                            new String[]{ContactsContract.DeletedContacts.CONTACT_ID});
+                    for (long contactId : mDeletedContactIds) {
+                        cursor.addRow(new Object[]{contactId});
+                    }
+                    return cursor;
+                });
+
+        mPhoneBook = new InMemoryPhoneBook(mMockContext);
+        // Not in display name order for the collator: the query sorts by the raw strings.
+        MatrixCursor cursor = new MatrixCursor(DATA_COLUMNS);
+        addPhoneRow(cursor, 2, "Bob", "b", BOB_NUMBER);
+        addPhoneRow(cursor, 4, "Dave", "d", DAVE_NUMBER);
+        addPhoneRow(cursor, 1, "alice", "a", ALICE_NUMBER);
+        mPhoneBook.onCursorLoaded(cursor);
+    }
+
+    @Test
+    public void fullLoad_sortsByDisplayName() {
+        assertThat(getDisplayNames(mPhoneBook.getContactsSortedByDisplayName()))
+                .containsExactly("alice", "Bob", "Dave").inOrder();
+    }
+
+    @Test
+    public void delta_addedContact_isInsertedInOrder() {
+        MatrixCursor cursor = new MatrixCursor(DATA_COLUMNS);
+        addPhoneRow(cursor, 3, "Carl", "c", CARL_NUMBER);
+
+        List<Contact> contacts = mPhoneBook.onDeltaCursorLoaded(cursor, SYNC_TIME, SYNC_TIME);
+
+        assertThat(getDisplayNames(contacts))
+                .containsExactly("alice", "Bob", "Carl", "Dave").inOrder();
+        assertThat(mPhoneBook.lookupContactEntry(CARL_NUMBER).getLookupKey()).isEqualTo("c");
+    }
+
+    @Test
+    public void delta_renamedContact_movesInOrder() {
+        MatrixCursor cursor = new MatrixCursor(DATA_COLUMNS);
+        addPhoneRow(cursor, 2, "Zed", "b", BOB_NUMBER);
+
+        List<Contact> contacts = mPhoneBook.onDeltaCursorLoaded(cursor, SYNC_TIME, SYNC_TIME);
+
+        assertThat(getDisplayNames(contacts)).containsExactly("alice", "Dave", "Zed").inOrder();
+        assertThat(getDisplayNames(mPhoneBook.getContactsSortedByDisplayName()))
+                .containsExactly("alice", "Dave", "Zed").inOrder();
+    }
+
+    @Test
+    public void delta_contactInOverlapWindow_isReplacedOnce() {
+        MatrixCursor cursor = new MatrixCursor(DATA_COLUMNS);
+        addPhoneRow(cursor, 1, "alice", "a", ALICE_NUMBER);
+
+        List<Contact> contacts = mPhoneBook.onDeltaCursorLoaded(cursor, SYNC_TIME, SYNC_TIME);
+
+        assertThat(getDisplayNames(contacts)).containsExactly("alice", "Bob", "Dave").inOrder();
+        Contact alice = mPhoneBook.lookupContactByKey("a");
+        assertThat(contacts).contains(alice);
+        assertThat(mPhoneBook.lookupContactEntry(ALICE_NUMBER)).isSameAs(alice);
+    }
+
+    @Test
+    public void delta_deletedContact_isRemoved() {
+        mDeletedContactIds.add(2L);
+
+        List<Contact> contacts = mPhoneBook.onDeltaCursorLoaded(new MatrixCursor(DATA_COLUMNS),
+                SYNC_TIME, SYNC_TIME);
+
+        assertThat(getDisplayNames(contacts)).containsExactly("alice", "Dave").inOrder();
+        assertThat(mPhoneBook.lookupContactByKey("b")).isNull();
+        assertThat(mPhoneBook.lookupContactEntry(BOB_NUMBER)).isNull();
+    }
+
+    @Test
+    public void delta_contactWithoutPhoneRows_isRemoved() {
+        MatrixCursor cursor = new MatrixCursor(DATA_COLUMNS);
+        addRow(cursor, 2, "Bob", "b", "bob@example.com", Email.CONTENT_ITEM_TYPE);
+
+        List<Contact> contacts = mPhoneBook.onDeltaCursorLoaded(cursor, SYNC_TIME, SYNC_TIME);
+
+        assertThat(getDisplayNames(contacts)).containsExactly("alice", "Dave").inOrder();
+        assertThat(mPhoneBook.lookupContactEntry(BOB_NUMBER)).isNull();
+    }
+
+    @Test
+    public void delta_lookupKeyUnderNewContactId_replacesContact() {
+        // After a join, the lookup key of Bob is now the one of contact 5.
+        MatrixCursor cursor = new MatrixCursor(DATA_COLUMNS);
+        addPhoneRow(cursor, 5, "Bob", "b", BOB_NUMBER);
+        addPhoneRow(cursor, 5, "Bob", "b", CARL_NUMBER);
+
+        List<Contact> contacts = mPhoneBook.onDeltaCursorLoaded(cursor, SYNC_TIME, SYNC_TIME);
+
+        assertThat(getDisplayNames(contacts)).containsExactly("alice", "Bob", "Dave").inOrder();
+        Contact bob = mPhoneBook.lookupContactByKey("b");
+        assertThat(bob.getId()).isEqualTo(5L);
+        assertThat(mPhoneBook.lookupContactEntry(CARL_NUMBER)).isSameAs(bob);
+
+        // The old contact id doesn't refer to Bob anymore.
+        mDeletedContactIds.add(2L);
+        contacts = mPhoneBook.onDeltaCursorLoaded(new MatrixCursor(DATA_COLUMNS), SYNC_TIME,
+                SYNC_TIME);
+        assertThat(getDisplayNames(contacts)).containsExactly("alice", "Bob", "Dave").inOrder();
+    }
+
+    private void addPhoneRow(MatrixCursor cursor, long contactId, String displayName,
+            String lookupKey, String number) {
+        addRow(cursor, contactId, displayName, lookupKey, number, Phone.CONTENT_ITEM_TYPE);
+    }
+
+    private void addRow(MatrixCursor cursor, long contactId, String displayName,
+            String lookupKey, String data, String mimeType) {
+        String label = displayName.substring(0, 1).toUpperCase();
+        cursor.addRow(new Object[]{
+                contactId, displayName, displayName, label, label, null, null, lookupKey, 0, 0,
+                Phone.TYPE_MOBILE, null, data, mNextDataId++, 1, 0, "account", "com.example",
+                mimeType});
+    }
+
+    private static List<String> getDisplayNames(List<Contact> contacts) {
+        List<String> names = new ArrayList<>();
+        for (Contact contact : contacts) {
+            names.add(contact.getDisplayName());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2019 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.telephony.common;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.provider.ContactsContract;
+import android.telephony.TelephonyManager;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+
+@RunWith(RobolectricTestRunner.class)
+public class PhoneNumberSuffixIndexTest {
+
+    private static final int DISPLAY_NAME_COLUMN = 1;
+    private static final int ALT_DISPLAY_NAME_COLUMN = 2;
+    private static final int NUMBER_COLUMN = 3;
+    private static final int LOOKUP_KEY_COLUMN = 4;
+
+    @Mock
+    private Context mMockContext;
+    @Mock
+    private Cursor mMockCursor;
+    @Mock
+    private TelephonyManager mMockTelephonyManager;
+
+    private Contact mAlice;
+    private Contact mBob;
+    private Contact mCarl;
+    private Contact mDave;
+    private PhoneNumberSuffixIndex mSuffixIndex;
+
+    @Before
+    public void setup() {
+        MockitoAnnotations.initMocks(this);
+
+        when(mMockCursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME))
+                .thenReturn(DISPLAY_NAME_COLUMN);
+        when(mMockCursor.getColumnIndex(
+                ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME_ALTERNATIVE))
+                .thenReturn(ALT_DISPLAY_NAME_COLUMN);
+        when(mMockCursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.NUMBER))
+                .thenReturn(NUMBER_COLUMN);
+        when(mMockCursor.getColumnIndex(ContactsContract.CommonDataKinds.Phone.LOOKUP_KEY))
+                .thenReturn(LOOKUP_KEY_COLUMN);
+        when(mMockContext.getSystemService(Context.TELEPHONY_SERVICE)).thenReturn(
+                mMockTelephonyManager);
+        when(mMockTelephonyManager.getSimCountryIso()).thenReturn("");
+
+        // Alice and Bob share the last 7 digits.
+        mAlice = createContact("Alice", "+1 650-555-0101", "1");
+        mBob = createContact("Bob", "415-555-0101", "2");
+        // Carl has two numbers sharing the last 7 digits.
+        mCarl = createContact("Carl", "650-555-0199", "3");
+        mCarl.merge(createContact("Carl", "408-555-0199", "3"));
+        mDave = createContact("Dave", "611", "4");
+        mSuffixIndex = new PhoneNumberSuffixIndex(Arrays.asList(mAlice, mBob, mCarl, mDave));
+    }
+
+    @Test
+    public void lookup_longestSuffixWins() {
+        assertThat(mSuffixIndex.lookup("6505550101")).isEqualTo(mAlice);
+        assertThat(mSuffixIndex.lookup("+1 (650) 555-0101")).isEqualTo(mAlice);
+        assertThat(mSuffixIndex.lookup("+1 415 555 0101")).isEqualTo(mBob);
+    }
+
+    @Test
+    public void lookup_sameSuffixForSeveralContacts_isAmbiguous() {
+        assertThat(mSuffixIndex.lookup("555-0101")).isNull();
+        assertThat(mSuffixIndex.lookup("408-555-0101")).isNull();
+    }
+
+    @Test
+    public void lookup_sameSuffixForOneContact_isNotAmbiguous() {
+        assertThat(mSuffixIndex.lookup("555-0199")).isEqualTo(mCarl);
+        assertThat(mSuffixIndex.lookup("212-555-0199")).isEqualTo(mCarl);
+    }
+
+    @Test
+    public void lookup_lessThanMinimumMatch_isNotFound() {
+        assertThat(mSuffixIndex.lookup("650-555-0102")).isNull();
+        assertThat(mSuffixIndex.lookup("650-554-0101")).isNull();
+    }
+
+    @Test
+    public void lookup_shortNumber_needsSameDigits() {
+        assertThat(mSuffixIndex.lookup("611")).isEqualTo(mDave);
+        assertThat(mSuffixIndex.lookup("11")).isNull();
+        assertThat(mSuffixIndex.lookup("1611")).isNull();
+        // A short query doesn't match the end of a long number.
+        assertThat(mSuffixIndex.lookup("0101")).isNull();
+    }
+
+    @Test
+    public void lookup_noDigits_isNotFound() {
+        assertThat(mSuffixIndex.lookup(null)).isNull();
+        assertThat(mSuffixIndex.lookup("")).isNull();
+        assertThat(mSuffixIndex.lookup("Unknown")).isNull();
+        assertThat(PhoneNumberSuffixIndex.EMPTY.lookup("650-555-0101")).isNull();
+    }
+
+    private Contact createContact(String displayName, String number, String lookupKey) {
+        when(mMockCursor.getString(DISPLAY_NAME_COLUMN)).thenReturn(displayName);
+        when(mMockCursor.getString(ALT_DISPLAY_NAME_COLUMN)).thenReturn(displayName);
+        when(mMockCursor.getString(NUMBER_COLUMN)).thenReturn(number);
+        when(mMockCursor.getString(LOOKUP_KEY_COLUMN)).thenReturn(lookupKey);
+        return Contact.fromCursor(mMockContext, mMockCursor);
+    }
+}